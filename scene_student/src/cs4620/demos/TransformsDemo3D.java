@@ -304,20 +304,20 @@ public class TransformsDemo3D extends JFrame implements GLSceneDrawer, ChangeLis
 		
 		meshes = new ArrayList<Mesh>();
 		
-		sphereMesh = new Sphere(gl);
+		sphereMesh = new Sphere();
 		meshes.add(sphereMesh);
 		
-		cylinderMesh = new Cylinder(gl);
+		cylinderMesh = new Cylinder();
 		meshes.add(cylinderMesh);
 		
-		torusMesh = new Torus(gl);
+		torusMesh = new Torus();
 		meshes.add(torusMesh);
 		
-		cubeMesh = new Cube(gl);
+		cubeMesh = new Cube();
 		meshes.add(cubeMesh);
 		
 		try {
-			teapotMesh = new CustomTriangleMesh(gl, new File("data/meshes/teapot.msh"));
+			teapotMesh = new CustomTriangleMesh(new File("data/meshes/teapot.msh"));
 			meshes.add(teapotMesh);
 		} catch (Exception e) {
 			System.err.println("FAIL: loading teapot");
@@ -569,7 +569,7 @@ public class TransformsDemo3D extends JFrame implements GLSceneDrawer, ChangeLis
 		{
 			float tolerance = 0.5f;//= sliderPanel.getTolerance();
 			for(Mesh mesh : meshes)
-				mesh.buildMesh(gl, tolerance);
+				mesh.buildMesh(tolerance);
 			sliderChanged = false;
 		}
 	}
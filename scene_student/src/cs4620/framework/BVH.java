@@ -0,0 +1,383 @@
+package cs4620.framework;
+
+import java.util.Arrays;
+
+/*
+ * A bounding volume hierarchy over a set of primitives given only by their
+ * axis-aligned bounding boxes, for answering ray queries. What the primitives
+ * are (triangles, mesh instances, ...) is up to the caller, which tests them
+ * through an Intersector.
+ *
+ * The tree is built top-down with the surface area heuristic, evaluated
+ * over a fixed number of bins along the axis of each node where the
+ * primitives spread the most, and stored flattened in
+ * arrays: the two children of an inner node are adjacent, and leaves refer
+ * to a range of the primitive order array.
+ */
+
+public class BVH {
+
+	/**
+	 * Tests one primitive against the ray being cast.
+	 */
+	public interface Intersector
+	{
+		/**
+		 * Returns the ray parameter of the closest hit with the primitive that
+		 * is less than tMax, or tMax if there is none.
+		 */
+		float intersect(int primitive, float tMax);
+	}
+
+	private static final int NUM_BINS = 12;
+	private static final int MAX_LEAF_SIZE = 4;
+	// cost of visiting a node relative to testing one primitive
+	private static final float TRAVERSAL_COST = 1.0f;
+
+	private final float [] nodeBounds; // 6 per node: min xyz, max xyz
+	private final int [] nodeStart;    // inner: index of the left child; leaf: first entry of order
+	private final int [] nodeCount;    // inner: 0; leaf: number of primitives
+	private int numNodes;
+
+	private final int [] order;
+
+	// traversal stack, reused by raycast()
+	private int [] stack = new int[64];
+
+	/**
+	 * Builds the hierarchy over numPrimitives boxes, six floats each
+	 * (min x, y, z, max x, y, z), in primitiveBounds.
+	 */
+	public BVH(float [] primitiveBounds, int numPrimitives)
+	{
+		order = new int[numPrimitives];
+		for (int i = 0; i < numPrimitives; i++)
+			order[i] = i;
+
+		int maxNodes = Math.max(1, 2 * numPrimitives - 1);
+		nodeBounds = new float[6 * maxNodes];
+		nodeStart = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+
+		Builder builder = new Builder(primitiveBounds, numPrimitives);
+		numNodes = 1;
+		nodeStart[0] = 0;
+		nodeCount[0] = numPrimitives;
+		builder.computeNodeBounds(0);
+
+		// split nodes depth-first with an explicit work list
+		int [] pending = new int[64];
+		int numPending = 0;
+		pending[numPending++] = 0;
+		while (numPending > 0)
+		{
+			int node = pending[--numPending];
+			int left = builder.split(node);
+			if (left < 0)
+				continue;
+			if (numPending + 2 > pending.length)
+				pending = Arrays.copyOf(pending, 2 * pending.length);
+			pending[numPending++] = left;
+			pending[numPending++] = left + 1;
+		}
+	}
+
+	private static float halfArea(float dx, float dy, float dz)
+	{
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/*
+	 * State of the build. The boxes and centroids of the primitives are
+	 * copied into arrays kept in the same order as the order array, and
+	 * swapped along with it, so that every pass over a node reads memory
+	 * sequentially; with millions of primitives that matters more than
+	 * anything else in the build.
+	 */
+	private class Builder
+	{
+		final float [] boxes;     // 6 per position in order
+		final float [] centroids; // 3 per position in order
+		final int [] binCount = new int[NUM_BINS];
+		final float [] binBoxes = new float[6 * NUM_BINS];
+		final float [] rightArea = new float[NUM_BINS];
+		final float [] box = new float[6];
+
+		Builder(float [] primitiveBounds, int numPrimitives)
+		{
+			boxes = Arrays.copyOf(primitiveBounds, 6 * numPrimitives);
+			centroids = new float[3 * numPrimitives];
+			for (int i = 0; i < numPrimitives; i++)
+				for (int a = 0; a < 3; a++)
+					centroids[3*i+a] = 0.5f * (boxes[6*i+a] + boxes[6*i+3+a]);
+		}
+
+		void computeNodeBounds(int node)
+		{
+			int o = 6 * node;
+			resetBox(nodeBounds, node);
+			for (int i = nodeStart[node], end = i + nodeCount[node]; i < end; i++)
+				growBox(nodeBounds, o, boxes, 6 * i);
+		}
+
+		/**
+		 * Splits node in two at the bin plane of lowest expected cost,
+		 * returning the index of the new left child, or -1 if the node is
+		 * small enough to stay a leaf.
+		 */
+		int split(int node)
+		{
+			int start = nodeStart[node], count = nodeCount[node], end = start + count;
+			// testing a few primitives is cheaper than evaluating splits, which
+			// for tiny nodes would dominate the build
+			if (count <= MAX_LEAF_SIZE)
+				return -1;
+
+			// extent of the centroids, which is what the bins cover
+			float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+			for (int i = start; i < end; i++)
+			{
+				float x = centroids[3*i], y = centroids[3*i+1], z = centroids[3*i+2];
+				if (x < minX) minX = x; if (x > maxX) maxX = x;
+				if (y < minY) minY = y; if (y > maxY) maxY = y;
+				if (z < minZ) minZ = z; if (z > maxZ) maxZ = z;
+			}
+			// bin along the axis where the centroids spread the most
+			int axis = 0;
+			float min = minX, extent = maxX - minX;
+			if (maxY - minY > extent) { axis = 1; min = minY; extent = maxY - minY; }
+			if (maxZ - minZ > extent) { axis = 2; min = minZ; extent = maxZ - minZ; }
+			if (extent <= 0)
+			{
+				// all centroids coincide
+				return splitInHalf(node, start, count);
+			}
+			float scale = NUM_BINS / extent;
+
+			Arrays.fill(binCount, 0);
+			for (int k = 0; k < NUM_BINS; k++)
+				resetBox(binBoxes, k);
+			for (int i = start; i < end; i++)
+			{
+				int k = bin(centroids[3*i+axis] - min, scale);
+				binCount[k]++;
+				growBox(binBoxes, 6 * k, boxes, 6 * i);
+			}
+
+			// sweep from the right, remembering the area of everything right of each plane
+			resetBox(box, 0);
+			int rightCount = 0;
+			for (int k = NUM_BINS - 1; k > 0; k--)
+			{
+				growBox(box, 0, binBoxes, 6 * k);
+				rightCount += binCount[k];
+				rightArea[k] = rightCount == 0 ? 0 : boxHalfArea(box);
+			}
+			// then from the left, evaluating the cost of splitting below bin k
+			int o = 6 * node;
+			float nodeArea = halfArea(nodeBounds[o+3] - nodeBounds[o], nodeBounds[o+4] - nodeBounds[o+1], nodeBounds[o+5] - nodeBounds[o+2]);
+			float bestCost = Float.POSITIVE_INFINITY;
+			int bestBin = -1;
+			resetBox(box, 0);
+			int leftCount = 0;
+			for (int k = 1; k < NUM_BINS; k++)
+			{
+				growBox(box, 0, binBoxes, 6 * (k - 1));
+				leftCount += binCount[k - 1];
+				int right = count - leftCount;
+				if (leftCount == 0 || right == 0)
+					continue;
+				float cost = TRAVERSAL_COST + (leftCount * boxHalfArea(box) + right * rightArea[k]) / nodeArea;
+				if (cost < bestCost)
+				{
+					bestCost = cost;
+					bestBin = k;
+				}
+			}
+			if (bestBin < 0)
+			{
+				// a flat node (e.g. collinear triangles) has no area, which
+				// makes every cost NaN: take the plane nearest the median
+				int bestImbalance = Integer.MAX_VALUE;
+				leftCount = 0;
+				for (int k = 1; k < NUM_BINS; k++)
+				{
+					leftCount += binCount[k - 1];
+					if (leftCount == 0 || leftCount == count)
+						continue;
+					int imbalance = Math.abs(2 * leftCount - count);
+					if (imbalance < bestImbalance)
+					{
+						bestImbalance = imbalance;
+						bestBin = k;
+					}
+				}
+				if (bestBin < 0)
+					return splitInHalf(node, start, count);
+			}
+			// partition the primitives around the chosen plane
+			int i = start, j = end - 1;
+			while (i <= j)
+			{
+				if (bin(centroids[3*i+axis] - min, scale) < bestBin)
+					i++;
+				else
+					swap(i, j--);
+			}
+
+			// the children's boxes are the union of their bins'
+			int left = makeChildren(node, start, count, i);
+			resetBox(nodeBounds, left);
+			resetBox(nodeBounds, left + 1);
+			for (int k = 0; k < NUM_BINS; k++)
+				growBox(nodeBounds, 6 * (k < bestBin ? left : left + 1), binBoxes, 6 * k);
+			return left;
+		}
+
+		// splits the range of node in half, in whatever order it is in
+		int splitInHalf(int node, int start, int count)
+		{
+			int left = makeChildren(node, start, count, start + count / 2);
+			computeNodeBounds(left);
+			computeNodeBounds(left + 1);
+			return left;
+		}
+
+		int bin(float offset, float scale)
+		{
+			int k = (int)(offset * scale);
+			return k < 0 ? 0 : (k >= NUM_BINS ? NUM_BINS - 1 : k);
+		}
+
+		void swap(int i, int j)
+		{
+			int t = order[i]; order[i] = order[j]; order[j] = t;
+			for (int a = 0; a < 6; a++)
+			{
+				float f = boxes[6*i+a]; boxes[6*i+a] = boxes[6*j+a]; boxes[6*j+a] = f;
+			}
+			for (int a = 0; a < 3; a++)
+			{
+				float f = centroids[3*i+a]; centroids[3*i+a] = centroids[3*j+a]; centroids[3*j+a] = f;
+			}
+		}
+
+		int makeChildren(int node, int start, int count, int mid)
+		{
+			int left = numNodes;
+			numNodes += 2;
+			nodeStart[left] = start;
+			nodeCount[left] = mid - start;
+			nodeStart[left + 1] = mid;
+			nodeCount[left + 1] = start + count - mid;
+			nodeStart[node] = left;
+			nodeCount[node] = 0;
+			return left;
+		}
+	}
+
+	private static void resetBox(float [] boxes, int k)
+	{
+		boxes[6*k] = boxes[6*k+1] = boxes[6*k+2] = Float.POSITIVE_INFINITY;
+		boxes[6*k+3] = boxes[6*k+4] = boxes[6*k+5] = Float.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Grows the box at offset o of boxes to contain the box at offset s of
+	 * source. Plain comparisons, since Math.min and max on floats are slow.
+	 */
+	private static void growBox(float [] boxes, int o, float [] source, int s)
+	{
+		if (source[s]   < boxes[o])   boxes[o]   = source[s];
+		if (source[s+1] < boxes[o+1]) boxes[o+1] = source[s+1];
+		if (source[s+2] < boxes[o+2]) boxes[o+2] = source[s+2];
+		if (source[s+3] > boxes[o+3]) boxes[o+3] = source[s+3];
+		if (source[s+4] > boxes[o+4]) boxes[o+4] = source[s+4];
+		if (source[s+5] > boxes[o+5]) boxes[o+5] = source[s+5];
+	}
+
+	private static float boxHalfArea(float [] box)
+	{
+		if (box[0] > box[3])
+			return 0;
+		return halfArea(box[3] - box[0], box[4] - box[1], box[5] - box[2]);
+	}
+
+	/**
+	 * Casts the ray origin + t * direction, 0 <= t < tMax, and returns the
+	 * smallest t the intersector reports, or tMax if nothing is hit. Not safe
+	 * to call from several threads at once.
+	 */
+	public float raycast(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMax, Intersector intersector)
+	{
+		if (order.length == 0)
+			return tMax;
+
+		float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+		int sp = 0;
+		if (enter(0, ox, oy, oz, ix, iy, iz, tMax) < tMax)
+			stack[sp++] = 0;
+
+		while (sp > 0)
+		{
+			int node = stack[--sp];
+			int count = nodeCount[node];
+			if (count > 0)
+			{
+				for (int i = nodeStart[node], end = i + count; i < end; i++)
+					tMax = intersector.intersect(order[i], tMax);
+				continue;
+			}
+
+			int left = nodeStart[node];
+			float tl = enter(left, ox, oy, oz, ix, iy, iz, tMax);
+			float tr = enter(left + 1, ox, oy, oz, ix, iy, iz, tMax);
+			if (sp + 2 > stack.length)
+				stack = Arrays.copyOf(stack, 2 * stack.length);
+			// push the farther child first so the nearer one is visited first
+			if (tl <= tr)
+			{
+				if (tr < tMax) stack[sp++] = left + 1;
+				if (tl < tMax) stack[sp++] = left;
+			}
+			else
+			{
+				if (tl < tMax) stack[sp++] = left;
+				if (tr < tMax) stack[sp++] = left + 1;
+			}
+		}
+		return tMax;
+	}
+
+	/**
+	 * Ray parameter at which the ray enters the box of node, or
+	 * POSITIVE_INFINITY if it misses it before tMax.
+	 */
+	private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMax)
+	{
+		int o = 6 * node;
+		float t0 = (nodeBounds[o] - ox) * ix, t1 = (nodeBounds[o+3] - ox) * ix;
+		float tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+		t0 = (nodeBounds[o+1] - oy) * iy; t1 = (nodeBounds[o+4] - oy) * iy;
+		tNear = Math.max(tNear, Math.min(t0, t1)); tFar = Math.min(tFar, Math.max(t0, t1));
+		t0 = (nodeBounds[o+2] - oz) * iz; t1 = (nodeBounds[o+5] - oz) * iz;
+		tNear = Math.max(tNear, Math.min(t0, t1)); tFar = Math.min(tFar, Math.max(t0, t1));
+
+		tNear = Math.max(tNear, 0);
+		if (tNear > tFar || tNear >= tMax)
+			return Float.POSITIVE_INFINITY;
+		return tNear;
+	}
+
+	public int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	public int getNumPrimitives()
+	{
+		return order.length;
+	}
+}
@@ -0,0 +1,166 @@
+package cs4620.framework;
+
+import java.nio.FloatBuffer;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+
+/*
+ * An axis-aligned bounding box. A new box is empty (min > max) and grows as
+ * points or other boxes are added to it. Along with the box, the radius of a
+ * bounding sphere centered at the middle of the box is kept; it is at most
+ * half the diagonal, and smaller when set from the actual points.
+ */
+
+public class BoundingBox {
+
+	public final Point3f min = new Point3f();
+	public final Point3f max = new Point3f();
+
+	private float radius;
+
+	public BoundingBox()
+	{
+		setEmpty();
+	}
+
+	public void setEmpty()
+	{
+		min.set(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+		max.set(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+		radius = 0;
+	}
+
+	public boolean isEmpty()
+	{
+		return min.x > max.x || min.y > max.y || min.z > max.z;
+	}
+
+	public void set(BoundingBox other)
+	{
+		min.set(other.min);
+		max.set(other.max);
+		radius = other.radius;
+	}
+
+	/**
+	 * Grows the box to contain the point.
+	 */
+	public void extend(float x, float y, float z)
+	{
+		if (x < min.x) min.x = x;
+		if (y < min.y) min.y = y;
+		if (z < min.z) min.z = z;
+		if (x > max.x) max.x = x;
+		if (y > max.y) max.y = y;
+		if (z > max.z) max.z = z;
+		radius = getHalfDiagonal();
+	}
+
+	/**
+	 * Grows the box to contain box transformed by transform. The result is
+	 * the box around the transformed box, computed from the matrix without
+	 * transforming the eight corners (Arvo, Graphics Gems 1990).
+	 */
+	public void extend(BoundingBox box, Matrix4f transform)
+	{
+		if (box.isEmpty())
+			return;
+		extendAxis(0, transform.m00, transform.m01, transform.m02, transform.m03, box);
+		extendAxis(1, transform.m10, transform.m11, transform.m12, transform.m13, box);
+		extendAxis(2, transform.m20, transform.m21, transform.m22, transform.m23, box);
+		radius = getHalfDiagonal();
+	}
+
+	private void extendAxis(int axis, float r0, float r1, float r2, float t, BoundingBox box)
+	{
+		float lo = t, hi = t;
+		float a, b;
+		a = r0 * box.min.x; b = r0 * box.max.x; lo += Math.min(a, b); hi += Math.max(a, b);
+		a = r1 * box.min.y; b = r1 * box.max.y; lo += Math.min(a, b); hi += Math.max(a, b);
+		a = r2 * box.min.z; b = r2 * box.max.z; lo += Math.min(a, b); hi += Math.max(a, b);
+
+		switch (axis)
+		{
+		case 0: min.x = Math.min(min.x, lo); max.x = Math.max(max.x, hi); break;
+		case 1: min.y = Math.min(min.y, lo); max.y = Math.max(max.y, hi); break;
+		default: min.z = Math.min(min.z, lo); max.z = Math.max(max.z, hi); break;
+		}
+	}
+
+	/**
+	 * Sets the box and sphere to bound the given xyz triples.
+	 */
+	public void setFromVertices(float [] vertices)
+	{
+		setEmpty();
+		for (int i = 0; i + 2 < vertices.length; i += 3)
+			extend(vertices[i], vertices[i+1], vertices[i+2]);
+
+		float cx = getCenterX(), cy = getCenterY(), cz = getCenterZ();
+		float r2 = 0;
+		for (int i = 0; i + 2 < vertices.length; i += 3)
+			r2 = Math.max(r2, distanceSquared(vertices[i] - cx, vertices[i+1] - cy, vertices[i+2] - cz));
+		radius = (float) Math.sqrt(r2);
+	}
+
+	/**
+	 * Same as setFromVertices(float[]), reading the buffer's remaining
+	 * floats without moving its position.
+	 */
+	public void setFromVertices(FloatBuffer vertices)
+	{
+		setEmpty();
+		int start = vertices.position(), end = vertices.limit();
+		for (int i = start; i + 2 < end; i += 3)
+			extend(vertices.get(i), vertices.get(i+1), vertices.get(i+2));
+
+		float cx = getCenterX(), cy = getCenterY(), cz = getCenterZ();
+		float r2 = 0;
+		for (int i = start; i + 2 < end; i += 3)
+			r2 = Math.max(r2, distanceSquared(vertices.get(i) - cx, vertices.get(i+1) - cy, vertices.get(i+2) - cz));
+		radius = (float) Math.sqrt(r2);
+	}
+
+	private static float distanceSquared(float dx, float dy, float dz)
+	{
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	public float getCenterX()
+	{
+		return 0.5f * (min.x + max.x);
+	}
+
+	public float getCenterY()
+	{
+		return 0.5f * (min.y + max.y);
+	}
+
+	public float getCenterZ()
+	{
+		return 0.5f * (min.z + max.z);
+	}
+
+	public float getHalfDiagonal()
+	{
+		if (isEmpty())
+			return 0;
+		float dx = max.x - min.x, dy = max.y - min.y, dz = max.z - min.z;
+		return 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Radius of the bounding sphere centered at the center of the box.
+	 */
+	public float getRadius()
+	{
+		return radius;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[" + min + " - " + max + ", r = " + radius + "]";
+	}
+}
@@ -34,6 +34,11 @@ public abstract class CameraController extends ViewController {
 	protected final Vector2f mouseDelta = new Vector2f();
 	protected final Vector3f worldMotion = new Vector3f();
 	protected int mode;
+
+	// picking, see setPickRegion()
+	protected boolean pickRegionSet = false;
+	protected final Matrix4f pickMatrix = new Matrix4f();
+	protected final Matrix4f pickProjection = new Matrix4f();
 	
 	// static
 	public static final int NO_MODE = 0;
@@ -136,6 +141,17 @@ public abstract class CameraController extends ViewController {
 		p.set((2 * p.x - w) / w, (2 * (h - p.y - 1) - h) / h);
 	}
 
+	/**
+	 * Converts the position of a mouse event on the canvas into normalized
+	 * device coordinates of this view, taking the view's place on the canvas
+	 * into account.
+	 */
+	public void mouseToNDC(MouseEvent e, Tuple2f ndc) {
+		float x = e.getX() + 0.5f - left;
+		float y = e.getComponent().getHeight() - e.getY() - 0.5f - bottom;
+		ndc.set(2 * x / width - 1, 2 * y / height - 1);
+	}
+
 	protected boolean isFlagSet(MouseEvent e, int flag) {
 		return (e.getModifiersEx() & flag) == flag;
 	}
@@ -195,7 +211,29 @@ public abstract class CameraController extends ViewController {
 	}
 	
 	public Matrix4f getProjection() {
-		return camera.getProjection();
+		if (!pickRegionSet)
+			return camera.getProjection();
+		pickProjection.mul(pickMatrix, camera.getProjection());
+		return pickProjection;
+	}
+
+	/**
+	 * Until clearPickRegion(), makes getProjection() return the camera's
+	 * projection narrowed to the rectangle of normalized device coordinates
+	 * centered at (x, y) with the given half width and height, stretched to
+	 * fill the viewport (like gluPickMatrix()).
+	 */
+	public void setPickRegion(float x, float y, float halfWidth, float halfHeight) {
+		pickMatrix.setIdentity();
+		pickMatrix.m00 = 1 / halfWidth;
+		pickMatrix.m03 = -x / halfWidth;
+		pickMatrix.m11 = 1 / halfHeight;
+		pickMatrix.m13 = -y / halfHeight;
+		pickRegionSet = true;
+	}
+
+	public void clearPickRegion() {
+		pickRegionSet = false;
 	}
 
 	public GLSceneDrawer getDrawer()
@@ -232,4 +270,4 @@ public abstract class CameraController extends ViewController {
 	{
 		this.coordinator = coordinator;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package cs4620.framework;
+
+import javax.vecmath.Matrix4f;
+
+/*
+ * The view volume of a camera as six planes in eye space, extracted from the
+ * projection matrix (Gribb and Hartmann), so it works the same for
+ * PerspectiveCamera and OrthographicCamera. Used to skip geometry that
+ * cannot appear in the view.
+ */
+
+public class Frustum {
+
+	// plane i is planes[4i] * x + planes[4i+1] * y + planes[4i+2] * z + planes[4i+3] >= 0 inside
+	private final float [] planes = new float[24];
+
+	public Frustum()
+	{
+		// accepts everything until set
+	}
+
+	public Frustum(Matrix4f projection)
+	{
+		set(projection);
+	}
+
+	public void set(Camera camera)
+	{
+		set(camera.getProjection());
+	}
+
+	public void set(Matrix4f p)
+	{
+		setPlane(0, p.m30 + p.m00, p.m31 + p.m01, p.m32 + p.m02, p.m33 + p.m03); // left
+		setPlane(1, p.m30 - p.m00, p.m31 - p.m01, p.m32 - p.m02, p.m33 - p.m03); // right
+		setPlane(2, p.m30 + p.m10, p.m31 + p.m11, p.m32 + p.m12, p.m33 + p.m13); // bottom
+		setPlane(3, p.m30 - p.m10, p.m31 - p.m11, p.m32 - p.m12, p.m33 - p.m13); // top
+		setPlane(4, p.m30 + p.m20, p.m31 + p.m21, p.m32 + p.m22, p.m33 + p.m23); // near
+		setPlane(5, p.m30 - p.m20, p.m31 - p.m21, p.m32 - p.m22, p.m33 - p.m23); // far
+	}
+
+	private void setPlane(int i, float a, float b, float c, float d)
+	{
+		float length = (float) Math.sqrt(a * a + b * b + c * c);
+		if (length == 0)
+			length = 1;
+		planes[4*i]   = a / length;
+		planes[4*i+1] = b / length;
+		planes[4*i+2] = c / length;
+		planes[4*i+3] = d / length;
+	}
+
+	/**
+	 * Whether a sphere given in eye coordinates is at least partly inside.
+	 */
+	public boolean intersectsSphere(float x, float y, float z, float radius)
+	{
+		for (int i = 0; i < 24; i += 4)
+			if (planes[i] * x + planes[i+1] * y + planes[i+2] * z + planes[i+3] < -radius)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Whether the bounding sphere of box, given in a frame that toEye takes
+	 * to eye coordinates, is at least partly inside. toEye may scale
+	 * non-uniformly; the radius is scaled by its largest axis scale.
+	 */
+	public boolean intersects(BoundingBox box, Matrix4f toEye)
+	{
+		if (box.isEmpty())
+			return false;
+
+		float cx = box.getCenterX(), cy = box.getCenterY(), cz = box.getCenterZ();
+		float x = toEye.m00 * cx + toEye.m01 * cy + toEye.m02 * cz + toEye.m03;
+		float y = toEye.m10 * cx + toEye.m11 * cy + toEye.m12 * cz + toEye.m13;
+		float z = toEye.m20 * cx + toEye.m21 * cy + toEye.m22 * cz + toEye.m23;
+
+		float sx = toEye.m00 * toEye.m00 + toEye.m10 * toEye.m10 + toEye.m20 * toEye.m20;
+		float sy = toEye.m01 * toEye.m01 + toEye.m11 * toEye.m11 + toEye.m21 * toEye.m21;
+		float sz = toEye.m02 * toEye.m02 + toEye.m12 * toEye.m12 + toEye.m22 * toEye.m22;
+		float scale = (float) Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+
+		return intersectsSphere(x, y, z, box.getRadius() * scale);
+	}
+}
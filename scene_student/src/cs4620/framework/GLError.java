@@ -1,18 +1,90 @@
 package cs4620.framework;
 
 import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLDebugListener;
+import javax.media.opengl.GLDebugMessage;
+
+/*
+ * Reports OpenGL errors. The framework calls get() after nearly every GL
+ * call; each check is a glGetError(), which stalls until the driver has
+ * caught up, so how often to really check is selectable at startup with the
+ * system property cs4620.glerror:
+ *
+ *   always    check after every call (the default)
+ *   sampled   check only during one frame out of every
+ *             cs4620.glerror.interval frames (default 60)
+ *   callback  have the driver report errors through GL_KHR_debug or
+ *             GL_ARB_debug_output, and skip the checks; falls back to
+ *             sampled if the context offers neither
+ *   off       skip every check (release mode)
+ *
+ * e.g. java -Dcs4620.glerror=sampled -Dcs4620.glerror.interval=30 ...
+ *
+ * Unless checking always, the number of checks done and skipped is printed
+ * when the program exits.
+ */
 
 public class GLError {
 	public static boolean printErrors = true;
-	
+
+	public static final int ALWAYS = 0;
+	public static final int SAMPLED = 1;
+	public static final int CALLBACK = 2;
+	public static final int OFF = 3;
+
+	private static final String[] MODE_NAMES = { "always", "sampled", "callback", "off" };
+
+	// final, so that in release mode the JIT folds get() down to a counter increment
+	private static final boolean CHECKS_DISABLED;
+
+	private static int mode;
+	private static final int sampleInterval;
+	private static boolean checkingThisFrame = true;
+
+	private static long performedChecks = 0;
+	private static long skippedChecks = 0;
+
+	static {
+		mode = parseMode(System.getProperty("cs4620.glerror", "always"));
+		CHECKS_DISABLED = (mode == OFF);
+		sampleInterval = Math.max(1, Integer.getInteger("cs4620.glerror.interval", 60));
+
+		if (mode != ALWAYS)
+		{
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					System.out.println(getReport());
+				}
+			});
+		}
+	}
+
+	private static int parseMode(String name)
+	{
+		for (int i = 0; i < MODE_NAMES.length; i++)
+			if (MODE_NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		System.err.println("WARNING: unknown cs4620.glerror mode \"" + name + "\", using \"always\"");
+		return ALWAYS;
+	}
+
 	public static void get(GL2 gl, String description) {
+		if (CHECKS_DISABLED || !checkingThisFrame)
+		{
+			skippedChecks++;
+			return;
+		}
+		performedChecks++;
+
 		// grab and report any errors generated by OpenGL since the last time they were checked
 		// based on http://forum.jogamp.org/glBufferData-and-glBufferSubData-seems-not-to-work-td3267295.html
 		int error;
 		boolean foundError = false;
 		if(!printErrors)
 			return; // don't keep spamming the user after first display() invocation
-		
+
 		while((error = gl.glGetError()) != GL2.GL_NO_ERROR)
 		{
 			if(!foundError)
@@ -26,4 +98,76 @@ public class GLError {
 		if(foundError)
 			System.out.println("");
 	}
+
+	/**
+	 * Called at the start of every frame a view draws, with the number of
+	 * frames that view has started; decides whether the checks made during
+	 * the frame are performed. Views count their frames apart, so that
+	 * several views redrawn together still sample one frame in every
+	 * interval of each.
+	 */
+	public static void frameStarted(int frame)
+	{
+		if (mode == SAMPLED)
+			checkingThisFrame = (frame % sampleInterval == 0);
+	}
+
+	/**
+	 * Requests a debug context if errors are to be reported by callback.
+	 * Must be called before the drawable's context is created.
+	 */
+	public static void prepare(GLView view)
+	{
+		if (mode == CALLBACK)
+			view.setContextCreationFlags(view.getContextCreationFlags() | GLContext.CTX_OPTION_DEBUG);
+	}
+
+	/**
+	 * Called once the drawable's context exists. In callback mode, installs
+	 * the debug message listener, or falls back to sampling.
+	 */
+	public static void init(GLAutoDrawable drawable)
+	{
+		if (mode != CALLBACK)
+			return;
+
+		GLContext context = drawable.getContext();
+		if (context == null || context.getGLDebugMessageExtension() == null)
+		{
+			System.err.println("WARNING: no GL debug output available, sampling GL errors instead");
+			mode = SAMPLED;
+			return;
+		}
+
+		context.addGLDebugListener(new GLDebugListener() {
+			public void messageSent(GLDebugMessage message) {
+				if (printErrors)
+					System.out.println("GL DEBUG - " + message.getDbgMsg());
+			}
+		});
+		context.enableGLDebugMessage(true);
+		// no glGetError() calls from here on
+		checkingThisFrame = false;
+	}
+
+	public static String getModeName()
+	{
+		return MODE_NAMES[mode];
+	}
+
+	public static long getPerformedChecks()
+	{
+		return performedChecks;
+	}
+
+	public static long getSkippedChecks()
+	{
+		return skippedChecks;
+	}
+
+	public static String getReport()
+	{
+		return "GL error checking (" + getModeName() + "): " + performedChecks
+				+ " checks performed, " + skippedChecks + " skipped";
+	}
 }
@@ -0,0 +1,18 @@
+package cs4620.framework;
+
+import javax.media.opengl.GLRunnable;
+
+/*
+ * Something that can run code on the GL thread, with the GL context
+ * current, e.g. a panel wrapping a GLCanvas. Work done on other threads
+ * uses this to hand its results over to GL.
+ */
+
+public interface GLInvoker {
+	
+	/**
+	 * Queues runnable to be run on the GL thread, with the context current,
+	 * around the next display. If wait is true, blocks until it has run.
+	 */
+	public boolean invoke(boolean wait, GLRunnable runnable);
+}
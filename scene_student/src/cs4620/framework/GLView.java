@@ -1,19 +1,49 @@
 package cs4620.framework;
 
+import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLContext;
+import javax.media.opengl.GLEventListener;
 import javax.media.opengl.awt.GLCanvas;
 
 public class GLView extends GLCanvas {
 	private static final long serialVersionUID = 1L;
+	
+	// frames started on this view, for GLError's sampling
+	private int numFrames = 0;
 
 	public GLView(GLCapabilities glCapabilities) {
 		super(glCapabilities);
+		installErrorReporting();
 	}
 
 	public GLView(GLCapabilities glCapabilities, GLContext sharedWith)
 	{
 		super(glCapabilities, sharedWith);
+		installErrorReporting();
+	}
+	
+	private void installErrorReporting()
+	{
+		// added before any controller, so GLError sees each frame start first
+		GLError.prepare(this);
+		addGLEventListener(new GLEventListener() {
+			public void init(GLAutoDrawable drawable) {
+				GLError.init(drawable);
+			}
+			
+			public void display(GLAutoDrawable drawable) {
+				GLError.frameStarted(++numFrames);
+			}
+			
+			public void dispose(GLAutoDrawable drawable) {
+				// NOP
+			}
+			
+			public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+				// NOP
+			}
+		});
 	}
 
 	public void addGLController(GLController controller) {
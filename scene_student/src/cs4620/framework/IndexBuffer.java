@@ -1,5 +1,8 @@
 package cs4620.framework;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
 import javax.media.opengl.GL2;
 
 /*
@@ -8,56 +11,118 @@ import javax.media.opengl.GL2;
  * a very bare wrapper around VertexBuffer, simply fixing the data type
  * of the buffer and adding a few conveniences related to error-checking
  * the specification of geometry.
+ *
+ * Indices are given as ints, but stored as unsigned shorts whenever the
+ * largest of them fits, which halves the memory and bandwidth they take
+ * for meshes of up to 65535 vertices; getFormat() says which type the
+ * buffer holds at the moment. RESTART_INDEX in the data ends a strip (see
+ * VertexArray.setPrimitiveRestart()) and is stored as the largest value of
+ * the buffer's type.
  */
 
 public class IndexBuffer extends VertexBuffer {
-	
+
+	public static final int RESTART_INDEX = -1;
+
 	int expectedNumElements;
-	
+
 	public IndexBuffer(GL2 glContext, int [] data)
 	{
 		// A buffer suitable for using with GL_ELEMENT_ARRAY_BUFFER is a regular old
 		// int buffer; this just ensures it's an *int* buffer
 		super(glContext, data, 1);
-		
-		setExpectedNumElements(data);
 	}
-	
+
+	// All setters of VertexBuffer for int data are replaced by these, which
+	// pick the type of the buffer from the data before converting it.
+
 	@Override
-	public void smartSetData(GL2 gl, int [] data)
+	public void setData(GL2 gl, int [] data)
 	{
-		super.smartSetData(gl, data);
-		setExpectedNumElements(data);
+		setData(gl, IntBuffer.wrap(data));
 	}
-	
+
 	@Override
-	public void setData(GL2 gl, int [] data)
+	public void setData(GL2 gl, IntBuffer data)
 	{
-		super.setData(gl, data);
-		setExpectedNumElements(data);
+		upload(gl, data, false, false);
 	}
-	
+
 	@Override
 	public void setSubData(GL2 gl, int [] data)
 	{
-		super.setSubData(gl, data);
-		setExpectedNumElements(data);
+		setSubData(gl, IntBuffer.wrap(data));
+	}
+
+	@Override
+	public void setSubData(GL2 gl, IntBuffer data)
+	{
+		upload(gl, data, false, true);
+	}
+
+	@Override
+	public void smartSetData(GL2 gl, int [] data)
+	{
+		smartSetData(gl, IntBuffer.wrap(data));
 	}
-	
-	private void setExpectedNumElements(int [] data)
+
+	@Override
+	public void smartSetData(GL2 gl, IntBuffer data)
+	{
+		upload(gl, data, true, true);
+	}
+
+	private void upload(GL2 gl, IntBuffer data, boolean resize, boolean sub)
 	{
 		// Given the contents of the index buffer, determine the minimum
 		// number of elements that must be had by a vertex buffer indexed
 		// by this buffer for it to be renderable.
 		int maxIndex = 0;
-		for (int i : data)
+		for (int i = data.position(); i < data.limit(); i++)
 		{
-			if (i > maxIndex)
-				maxIndex = i;
+			int index = data.get(i);
+			if (index > maxIndex)
+				maxIndex = index;
 		}
 		expectedNumElements = maxIndex + 1;
+
+		// the largest short is kept free for RESTART_INDEX
+		setFormat(maxIndex < 0xffff ? GL2.GL_UNSIGNED_SHORT : GL2.GL_UNSIGNED_INT);
+		int numIndices = data.remaining();
+		if (resize)
+			resizeIfNeeded(gl, numIndices);
+
+		// contents for buffer, staged in pooled native memory
+		ByteBuffer staging = StagingBufferPool.acquire(numIndices * numBytesFor(getFormat()));
+		try
+		{
+			if (getFormat() == GL2.GL_UNSIGNED_SHORT)
+			{
+				for (int i = 0; i < numIndices; i++)
+					staging.putShort(2 * i, (short) data.get(data.position() + i));
+			}
+			else
+				staging.asIntBuffer().put(data.duplicate());
+
+			if (sub)
+				super.setSubData(gl, staging);
+			else
+				super.setData(gl, staging);
+		}
+		finally
+		{
+			StagingBufferPool.release(staging);
+		}
 	}
-	
+
+	/**
+	 * The value RESTART_INDEX is stored as, for the buffer's current type.
+	 */
+	public int getRestartIndex()
+	{
+		return getFormat() == GL2.GL_UNSIGNED_SHORT ? 0xffff : RESTART_INDEX;
+	}
+
 	public int getExpectedNumElements()
 	{
 		return expectedNumElements;
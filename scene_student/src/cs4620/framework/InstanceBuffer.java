@@ -0,0 +1,170 @@
+package cs4620.framework;
+
+import java.nio.FloatBuffer;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/*
+ * A buffer of per-instance vertex attributes, used to draw many copies of
+ * the same vertex array with one call to VertexArray.drawInstanced().
+ *
+ * Every instance is a record of floatsPerInstance floats. addAttribute()
+ * says which attribute index reads which part of the record; the attribute
+ * advances once per instance instead of once per vertex. Matrix attributes
+ * occupy one attribute index per column, so a mat4 is added as four
+ * 4-component attributes at consecutive indices.
+ *
+ * The contents are meant to be replaced every frame: write the records into
+ * the buffer returned by begin(), then call upload().
+ *
+ * Instanced drawing needs GL_ARB_instanced_arrays and GL_ARB_draw_instanced,
+ * and a GL3 context, the only one JOGL exposes glVertexAttribDivisor() on;
+ * check isSupported() before creating one.
+ */
+
+public class InstanceBuffer {
+
+	private int id;                // GL id of object
+	private int floatsPerInstance; // size of one instance record
+
+	private static final int MAX_ATTRIBUTES = 16;
+	private int numAttributes;
+	private int [] attributeIndices = new int[MAX_ATTRIBUTES];
+	private int [] attributeSizes = new int[MAX_ATTRIBUTES];   // in floats
+	private int [] attributeOffsets = new int[MAX_ATTRIBUTES]; // in floats, from the start of the record
+
+	private FloatBuffer data;
+	private int numInstances;
+
+	private static boolean checkedSupport = false;
+	private static boolean supported = false;
+
+	public InstanceBuffer(GL2 gl, int in_floatsPerInstance)
+	{
+		floatsPerInstance = in_floatsPerInstance;
+		data = Buffers.newDirectFloatBuffer(64 * floatsPerInstance);
+		numInstances = 0;
+
+		int [] idBuf = {-1};
+		gl.glGenBuffers(1, idBuf, 0);                                        GLError.get(gl, "InstB.init gen");
+		id = idBuf[0];
+	}
+
+	public static boolean isSupported(GL2 gl)
+	{
+		if(!checkedSupport)
+		{
+			checkedSupport = true;
+			supported = gl.isGL3() &&
+					gl.isExtensionAvailable("GL_ARB_instanced_arrays") &&
+					gl.isExtensionAvailable("GL_ARB_draw_instanced");
+		}
+		return supported;
+	}
+
+	public void addAttribute(int index, int numComponents, int offset)
+	{
+		if(numAttributes == MAX_ATTRIBUTES)
+			throw new Error("Too many instance attributes.");
+		if(offset + numComponents > floatsPerInstance)
+			throw new Error("Instance attribute does not fit in the instance record.");
+
+		attributeIndices[numAttributes] = index;
+		attributeSizes[numAttributes] = numComponents;
+		attributeOffsets[numAttributes] = offset;
+		numAttributes++;
+	}
+
+	/**
+	 * Returns an empty staging buffer with room for the given number of
+	 * instance records, growing it if necessary.
+	 */
+	public FloatBuffer begin(int maxInstances)
+	{
+		int numFloats = maxInstances * floatsPerInstance;
+		if(data.capacity() < numFloats)
+			data = Buffers.newDirectFloatBuffer(Math.max(numFloats, 2 * data.capacity()));
+		data.clear();
+		data.limit(numFloats);
+		return data;
+	}
+
+	/**
+	 * Sends the records written since begin() to GL.
+	 */
+	public void upload(GL2 gl)
+	{
+		data.flip();
+		if(data.limit() % floatsPerInstance != 0)
+		{
+			System.err.println("WARNING: Instance data is not a multiple of the record size");
+		}
+		numInstances = data.limit() / floatsPerInstance;
+
+		// respecifying the whole store lets the driver hand us fresh memory
+		// instead of waiting for draws that still read the old contents
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "InstB.upload bind");
+		gl.glBufferData(GL2.GL_ARRAY_BUFFER, data.limit() * 4, data, GL2.GL_STREAM_DRAW);
+		                                                                     GLError.get(gl, "InstB.upload data");
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "InstB.upload unbind");
+	}
+
+	/**
+	 * Points the instance attributes at this buffer. Called by VertexArray
+	 * with its vertex array bound.
+	 */
+	void enable(GL2 gl)
+	{
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "InstB.enable bind");
+		for(int i = 0; i < numAttributes; i++)
+		{
+			int index = attributeIndices[i];
+			gl.glEnableVertexAttribArray(index);                             GLError.get(gl, "InstB.enable attr");
+			gl.glVertexAttribPointer(index, attributeSizes[i], GL2.GL_FLOAT, false,
+					4 * floatsPerInstance, 4L * attributeOffsets[i]);        GLError.get(gl, "InstB.enable ptr");
+			gl.getGL3().glVertexAttribDivisor(index, 1);                     GLError.get(gl, "InstB.enable divisor");
+		}
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "InstB.enable unbind");
+	}
+
+	/**
+	 * Undoes enable(), so that the vertex array draws normally afterwards.
+	 */
+	void disable(GL2 gl)
+	{
+		for(int i = 0; i < numAttributes; i++)
+		{
+			int index = attributeIndices[i];
+			gl.getGL3().glVertexAttribDivisor(index, 0);                     GLError.get(gl, "InstB.disable divisor");
+			gl.glDisableVertexAttribArray(index);                            GLError.get(gl, "InstB.disable attr");
+		}
+	}
+
+	/**
+	 * Frees the GL buffer. The object must not be used afterwards.
+	 */
+	public void delete(GL2 gl)
+	{
+		int [] idBuf = {id};
+		gl.glDeleteBuffers(1, idBuf, 0);                                     GLError.get(gl, "InstB.delete");
+		id = 0;
+		numInstances = 0;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public int getFloatsPerInstance()
+	{
+		return floatsPerInstance;
+	}
+
+	public int getNumInstances()
+	{
+		return numInstances;
+	}
+}
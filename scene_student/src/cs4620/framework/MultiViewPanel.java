@@ -20,7 +20,7 @@ import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
 public abstract class MultiViewPanel extends JPanel
-	implements GLController, ActionListener{
+	implements GLController, GLInvoker, ActionListener{
 	private static final long serialVersionUID = 8291039062923534105L;
 	
 	/**
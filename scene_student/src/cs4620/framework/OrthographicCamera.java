@@ -48,8 +48,8 @@ public class OrthographicCamera extends PerspectiveCamera {
 			Vector3f p1)
 	{
 		p0.set(getEye());
-		p1.scaleAdd(imageXY.x * aspect * getHeight(), getRight(), p1);
-		p1.scaleAdd(imageXY.y * getHeight(), getUp(), p1);
+		p0.scaleAdd(imageXY.x * aspect * getHeight(), getRight(), p0);
+		p0.scaleAdd(imageXY.y * getHeight(), getUp(), p0);
 
 		p1.set(getTarget());
 		p1.scaleAdd(imageXY.x * aspect * getHeight(), getRight(), p1);
@@ -2,38 +2,79 @@ package cs4620.framework;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashSet;
 import java.util.Set;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
-import javax.media.opengl.glu.GLU;
 import javax.swing.event.EventListenerList;
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
-
-import com.jogamp.opengl.util.GLBuffers;
-
-public class PickingController implements GLController
+import javax.vecmath.Vector4f;
+
+/**
+ * Wraps a camera controller and reports which object is under the mouse,
+ * on every mouse move (if hover picking is on) and on plain left clicks.
+ *
+ * After the view is drawn, the drawer is asked to draw the scene once more
+ * in picking mode (see PickingEventListener.startPickingMode()), writing
+ * object ids instead of colors into a small offscreen framebuffer that
+ * covers PICK_REGION_SIZE pixels around the cursor; the camera controller's
+ * projection is narrowed to that region meanwhile, so frustum culling drops
+ * nearly everything else. The ids and depths are copied into one of a ring
+ * of pixel pack buffers, and mapped READBACK_DELAY frames later, when the
+ * copy is done, so the GL pipeline is never waited on.
+ *
+ * Ids are written as 32 bit RGBA colors, red holding the lowest byte (see
+ * SceneProgram.setObjectId()); 0 means no object.
+ */
+public class PickingController extends ViewController
 {
-	private final int SELECT_BUFFER_SIZE = 65536;
+	public static final int PICK_REGION_SIZE = 5;
+	private static final int NUM_READBACK_BUFFERS = 3;
+	private static final int READBACK_DELAY = 2;
+
+	private static final int REGION_PIXELS = PICK_REGION_SIZE * PICK_REGION_SIZE;
+	private static final int DEPTH_OFFSET = 4 * REGION_PIXELS;
+	private static final int READBACK_BYTES = 8 * REGION_PIXELS;
 
 	protected CameraController cameraController;
 	protected final EventListenerList listenerList = new EventListenerList();
 
-	private final int[] viewport = new int[4];
-	private final double[] modelView = new double[16];
-	private final double[] projection = new double[16];
-	private final double[] pickPosition = new double[3];
-	private final IntBuffer selectBuffer = GLBuffers.newDirectIntBuffer(SELECT_BUFFER_SIZE);
-	private GLU glu;
-
 	private final Set<Integer> prioritizedObjectIds = new HashSet<Integer>();
 
-	protected boolean pickingRequested = false;
-
+	// pick requests, set on the event thread and taken on the GL thread
+	protected volatile boolean pickingRequested = false;
+	protected boolean hoverPicking = true;
 	protected final Vector2f mousePosition = new Vector2f();
+	protected final Vector2f mouseNDC = new Vector2f();
+
+	// GL resources, created on the first pick
+	private boolean initialized = false;
+	private boolean supported = false;
+	private int framebuffer;
+	private int colorRenderbuffer;
+	private int depthRenderbuffer;
+	private final Readback [] readbacks = new Readback[NUM_READBACK_BUFFERS];
+	private int nextReadback = 0;
+	private long frame = 0;
+
+	/**
+	 * One pixel pack buffer and the pick it holds.
+	 */
+	private static class Readback
+	{
+		int buffer;
+		boolean pending = false;
+		long frame;
+		final Vector2f mousePosition = new Vector2f();
+		final Vector2f mouseNDC = new Vector2f();
+		// takes normalized device coordinates of the pick to world coordinates
+		final Matrix4f ndcToWorld = new Matrix4f();
+	}
 
 	public PickingController(CameraController controller)
 	{
@@ -50,146 +91,291 @@ public class PickingController implements GLController
 		return cameraController;
 	}
 
+	/**
+	 * Whether picks are made as the mouse moves, or only on clicks.
+	 */
+	public void setHoverPicking(boolean hoverPicking)
+	{
+		this.hoverPicking = hoverPicking;
+	}
+
+	public boolean isHoverPicking()
+	{
+		return hoverPicking;
+	}
+
+	public static boolean isSupported(GL2 gl)
+	{
+		return (gl.isExtensionAvailable("GL_ARB_framebuffer_object") ||
+				gl.isExtensionAvailable("GL_EXT_framebuffer_object")) &&
+				gl.isExtensionAvailable("GL_ARB_pixel_buffer_object");
+	}
+
 	@Override
 	public void display(GLAutoDrawable drawable)
 	{
 		final GL2 gl = drawable.getGL().getGL2();
 
-		if (pickingRequested)
-		{
-			/*
-			Camera camera = cameraController.getCamera();
-			camera.updateFrame();
-
-			gl.glGetIntegerv(GL2.GL_VIEWPORT, viewport, 0);
+		cameraController.display(drawable);
 
-			fireStartPickingMode();
-			gl.glSelectBuffer(selectBuffer.capacity(), selectBuffer);
-			gl.glRenderMode(GL2.GL_SELECT);
+		frame++;
+		if (!initialized)
+		{
+			if (!pickingRequested)
+				return;
+			initialize(gl);
+		}
+		if (!supported)
+		{
+			pickingRequested = false;
+			return;
+		}
 
+		collectPicks(gl);
 
-			gl.glCullFace(GL2.GL_BACK);
-			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+		if (pickingRequested && !readbacks[nextReadback].pending)
+		{
+			pick(drawable, gl, readbacks[nextReadback]);
+			nextReadback = (nextReadback + 1) % NUM_READBACK_BUFFERS;
+		}
+		// otherwise every buffer is still in flight; try again next frame
+	}
 
-			gl.glMatrixMode(GL2.GL_PROJECTION);
-			gl.glLoadIdentity();
-			glu.gluPickMatrix(mousePosition.x, viewport[3] - 1 - mousePosition.y, 2, 2, viewport, 0);
-			camera.doProjection(drawable);
+	private void initialize(GL2 gl)
+	{
+		initialized = true;
+		supported = isSupported(gl);
+		if (!supported)
+		{
+			System.err.println("WARNING: framebuffer or pixel buffer objects not supported, picking disabled");
+			return;
+		}
 
-			gl.glMatrixMode(GL2.GL_MODELVIEW);
-			gl.glLoadIdentity();
-			camera.doModelview(drawable);
+		int [] ids = new int[2];
+		gl.glGenFramebuffers(1, ids, 0);                                     GLError.get(gl, "PIC.init gen fb");
+		framebuffer = ids[0];
+		gl.glGenRenderbuffers(2, ids, 0);                                    GLError.get(gl, "PIC.init gen rb");
+		colorRenderbuffer = ids[0];
+		depthRenderbuffer = ids[1];
+
+		gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, colorRenderbuffer);
+		gl.glRenderbufferStorage(GL2.GL_RENDERBUFFER, GL2.GL_RGBA8, PICK_REGION_SIZE, PICK_REGION_SIZE);
+		gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, depthRenderbuffer);
+		gl.glRenderbufferStorage(GL2.GL_RENDERBUFFER, GL2.GL_DEPTH_COMPONENT24, PICK_REGION_SIZE, PICK_REGION_SIZE);
+		gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, 0);                      GLError.get(gl, "PIC.init rb storage");
+
+		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, framebuffer);
+		gl.glFramebufferRenderbuffer(GL2.GL_FRAMEBUFFER, GL2.GL_COLOR_ATTACHMENT0, GL2.GL_RENDERBUFFER, colorRenderbuffer);
+		gl.glFramebufferRenderbuffer(GL2.GL_FRAMEBUFFER, GL2.GL_DEPTH_ATTACHMENT, GL2.GL_RENDERBUFFER, depthRenderbuffer);
+		gl.glReadBuffer(GL2.GL_COLOR_ATTACHMENT0);
+		int status = gl.glCheckFramebufferStatus(GL2.GL_FRAMEBUFFER);
+		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, 0);                        GLError.get(gl, "PIC.init fb");
+		if (status != GL2.GL_FRAMEBUFFER_COMPLETE)
+		{
+			System.err.println("WARNING: picking framebuffer incomplete (" + status + "), picking disabled");
+			supported = false;
+			return;
+		}
 
-			gl.glGetDoublev(GL2.GL_MODELVIEW_MATRIX, modelView, 0);
-			gl.glGetDoublev(GL2.GL_PROJECTION_MATRIX, projection, 0);
+		ids = new int[NUM_READBACK_BUFFERS];
+		gl.glGenBuffers(NUM_READBACK_BUFFERS, ids, 0);                      GLError.get(gl, "PIC.init gen pbo");
+		for (int i = 0; i < NUM_READBACK_BUFFERS; i++)
+		{
+			readbacks[i] = new Readback();
+			readbacks[i].buffer = ids[i];
+			gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, ids[i]);
+			gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, READBACK_BYTES, null, GL2.GL_STREAM_READ);
+		}
+		gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);                       GLError.get(gl, "PIC.init pbo data");
+	}
 
-			gl.glInitNames();
-			gl.glPushName(0);
+	/**
+	 * Draws the ids around the cursor and starts copying them into the
+	 * given readback buffer.
+	 */
+	private void pick(GLAutoDrawable drawable, GL2 gl, Readback readback)
+	{
+		synchronized (this)
+		{
+			readback.mousePosition.set(mousePosition);
+			readback.mouseNDC.set(mouseNDC);
+			pickingRequested = false;
+		}
+		readback.frame = frame;
+		readback.pending = true;
+
+		Camera camera = cameraController.getCamera();
+		camera.updateFrame();
+		readback.ndcToWorld.mul(camera.getProjection(), camera.getModelView());
+		readback.ndcToWorld.invert();
+
+		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, framebuffer);              GLError.get(gl, "PIC.pick bind fb");
+		gl.glViewport(0, 0, PICK_REGION_SIZE, PICK_REGION_SIZE);
+		gl.glScissor(0, 0, PICK_REGION_SIZE, PICK_REGION_SIZE);
+		gl.glDisable(GL2.GL_DITHER);
+		gl.glClearColor(0, 0, 0, 0);
+		gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);      GLError.get(gl, "PIC.pick clear");
+
+		// a pixel is 2 / width wide in NDC
+		cameraController.setPickRegion(readback.mouseNDC.x, readback.mouseNDC.y,
+				PICK_REGION_SIZE / (float) cameraController.getWidth(),
+				PICK_REGION_SIZE / (float) cameraController.getHeight());
+		fireStartPickingMode();
+		try
+		{
 			cameraController.getDrawer().draw(drawable, cameraController);
-
-			int numHits = gl.glRenderMode(GL2.GL_RENDER);
+		}
+		finally
+		{
 			fireStopPickingMode();
-
-			processHits(gl, numHits);
-			*/
-			// FWDO: picking disabled for the time being
-
-			pickingRequested = false;
+			cameraController.clearPickRegion();
 		}
 
-		cameraController.display(drawable);
-	}
+		gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, readback.buffer);
+		gl.glReadPixels(0, 0, PICK_REGION_SIZE, PICK_REGION_SIZE, GL2.GL_RGBA, GL2.GL_UNSIGNED_BYTE, 0);
+		gl.glReadPixels(0, 0, PICK_REGION_SIZE, PICK_REGION_SIZE, GL2.GL_DEPTH_COMPONENT, GL2.GL_FLOAT, DEPTH_OFFSET);
+		gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);                       GLError.get(gl, "PIC.pick read");
 
-	private double convertDepth(long depth)
-	{
-		if (depth < 0)
-			depth += 0x100000000L;
-		double retVal = ((double) depth) / 0x100000000L;
-		return retVal;
+		gl.glEnable(GL2.GL_DITHER);
+		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, 0);                        GLError.get(gl, "PIC.pick unbind fb");
+		gl.glScissor(cameraController.getLeft(), cameraController.getBottom(),
+				cameraController.getWidth(), cameraController.getHeight());
+		cameraController.setViewport(gl);
 	}
 
-	private void processHits(GL2 gl, int numHits)
+	/**
+	 * Maps the readback buffers whose copies must be done by now, and fires
+	 * objectPicked() for the most recent of them.
+	 */
+	private void collectPicks(GL2 gl)
 	{
-		boolean picked = false;
-
-		double closestZ = Integer.MAX_VALUE;
-		int closestId = 0;
+		Readback latest = null;
+		int latestId = 0;
+		float latestDepth = 1;
+		int latestPixel = 0;
 
-		// Check for any prioritized object IDs first.
-		for (int i_hit = numHits - 1; i_hit >= 0; i_hit--) {
-			int idx = i_hit * 4;
-			int pickId = selectBuffer.get(idx + 3);
-			long depth = selectBuffer.get(idx+1);
-			double pickZ = convertDepth(depth);
-
-			if (prioritizedObjectIds.contains(new Integer(pickId)))
+		for (int i = 0; i < NUM_READBACK_BUFFERS; i++)
+		{
+			Readback readback = readbacks[i];
+			if (!readback.pending || frame - readback.frame < READBACK_DELAY)
+				continue;
+			readback.pending = false;
+			if (latest != null && latest.frame > readback.frame)
+				continue;
+
+			gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, readback.buffer);
+			ByteBuffer data = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+			                                                                 GLError.get(gl, "PIC.collect map");
+			if (data != null)
 			{
-				closestZ = pickZ;
-				closestId = pickId;
-				picked = true;
-				break;
+				data.order(ByteOrder.nativeOrder());
+				int pixel = choosePixel(data);
+				latest = readback;
+				latestPixel = pixel;
+				latestId = pixel < 0 ? 0 : readId(data, pixel);
+				latestDepth = pixel < 0 ? 1 : data.getFloat(DEPTH_OFFSET + 4 * pixel);
+				gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
 			}
+			gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);                   GLError.get(gl, "PIC.collect unmap");
 		}
 
-		// Then objects
-		if (!picked)
+		if (latest == null || latestId == 0)
+			return;
+
+		// back from the pixel to the world, through the full view's projection
+		float ndcX = latest.mouseNDC.x + (2 * (latestPixel % PICK_REGION_SIZE) + 1 - PICK_REGION_SIZE)
+				/ (float) cameraController.getWidth();
+		float ndcY = latest.mouseNDC.y + (2 * (latestPixel / PICK_REGION_SIZE) + 1 - PICK_REGION_SIZE)
+				/ (float) cameraController.getHeight();
+		Vector4f point = new Vector4f(ndcX, ndcY, 2 * latestDepth - 1, 1);
+		latest.ndcToWorld.transform(point);
+		fireObjectPicked(latestId, new Vector3f(point.x / point.w, point.y / point.w, point.z / point.w),
+				new Vector2f(latest.mousePosition));
+	}
+
+	/**
+	 * Index of the pixel of the region to report: the one closest to the
+	 * cursor that shows a prioritized object, or else the one closest to the
+	 * cursor that shows any object, or -1.
+	 */
+	private int choosePixel(ByteBuffer data)
+	{
+		int center = PICK_REGION_SIZE / 2;
+		int best = -1, bestDistance = Integer.MAX_VALUE;
+		boolean bestPrioritized = false;
+
+		for (int i = 0; i < REGION_PIXELS; i++)
 		{
-			closestZ = Integer.MAX_VALUE;
-			for (int i_hit = 0; i_hit < numHits; i_hit++)
+			int id = readId(data, i);
+			if (id == 0)
+				continue;
+			int dx = i % PICK_REGION_SIZE - center, dy = i / PICK_REGION_SIZE - center;
+			int distance = dx * dx + dy * dy;
+			boolean prioritized = prioritizedObjectIds.contains(id);
+			if ((prioritized && !bestPrioritized) || (prioritized == bestPrioritized && distance < bestDistance))
 			{
-				int idx = i_hit * 4;
-
-				int pickId = selectBuffer.get(idx + 3);
-				long depth = selectBuffer.get(idx+1);
-				double pickZ = convertDepth(depth);
-				picked = true;
-
-				if (pickZ < closestZ)
-				{
-					closestZ = pickZ;
-					closestId = pickId;
-				}
+				best = i;
+				bestDistance = distance;
+				bestPrioritized = prioritized;
 			}
 		}
+		return best;
+	}
 
-		if (picked)
+	private static int readId(ByteBuffer data, int pixel)
+	{
+		int o = 4 * pixel;
+		return (data.get(o) & 0xff) | (data.get(o+1) & 0xff) << 8
+				| (data.get(o+2) & 0xff) << 16 | (data.get(o+3) & 0xff) << 24;
+	}
+
+	@Override
+	public void dispose(GLAutoDrawable drawable)
+	{
+		if (initialized && supported)
 		{
-			glu.gluUnProject(mousePosition.x, viewport[3] - 1 - mousePosition.y, closestZ,
-					modelView, 0,
-					projection, 0,
-					viewport, 0,
-					pickPosition, 0);
-
-			fireObjectPicked(closestId, new Vector3f(
-					(float)pickPosition[0], (float)pickPosition[1], (float)pickPosition[2]),
-					mousePosition);
+			final GL2 gl = drawable.getGL().getGL2();
+			gl.glDeleteFramebuffers(1, new int [] { framebuffer }, 0);
+			gl.glDeleteRenderbuffers(2, new int [] { colorRenderbuffer, depthRenderbuffer }, 0);
+			for (int i = 0; i < NUM_READBACK_BUFFERS; i++)
+				gl.glDeleteBuffers(1, new int [] { readbacks[i].buffer }, 0);
 		}
+		initialized = false;
+		cameraController.dispose(drawable);
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable arg0)
+	public void init(GLAutoDrawable drawable)
 	{
-		cameraController.dispose(arg0);
+		cameraController.init(drawable);
 	}
 
 	@Override
-	public void init(GLAutoDrawable arg0)
+	public void reshape(GLAutoDrawable drawable, int x, int y, int width,
+			int height)
 	{
-		cameraController.init(arg0);
-		glu = new GLU();
+		super.reshape(drawable, x, y, width, height);
+		cameraController.reshape(drawable, x, y, width, height);
 	}
 
 	@Override
-	public void reshape(GLAutoDrawable arg0, int arg1, int arg2, int arg3,
-			int arg4)
+	public void setOnlyController(boolean onlyController)
 	{
-		cameraController.reshape(arg0, arg1, arg2, arg3, arg4);
+		super.setOnlyController(onlyController);
+		cameraController.setOnlyController(onlyController);
 	}
 
 	protected boolean isFlagSet(MouseEvent e, int flag) {
 		return (e.getModifiersEx() & flag) == flag;
 	}
 
+	private synchronized void requestPick(MouseEvent e)
+	{
+		mousePosition.set(e.getX(), e.getY());
+		cameraController.mouseToNDC(e, mouseNDC);
+		pickingRequested = true;
+	}
+
 	@Override
 	public void mouseClicked(MouseEvent e)
 	{
@@ -211,8 +397,6 @@ public class PickingController implements GLController
 	@Override
 	public void mousePressed(MouseEvent e)
 	{
-		mousePosition.set(e.getX(), e.getY());
-
 		if (isFlagSet(e, MouseEvent.BUTTON1_DOWN_MASK) &&
 				!isFlagSet(e, MouseEvent.BUTTON2_DOWN_MASK) &&
 				!isFlagSet(e, MouseEvent.BUTTON3_DOWN_MASK))
@@ -221,13 +405,9 @@ public class PickingController implements GLController
 					!isFlagSet(e, MouseEvent.CTRL_DOWN_MASK) &&
 					!isFlagSet(e, MouseEvent.SHIFT_DOWN_MASK))
 			{
-				pickingRequested = true;
+				requestPick(e);
 			}
 		}
-		else
-		{
-			pickingRequested = false;
-		}
 
 		cameraController.mousePressed(e);
 	}
@@ -235,7 +415,6 @@ public class PickingController implements GLController
 	@Override
 	public void mouseReleased(MouseEvent arg0)
 	{
-		pickingRequested = false;
 		cameraController.mouseReleased(arg0);
 	}
 
@@ -246,9 +425,11 @@ public class PickingController implements GLController
 	}
 
 	@Override
-	public void mouseMoved(MouseEvent arg0)
+	public void mouseMoved(MouseEvent e)
 	{
-		cameraController.mouseMoved(arg0);
+		if (hoverPicking)
+			requestPick(e);
+		cameraController.mouseMoved(e);
 	}
 
 	@Override
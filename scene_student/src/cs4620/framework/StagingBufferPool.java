@@ -0,0 +1,101 @@
+package cs4620.framework;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.jogamp.common.nio.Buffers;
+
+/*
+ * A pool of direct (native memory) buffers used to stage data on its way
+ * from Java arrays into GL buffers. Direct buffers are expensive to create
+ * and are only freed by the garbage collector, so allocating one per upload
+ * (e.g. for every mesh, every time the tolerance changes) builds up native
+ * memory pressure and long collections. Instead, uploads borrow a buffer
+ * with acquire() and give it back with release() once GL has copied it.
+ *
+ * Buffers come in power-of-two size classes. At most MAX_POOLED_BYTES are
+ * kept around; anything beyond that is left to the garbage collector.
+ */
+
+public class StagingBufferPool {
+
+	private static final int MIN_SIZE_CLASS = 12;  // 4 KB
+	private static final int MAX_SIZE_CLASS = 30;  // 1 GB
+	private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final ArrayList<ByteBuffer> [] free = new ArrayList[MAX_SIZE_CLASS + 1];
+	private static long pooledBytes = 0;
+
+	private static long numAllocations = 0;
+	private static long numReuses = 0;
+
+	/**
+	 * Returns a cleared, native-order direct buffer of at least numBytes
+	 * bytes, with its limit set to numBytes.
+	 */
+	public static synchronized ByteBuffer acquire(int numBytes)
+	{
+		int sizeClass = sizeClassFor(numBytes);
+		ByteBuffer buffer = null;
+
+		if (sizeClass <= MAX_SIZE_CLASS && free[sizeClass] != null && !free[sizeClass].isEmpty())
+		{
+			buffer = free[sizeClass].remove(free[sizeClass].size() - 1);
+			pooledBytes -= buffer.capacity();
+			numReuses++;
+		}
+		else
+		{
+			int capacity = sizeClass <= MAX_SIZE_CLASS ? 1 << sizeClass : numBytes;
+			buffer = Buffers.newDirectByteBuffer(capacity);
+			numAllocations++;
+		}
+
+		buffer.clear();
+		buffer.limit(numBytes);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer obtained from acquire() back to the pool. The caller must
+	 * not use it, or any view of it, afterwards.
+	 */
+	public static synchronized void release(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClassFor(capacity);
+		if (sizeClass > MAX_SIZE_CLASS || (1 << sizeClass) != capacity)
+			return; // not one of ours
+		if (pooledBytes + capacity > MAX_POOLED_BYTES)
+			return;
+
+		if (free[sizeClass] == null)
+			free[sizeClass] = new ArrayList<ByteBuffer>();
+		free[sizeClass].add(buffer);
+		pooledBytes += capacity;
+	}
+
+	private static int sizeClassFor(int numBytes)
+	{
+		int sizeClass = MIN_SIZE_CLASS;
+		while (sizeClass <= MAX_SIZE_CLASS && (1 << sizeClass) < numBytes)
+			sizeClass++;
+		return sizeClass;
+	}
+
+	public static synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	public static synchronized long getNumAllocations()
+	{
+		return numAllocations;
+	}
+
+	public static synchronized long getNumReuses()
+	{
+		return numReuses;
+	}
+}
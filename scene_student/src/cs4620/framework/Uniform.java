@@ -10,6 +10,8 @@ import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 import javax.vecmath.Vector4f;
 
+import com.jogamp.common.nio.Buffers;
+
 /*
  * Represents a uniform variable found in a shader program. The main
  * purpose of this class is to update the values of uniforms in a program.
@@ -31,6 +33,9 @@ import javax.vecmath.Vector4f;
  *    currently-bound program in the background before and after calling
  *    gl.glUniform*() so that the correct program's uniform is set. )
  * 
+ * Each uniform remembers the last value it was given. Setting the same
+ * value again is skipped entirely, since the program keeps the value
+ * anyway; this makes it cheap to set uniforms before every draw.
  */
 
 public class Uniform {
@@ -45,6 +50,16 @@ public class Uniform {
 	
 	private Boolean isRowMajor;
 	
+	// Shadow copy of the last value sent to GL, as raw int/float bits. A set
+	// call with the same value as last time is dropped without touching GL.
+	private int [] shadow = new int[0];
+	private boolean hasValue = false;
+	private boolean changed;
+	
+	// staging space for the array and matrix setters; uniforms are only ever
+	// set from the GL thread, so one buffer serves all of them
+	private static FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(64);
+	
 	public Uniform(GL2 gl, Program prog, int index) {
 		this.program = prog;
 		//gl = glContext;
@@ -120,117 +135,202 @@ public class Uniform {
 		return name;
 	}
 	
+	/**
+	 * Forgets the last value set, so that the next set*() call always
+	 * reaches GL. Needed only if the uniform was changed behind this
+	 * object's back.
+	 */
+	public void invalidate() {
+		hasValue = false;
+	}
+	
+	// Shadow copy handling. A setter calls beginCheck() with the number of
+	// scalars it sets, check() for each of them, and endCheck() to find out
+	// whether any differed from the last value sent to GL.
+	
+	private void beginCheck(int numValues) {
+		if (shadow.length < numValues)
+		{
+			shadow = new int[numValues];
+			hasValue = false;
+		}
+		changed = !hasValue;
+	}
+	
+	private void check(int i, int value) {
+		if (shadow[i] != value)
+		{
+			shadow[i] = value;
+			changed = true;
+		}
+	}
+	
+	private void check(int i, float value) {
+		check(i, Float.floatToRawIntBits(value));
+	}
+	
+	private boolean endCheck() {
+		hasValue = true;
+		return changed;
+	}
+	
+	private static FloatBuffer scratch(int numFloats) {
+		if (scratchBuffer.capacity() < numFloats)
+			scratchBuffer = Buffers.newDirectFloatBuffer(Math.max(numFloats, 2 * scratchBuffer.capacity()));
+		scratchBuffer.clear();
+		return scratchBuffer;
+	}
+	
 	public void set1Int(GL2 gl, int x) {
+		beginCheck(1);
+		check(0, x);
+		if (!endCheck() || location < 0) return;
+		
 		Program other = Program.swap(gl, program);
         gl.glUniform1i(this.location, x);                               GLError.get(gl, "UNF.s1I");
         Program.swap(gl, other);
     }
     
     public void set2Int(GL2 gl, int x, int y) {
+		beginCheck(2);
+		check(0, x); check(1, y);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform2i(this.location, x, y);    	                     GLError.get(gl, "UNF.s2I");
     	Program.swap(gl, other);
     }
     
     public void set3Int(GL2 gl, int x, int y, int z) {
+		beginCheck(3);
+		check(0, x); check(1, y); check(2, z);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform3i(this.location, x, y, z);                         GLError.get(gl, "UNF.s3I");
     	Program.swap(gl, other);
     }
     
     public void set4Int(GL2 gl, int x, int y, int z, int w) {
+		beginCheck(4);
+		check(0, x); check(1, y); check(2, z); check(3, w);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform4i(this.location, x, y, z, w);                      GLError.get(gl, "UNF.s4I");
     	Program.swap(gl, other);
     }
 
     public void set1Float(GL2 gl, float x) {
+		beginCheck(1);
+		check(0, x);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform1f(this.location, x);                               GLError.get(gl, "UNF.s1F");
     	Program.swap(gl, other);
     }
     
     public void set2Float(GL2 gl, float x, float y) {
+		beginCheck(2);
+		check(0, x); check(1, y);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform2f(this.location, x, y);                            GLError.get(gl, "UNF.s2F");
     	Program.swap(gl, other);
     }
     
     public void set3Float(GL2 gl, float x, float y, float z) {
+		beginCheck(3);
+		check(0, x); check(1, y); check(2, z);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform3f(this.location, x, y, z);                         GLError.get(gl, "UNF.s3F");
     	Program.swap(gl, other);
     }
     
     public void set4Float(GL2 gl, float x, float y, float z, float w) {
+		beginCheck(4);
+		check(0, x); check(1, y); check(2, z); check(3, w);
+		if (!endCheck() || location < 0) return;
+		
     	Program other = Program.swap(gl, program);
     	gl.glUniform4f(this.location, x, y, z, w);                      GLError.get(gl, "UNF.s4F");
     	Program.swap(gl, other);
     }
     
     public void setVector2(GL2 gl, Vector2f v) {
-    	Program other = Program.swap(gl, program);
-        gl.glUniform2f(this.location, v.x, v.y);                        GLError.get(gl, "UNF.sV2");
-        Program.swap(gl, other);
+    	set2Float(gl, v.x, v.y);
     }
     
     public void setVector3(GL2 gl, Vector3f v) {
-    	Program other = Program.swap(gl, program);
-    	gl.glUniform3f(this.location, v.x, v.y, v.z);                   GLError.get(gl, "UNF.sV3");
-    	Program.swap(gl, other);
+    	set3Float(gl, v.x, v.y, v.z);
     }
     
     public void setVector3Array(GL2 gl, Vector3f [] va)
     {
-    	Program other = Program.swap(gl, program);
-    	float [] vectorData = new float [3 * va.length];
+		beginCheck(3 * va.length);
+		FloatBuffer buf = scratch(3 * va.length);
     	for (int i = 0; i < va.length; i++)
     	{
-    		vectorData[3*i + 0] = va[i].x;
-    		vectorData[3*i + 1] = va[i].y;
-    		vectorData[3*i + 2] = va[i].z;
+    		check(3*i + 0, va[i].x);
+    		check(3*i + 1, va[i].y);
+    		check(3*i + 2, va[i].z);
+    		buf.put(va[i].x).put(va[i].y).put(va[i].z);
     	}
-    	//gl.glUniform3fv(this.location, va.length, vectorData, 0);       GLError.get(gl, "UNF.sV3A");
-    	gl.glUniform3fvARB(this.location, va.length, vectorData, 0);    GLError.get(gl, "UNF.sV3A");
+		if (!endCheck() || location < 0) return;
+		buf.flip();
+		
+    	Program other = Program.swap(gl, program);
+    	//gl.glUniform3fv(this.location, va.length, buf);                 GLError.get(gl, "UNF.sV3A");
+    	gl.glUniform3fvARB(this.location, va.length, buf);              GLError.get(gl, "UNF.sV3A");
     	Program.swap(gl, other);
     }
     
     public void setVector4(GL2 gl, Vector4f v) {
-    	Program other = Program.swap(gl, program);
-    	gl.glUniform4f(this.location, v.x, v.y, v.z, v.w);              GLError.get(gl, "UNF.sV4");
-    	Program.swap(gl, other);
+    	set4Float(gl, v.x, v.y, v.z, v.w);
     }
     
     public void setMatrix3(GL2 gl, Matrix3f mat) {
-    	Program other = Program.swap(gl, program);
-    	FloatBuffer buf = FloatBuffer.allocate(9);
+		beginCheck(9);
+    	FloatBuffer buf = scratch(9);
     	
     	// We will pass the matrix elements in column major order
     	for (int c = 0; c < 3; ++c) {
     		for (int r = 0; r < 3; ++r) {
-    			buf.put(mat.getElement(r, c));
+    			float value = mat.getElement(r, c);
+    			check(3*c + r, value);
+    			buf.put(value);
     		}
     	}
+		if (!endCheck() || location < 0) return;
     	
     	buf.flip();
     	
+    	Program other = Program.swap(gl, program);
     	gl.glUniformMatrix3fv(this.location, 1, false, buf);            GLError.get(gl, "UNF.sM3");
     	Program.swap(gl, other);
     }
     
     public void setMatrix4(GL2 gl, Matrix4f mat) {
-    	Program other = Program.swap(gl, program);
-    	FloatBuffer buf = FloatBuffer.allocate(16);
+		beginCheck(16);
+    	FloatBuffer buf = scratch(16);
     	
     	// We will pass the matrix elements in column major order
     	for (int c = 0; c < 4; ++c) {
     		for (int r = 0; r < 4; ++r) {
-    			buf.put(mat.getElement(r, c));
+    			float value = mat.getElement(r, c);
+    			check(4*c + r, value);
+    			buf.put(value);
     		}
     	}
+		if (!endCheck() || location < 0) return;
     	
     	buf.flip();
     	
+    	Program other = Program.swap(gl, program);
     	gl.glUniformMatrix4fv(this.location, 1, false, buf);            GLError.get(gl, "UNF.sM4");
     	Program.swap(gl, other);
     }
@@ -13,6 +13,11 @@ import javax.media.opengl.GL2;
  * Note that multiple vertex arrays are allowed to use the same
  * vertex buffer, and that vertex buffers are used "by reference"
  * in vertex arrays (changes made to the buffer are seen by the array).
+ * A buffer of interleaved vertices (see VertexLayout) feeds several
+ * attributes at once, each read with the stride and offset of its layout.
+ * With primitive restart on, IndexBuffer.RESTART_INDEX in the index
+ * buffer starts a new primitive, so e.g. many triangle strips can be
+ * drawn with one call.
  * Technically, the OpenGL context has global state of which vertex
  * array is currently bound; this is abstracted away within draw().
  * 
@@ -28,24 +33,34 @@ import javax.media.opengl.GL2;
 public class VertexArray {
 	
 	private int id;           // GL id of object
+	private final int serial; // distinct for every vertex array created, see getSerial()
 	private int geometryType; // e.g. GL2.GL_TRIANGLES
+	private boolean primitiveRestart;
 	//private boolean hasIndex; // does VAO have an index array?
 	
 	private static boolean checkedSupport = false;
 	private static boolean supportsVAOs = true; // if false, can emulate functionality
+	private static boolean supportsRestart = false;
 	private static final boolean RESET_INDICES = true; // re-send indices / element array every time, even if using VAO
 	
 	// can lookup via glGetInteger(GL_MAX_VERTEX_ATTRIB_BINDINGS), but "will almost certainly be 16"
 	// ( http://www.opengl.org/wiki/Vertex_Specification#Separate_attribute_format )
 	private static final int MAX_ATTRIBUTES = 16;
 	
+	private static int nextSerial = 1;
+	
 	private IndexBuffer indexBuffer;
 	private VertexBuffer [] vertexBuffers = new VertexBuffer[MAX_ATTRIBUTES];
+	private VertexLayout.Attribute [] attributes = new VertexLayout.Attribute[MAX_ATTRIBUTES];
 	
 	public VertexArray(GL2 gl, int in_geometryType)
 	{
 		staticInitialization(gl);
 		
+		synchronized(VertexArray.class)
+		{
+			serial = nextSerial++;
+		}
 		indexBuffer = null;
 		geometryType = in_geometryType;
 		
@@ -71,12 +86,61 @@ public class VertexArray {
 			supportsVAOs = gl.isExtensionAvailable("GL_ARB_vertex_array_object");
 			// WARNING: there's an Apple-specific vertex array object extension, but don't trust it!
 			// JOGL doesn't load that extension by default.
+			
+			// primitive restart is core since OpenGL 3.1
+			supportsRestart = gl.isFunctionAvailable("glPrimitiveRestartIndex");
 		}
 	}
 	
+	/**
+	 * Whether setPrimitiveRestart() can be used. Callers must have another
+	 * way to draw their geometry otherwise, e.g. as separate triangles.
+	 */
+	public static boolean supportsPrimitiveRestart(GL2 gl)
+	{
+		staticInitialization(gl);
+		return supportsRestart;
+	}
+	
+	public void setGeometryType(int in_geometryType)
+	{
+		geometryType = in_geometryType;
+	}
+	
+	public int getGeometryType()
+	{
+		return geometryType;
+	}
+	
+	/**
+	 * Turns primitive restart on or off for the draws of this array. Only
+	 * allowed if supportsPrimitiveRestart().
+	 */
+	public void setPrimitiveRestart(boolean restart)
+	{
+		if(restart && !supportsRestart)
+			throw new Error("Primitive restart is not supported.");
+		primitiveRestart = restart;
+	}
+	
+	/**
+	 * Feeds the attribute at index from buffer. If the buffer has a layout,
+	 * the attribute is read as the layout describes it.
+	 */
 	public void setAttributeBuffer(GL2 gl, int index, VertexBuffer buffer)
 	{
+		VertexLayout.Attribute attribute;
+		if(buffer.getLayout() != null)
+		{
+			attribute = buffer.getLayout().getAttributeAt(index);
+			if(attribute == null)
+				throw new Error("Vertex buffer's layout has no attribute " + index + ".");
+		}
+		else
+			attribute = new VertexLayout.Attribute(index, buffer.getNumComponents(), buffer.getFormat(), false, 0);
+		
 		vertexBuffers[index] = buffer;
+		attributes[index] = attribute;
 		
 		if(supportsVAOs)
 		{
@@ -86,9 +150,7 @@ public class VertexArray {
 			
 			// configure
 			gl.glEnableVertexAttribArray(index);                             GLError.get(gl, "VAO.sAB enable attr");
-			                                                                                  //stride, offset
-			gl.glVertexAttribPointer(index, buffer.getNumComponents(), buffer.getFormat(), false, 0, (long) 0);
-			                                                                 GLError.get(gl, "VAO.sAB ptr");
+			setAttributePointer(gl, index);                                  GLError.get(gl, "VAO.sAB ptr");
 			
 			// unbind
 			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                         GLError.get(gl, "VAO.sAB unbind buffer");
@@ -96,6 +158,26 @@ public class VertexArray {
 		}
 	}
 	
+	/**
+	 * Feeds every attribute of the buffer's layout from the buffer.
+	 */
+	public void setInterleavedBuffer(GL2 gl, VertexBuffer buffer)
+	{
+		VertexLayout layout = buffer.getLayout();
+		for(int i = 0; i < layout.getNumAttributes(); i++)
+			setAttributeBuffer(gl, layout.getAttribute(i).getIndex(), buffer);
+	}
+	
+	// points the attribute at index into its buffer, which must be bound
+	private void setAttributePointer(GL2 gl, int index)
+	{
+		VertexLayout.Attribute attribute = attributes[index];
+		VertexLayout layout = vertexBuffers[index].getLayout();
+		int stride = layout == null ? 0 : layout.getStride();
+		gl.glVertexAttribPointer(index, attribute.getNumComponents(), attribute.getType(),
+				attribute.isNormalized(), stride, (long) attribute.getOffset());
+	}
+	
 	public VertexBuffer getAttributeBuffer(int index)
 	{
 		return vertexBuffers[index];
@@ -104,6 +186,7 @@ public class VertexArray {
 	public void unsetAttributeBuffer(GL2 gl, int index)
 	{
 		vertexBuffers[index] = null;
+		attributes[index] = null;
 		
 		if(supportsVAOs)
 		{
@@ -180,9 +263,7 @@ public class VertexArray {
 			
 			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buf.getId());
 			gl.glEnableVertexAttribArray(i);                                 GLError.get(gl, "VAO.sAllB enable attr");
-                                                                                     //stride, offset
-			gl.glVertexAttribPointer(i, buf.getNumComponents(), buf.getFormat(), false, 0, (long) 0);
-			                                                                 GLError.get(gl, "VAO.sAllB ptr");
+			setAttributePointer(gl, i);                                      GLError.get(gl, "VAO.sAllB ptr");
 		}
 	}
 	
@@ -201,16 +282,43 @@ public class VertexArray {
 	}
 	
 	public void draw(GL2 gl)
+	{
+		drawHelper(gl, null);
+	}
+	
+	/**
+	 * Draws one copy of the geometry for every instance in the given buffer,
+	 * with a single draw call. The instance buffer's attributes are only
+	 * enabled for the duration of the call.
+	 */
+	public void drawInstanced(GL2 gl, InstanceBuffer instances)
+	{
+		if(instances.getNumInstances() == 0)
+			return;
+		drawHelper(gl, instances);
+	}
+	
+	private void drawHelper(GL2 gl, InstanceBuffer instances)
+	{
+		bind(gl);
+		if(instances != null)
+			instances.enable(gl);
+		drawBound(gl, instances);
+		if(instances != null)
+			instances.disable(gl);
+		unbind(gl);
+	}
+	
+	/**
+	 * Makes this the vertex array that drawBound() draws, until unbind().
+	 * Lets a caller draw the same geometry several times in a row (e.g. with
+	 * different transformations) without rebinding it for each draw.
+	 */
+	public void bind(GL2 gl)
 	{
 		// NOTE: the lines that bind and unbind to the GL_ELEMENT_ARRAY_BUFFER target would not normally
 		// be needed when VAOs are supported -- see comment in setIndexBuffer().
 		
-		if(!Program.isAProgramInUse())
-		{
-			System.err.println("WARNING: running VertexArray.draw() with no bound shader program!");
-		}
-		
-		// bind
 		if(supportsVAOs)
 		{
 			gl.glBindVertexArray(id);                                        GLError.get(gl, "VAO.draw bind");
@@ -218,6 +326,34 @@ public class VertexArray {
 		else
 			setupAllBuffers(gl);
 		
+		if(indexBuffer != null && (!supportsVAOs || RESET_INDICES))
+		{
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getId());
+			                                                                 GLError.get(gl, "VAO.draw bind ibuf");
+		}
+		
+		if(primitiveRestart && indexBuffer != null)
+		{
+			gl.glEnable(GL2.GL_PRIMITIVE_RESTART);                           GLError.get(gl, "VAO.draw enable restart");
+			gl.glPrimitiveRestartIndex(indexBuffer.getRestartIndex());       GLError.get(gl, "VAO.draw restart index");
+		}
+	}
+	
+	/**
+	 * Draws the geometry, which must have been bound with bind().
+	 */
+	public void drawBound(GL2 gl)
+	{
+		drawBound(gl, null);
+	}
+	
+	private void drawBound(GL2 gl, InstanceBuffer instances)
+	{
+		if(!Program.isAProgramInUse())
+		{
+			System.err.println("WARNING: running VertexArray.draw() with no bound shader program!");
+		}
+		
 		// draw
 		if(indexBuffer != null)
 		{
@@ -227,27 +363,49 @@ public class VertexArray {
 				System.err.println("WARNING: Buffer(s) have insufficient elements for index buffer");
 			}
 			
-			if(!supportsVAOs || RESET_INDICES)
+			if(instances == null)
 			{
-				gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getId());
-				                                                             GLError.get(gl, "VAO.draw bind ibuf");
+				//                                                                                     offset
+				gl.glDrawElements(geometryType, indexBuffer.getNumElements(), indexBuffer.getFormat(), 0);
+				                                                             GLError.get(gl, "VAO.draw indexed");
 			}
-			//                                                                                     offset
-			gl.glDrawElements(geometryType, indexBuffer.getNumElements(), indexBuffer.getFormat(), 0);
-			                                                                 GLError.get(gl, "VAO.draw indexed");
-			if(!supportsVAOs || RESET_INDICES)
+			else
 			{
-				gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);             GLError.get(gl, "VAO.draw unbind ibuf");
+				gl.glDrawElementsInstanced(geometryType, indexBuffer.getNumElements(), indexBuffer.getFormat(), 0,
+						instances.getNumInstances());                        GLError.get(gl, "VAO.draw indexed instanced");
 			}
 		}
 		else
 		{
 			// by default, use the minimum of the numbers of vertices of the buffers
-			//                           start   stop
-			gl.glDrawArrays(geometryType, 0, getMinVertexCount(true));       GLError.get(gl, "VAO.draw draw");
+			if(instances == null)
+			{
+				//                           start   stop
+				gl.glDrawArrays(geometryType, 0, getMinVertexCount(true));   GLError.get(gl, "VAO.draw draw");
+			}
+			else
+			{
+				gl.glDrawArraysInstanced(geometryType, 0, getMinVertexCount(true), instances.getNumInstances());
+				                                                             GLError.get(gl, "VAO.draw draw instanced");
+			}
+		}
+	}
+	
+	/**
+	 * Undoes bind().
+	 */
+	public void unbind(GL2 gl)
+	{
+		if(primitiveRestart && indexBuffer != null)
+		{
+			gl.glDisable(GL2.GL_PRIMITIVE_RESTART);                          GLError.get(gl, "VAO.draw disable restart");
+		}
+		
+		if(indexBuffer != null && (!supportsVAOs || RESET_INDICES))
+		{
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);                 GLError.get(gl, "VAO.draw unbind ibuf");
 		}
 		
-		// unbind
 		if(supportsVAOs)
 		{
 			gl.glBindVertexArray(0);                                             GLError.get(gl, "VAO.draw unbind");
@@ -256,6 +414,35 @@ public class VertexArray {
 			teardownAllBuffers(gl);
 	}
 	
+	/**
+	 * A number identifying this vertex array, unlike getId() also when
+	 * vertex array objects are emulated. Used to sort draws by geometry.
+	 */
+	public int getSerial()
+	{
+		return serial;
+	}
+	
+	/**
+	 * Frees the GL vertex array object. The buffers attached to it are not
+	 * deleted, since they may be shared with other vertex arrays.
+	 */
+	public void delete(GL2 gl)
+	{
+		if(supportsVAOs)
+		{
+			int [] idBuf = {id};
+			gl.glDeleteVertexArrays(1, idBuf, 0);                            GLError.get(gl, "VAO.delete");
+		}
+		id = 0;
+		indexBuffer = null;
+		for (int i = 0; i < MAX_ATTRIBUTES; i++)
+		{
+			vertexBuffers[i] = null;
+			attributes[i] = null;
+		}
+	}
+	
 	private int getMinVertexCount(boolean warnInconsistent) {
 		// get the smallest number of vertices found in any of the bound vertex buffers
 		boolean foundBuffer = false;
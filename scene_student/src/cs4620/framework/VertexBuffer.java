@@ -1,13 +1,12 @@
 package cs4620.framework;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 
 import javax.media.opengl.GL2;
 
-import com.jogamp.common.nio.Buffers;
-
 /*
  * Encapsulates an OpenGL (vertex) buffer. The buffer is simply an
  * array of values of some data type that is managed by OpenGL. In the
@@ -15,8 +14,10 @@ import com.jogamp.common.nio.Buffers;
  * such as position or texture coordinate and (2) vertex indices for use
  * with vertex array objects.
  * 
- * For simplicity's sake this abstraction limits the use of the buffer, e.g.
- * by ignoring stride/offset. The abstraction also hides the fact that
+ * A buffer holds either values of one type, numComponents per vertex, or
+ * whole vertices laid out as described by a VertexLayout, in which case
+ * each element is one vertex of layout.getStride() bytes and the data is
+ * given as bytes. The abstraction also hides the fact that
  * OpenGL has a global state of the currently bound array buffer; buffers
  * are bound and immediately unbound after use in the implementations below.
  */
@@ -26,6 +27,7 @@ public class VertexBuffer {
 	private int id;            // GL id of object
 	private int format;        // e.g. GL2.GL_FLOAT
 	private int numComponents; // number of components in vector, e.g. 3
+	private VertexLayout layout; // null unless the buffer holds interleaved vertices
 	// Number of indexable, ready-to-draw elements in buffer, given number of components.
 	// The buffer may have more capacity than this; see numAllocatedElements.
 	private int numElements;
@@ -63,6 +65,23 @@ public class VertexBuffer {
 		setData(gl, data);
 	}
 	
+	/**
+	 * Creates an empty buffer of interleaved vertices with the given layout,
+	 * to be filled with the ByteBuffer setters.
+	 */
+	public VertexBuffer(GL2 gl, VertexLayout in_layout)
+	{
+		// one element per vertex, of stride unsigned bytes
+		format = GL2.GL_UNSIGNED_BYTE;
+		numComponents = in_layout.getStride();
+		layout = in_layout;
+		
+		// gen buffer
+		int [] idBuf = {-1};
+		gl.glGenBuffers(1, idBuf, 0);                                        GLError.get(gl, "VBO.init gen");
+		id = idBuf[0];
+	}
+	
 	public void allocateSpace(GL2 gl, int numBytes)
 	{
 		numElements = 0;
@@ -112,63 +131,80 @@ public class VertexBuffer {
 	
 	public void setData(GL2 gl, float [] data)
 	{
-		if(format != GL2.GL_FLOAT)
+		// contents for buffer, staged in pooled native memory
+		ByteBuffer staging = StagingBufferPool.acquire(4 * data.length);
+		try
 		{
-			System.err.println("WARNING: setting float data to non-float buffer!");
+			FloatBuffer bufData = staging.asFloatBuffer();
+			bufData.put(data);
+			bufData.rewind();
+			
+			setData(gl, bufData);
 		}
-		
-		numElements = data.length / numComponents;
-		numAllocatedElements = numElements;
-		
-		if (data.length % numComponents != 0)
+		finally
 		{
-			System.err.println("WARNING: Input data is not multiple of numComponents");
+			StagingBufferPool.release(staging);
 		}
-		int byteLength = data.length * numBytesFor(format);
-		
-		// contents for buffer
-		FloatBuffer bufData = Buffers.newDirectFloatBuffer(data.length);
-		bufData.put(data);
-		bufData.rewind();
-		
-		// bind / fill buffer
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "VBO.sD bind");
-		gl.glBufferData(GL2.GL_ARRAY_BUFFER, byteLength, bufData, DRAW_MODE);
-		                                                                     GLError.get(gl, "VBO.sD data");
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "VBO.sD unbind");
 	}
 	
-	public void setSubData(GL2 gl, float [] data)
+	/**
+	 * Set data from the remaining elements of a buffer. Direct buffers (e.g. a
+	 * memory-mapped file) are handed to GL as they are, without any copy.
+	 */
+	
+	public void setData(GL2 gl, FloatBuffer data)
 	{
 		if(format != GL2.GL_FLOAT)
 		{
 			System.err.println("WARNING: setting float data to non-float buffer!");
 		}
 		
-		if (data.length > numAllocatedElements * numComponents)
+		upload(gl, data, data.remaining());
+	}
+	
+	public void setSubData(GL2 gl, float [] data)
+	{
+		// contents for buffer, staged in pooled native memory
+		ByteBuffer staging = StagingBufferPool.acquire(4 * data.length);
+		try
 		{
-			System.err.println("WARNING: tried to write more data than buffer can fit");
-			return;
+			FloatBuffer bufData = staging.asFloatBuffer();
+			bufData.put(data);
+			bufData.rewind();
+			
+			setSubData(gl, bufData);
+		}
+		finally
+		{
+			StagingBufferPool.release(staging);
+		}
+	}
+	
+	public void setSubData(GL2 gl, FloatBuffer data)
+	{
+		if(format != GL2.GL_FLOAT)
+		{
+			System.err.println("WARNING: setting float data to non-float buffer!");
 		}
 		
-		numElements = data.length / numComponents;
-		
-		if (data.length % numComponents != 0)
+		uploadSub(gl, data, data.remaining());
+	}
+	
+	/**
+	 * Set data, reusing the previously allocated memory if possible.
+	 */
+	
+	public void smartSetData(GL2 gl, FloatBuffer data)
+	{
+		if(format != GL2.GL_FLOAT)
 		{
-			System.err.println("WARNING: Input data is not multiple of numComponents");
+			System.err.println("WARNING: setting float data to non-float buffer!");
 		}
-		int byteLength = data.length * numBytesFor(format);
 		
-		// contents for buffer
-		FloatBuffer bufData = Buffers.newDirectFloatBuffer(data.length);
-		bufData.put(data);
-		bufData.rewind();
+		int numDesiredElements = data.remaining() / numComponents;
+		resizeIfNeeded(gl, numDesiredElements);
 		
-		// bind / fill buffer
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "VBO.sSD bind");
-		gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, 0, byteLength, bufData);
-		                                                                     GLError.get(gl, "VBO.sSD subdata");
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "VBO.sSD unbind");
+		setSubData(gl, data);
 	}
 	
 	/**
@@ -189,25 +225,120 @@ public class VertexBuffer {
 	}
 	
 	public void setData(GL2 gl, int [] data)
+	{
+		// contents for buffer, staged in pooled native memory
+		ByteBuffer staging = StagingBufferPool.acquire(4 * data.length);
+		try
+		{
+			IntBuffer bufData = staging.asIntBuffer();
+			bufData.put(data);
+			bufData.rewind();
+			
+			setData(gl, bufData);
+		}
+		finally
+		{
+			StagingBufferPool.release(staging);
+		}
+	}
+	
+	/**
+	 * Set data from the remaining elements of a buffer. Direct buffers (e.g. a
+	 * memory-mapped file) are handed to GL as they are, without any copy.
+	 */
+	
+	public void setData(GL2 gl, IntBuffer data)
+	{
+		if(format != GL2.GL_UNSIGNED_INT)
+		{
+			System.err.println("WARNING: setting int data to non-int buffer!");
+		}
+		
+		upload(gl, data, data.remaining());
+	}
+	
+	public void setSubData(GL2 gl, int [] data)
+	{
+		// contents for buffer, staged in pooled native memory
+		ByteBuffer staging = StagingBufferPool.acquire(4 * data.length);
+		try
+		{
+			IntBuffer bufData = staging.asIntBuffer();
+			bufData.put(data);
+			bufData.rewind();
+			
+			setSubData(gl, bufData);
+		}
+		finally
+		{
+			StagingBufferPool.release(staging);
+		}
+	}
+	
+	public void setSubData(GL2 gl, IntBuffer data)
+	{
+		if(format != GL2.GL_UNSIGNED_INT)
+		{
+			System.err.println("WARNING: setting int data to non-int buffer!");
+		}
+		
+		uploadSub(gl, data, data.remaining());
+	}
+	
+	/**
+	 * Set data, reusing the previously allocated memory if possible.
+	 */
+	
+	public void smartSetData(GL2 gl, IntBuffer data)
 	{
 		if(format != GL2.GL_UNSIGNED_INT)
 		{
 			System.err.println("WARNING: setting int data to non-int buffer!");
 		}
 		
-		numElements = data.length / numComponents;
+		int numDesiredElements = data.remaining() / numComponents;
+		resizeIfNeeded(gl, numDesiredElements);
+		
+		setSubData(gl, data);
+	}
+	
+	/**
+	 * Set data from the remaining bytes of a buffer, which must be in native
+	 * order. For buffers with a layout this is the only way to set data.
+	 */
+	
+	public void setData(GL2 gl, ByteBuffer data)
+	{
+		upload(gl, data, data.remaining() / numBytesFor(format));
+	}
+	
+	public void setSubData(GL2 gl, ByteBuffer data)
+	{
+		uploadSub(gl, data, data.remaining() / numBytesFor(format));
+	}
+	
+	/**
+	 * Set data, reusing the previously allocated memory if possible.
+	 */
+	
+	public void smartSetData(GL2 gl, ByteBuffer data)
+	{
+		int numDesiredElements = data.remaining() / (numComponents * numBytesFor(format));
+		resizeIfNeeded(gl, numDesiredElements);
+		
+		setSubData(gl, data);
+	}
+	
+	private void upload(GL2 gl, Buffer bufData, int length)
+	{
+		numElements = length / numComponents;
 		numAllocatedElements = numElements;
 		
-		if (data.length % numComponents != 0)
+		if (length % numComponents != 0)
 		{
 			System.err.println("WARNING: Input data is not multiple of numComponents");
 		}
-		int byteLength = data.length * numBytesFor(format);
-		
-		// contents for buffer
-		IntBuffer bufData = Buffers.newDirectIntBuffer(data.length);
-		bufData.put(data);
-		bufData.rewind();
+		int byteLength = length * numBytesFor(format);
 		
 		// bind / fill buffer
 		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "VBO.sD bind");
@@ -216,31 +347,21 @@ public class VertexBuffer {
 		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "VBO.sD unbind");
 	}
 	
-	public void setSubData(GL2 gl, int [] data)
+	private void uploadSub(GL2 gl, Buffer bufData, int length)
 	{
-		if(format != GL2.GL_UNSIGNED_INT)
-		{
-			System.err.println("WARNING: setting int data to non-int buffer!");
-		}
-		
-		if (data.length > numAllocatedElements * numComponents)
+		if (length > numAllocatedElements * numComponents)
 		{
 			System.err.println("WARNING: tried to write more data than buffer can fit");
 			return;
 		}
 		
-		numElements = data.length / numComponents;
+		numElements = length / numComponents;
 		
-		if (data.length % numComponents != 0)
+		if (length % numComponents != 0)
 		{
 			System.err.println("WARNING: Input data is not multiple of numComponents");
 		}
-		int byteLength = data.length * numBytesFor(format);
-		
-		// contents for buffer
-		IntBuffer bufData = Buffers.newDirectIntBuffer(data.length);
-		bufData.put(data);
-		bufData.rewind();
+		int byteLength = length * numBytesFor(format);
 		
 		// bind / fill buffer
 		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, id);                            GLError.get(gl, "VBO.sSD bind");
@@ -249,6 +370,18 @@ public class VertexBuffer {
 		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);                             GLError.get(gl, "VBO.sSD unbind");
 	}
 	
+	/**
+	 * Frees the GL buffer. The object must not be used afterwards.
+	 */
+	public void delete(GL2 gl)
+	{
+		int [] idBuf = {id};
+		gl.glDeleteBuffers(1, idBuf, 0);                                     GLError.get(gl, "VBO.delete");
+		id = 0;
+		numElements = 0;
+		numAllocatedElements = 0;
+	}
+	
 	public int getId()
 	{
 		return id;
@@ -259,6 +392,20 @@ public class VertexBuffer {
 		return format;
 	}
 	
+	/**
+	 * Changes the type of the values, keeping the memory allocated for them.
+	 * For subclasses that pick the type from the data, e.g. IndexBuffer.
+	 */
+	protected void setFormat(int newFormat)
+	{
+		if (newFormat == format)
+			return;
+		
+		numAllocatedElements = numAllocatedElements * numBytesFor(format) / numBytesFor(newFormat);
+		numElements = 0;
+		format = newFormat;
+	}
+	
 	public int getNumComponents()
 	{
 		return numComponents;
@@ -269,6 +416,15 @@ public class VertexBuffer {
 		return numElements;
 	}
 	
+	/**
+	 * The layout of the vertices in the buffer, or null if it holds values
+	 * of a single type.
+	 */
+	public VertexLayout getLayout()
+	{
+		return layout;
+	}
+	
 	protected static int numBytesFor(int f)
 	{
 		switch(f)
@@ -276,6 +432,12 @@ public class VertexBuffer {
 		case GL2.GL_FLOAT:
 		case GL2.GL_UNSIGNED_INT:
 			return 4;
+		case GL2.GL_SHORT:
+		case GL2.GL_UNSIGNED_SHORT:
+			return 2;
+		case GL2.GL_BYTE:
+		case GL2.GL_UNSIGNED_BYTE:
+			return 1;
 		default:
 			System.err.println("FAIL: requested num bytes for unknown type");
 			System.exit(1);
@@ -0,0 +1,127 @@
+package cs4620.framework;
+
+import java.util.ArrayList;
+
+/*
+ * Describes the interleaved layout of a vertex buffer: which attributes
+ * every vertex has, and where each one sits in the vertex's bytes. A layout
+ * is declared once (e.g. by the program whose shaders read it) and given to
+ * the buffers made with it; VertexArray takes the attribute pointers from
+ * it, with the stride and offsets that plain VertexBuffers leave at 0.
+ *
+ * Attributes are added in order. Each starts at the next multiple of 4
+ * bytes, the alignment GL implementations fetch fastest, so e.g. three
+ * shorts take up 8 bytes. Integer attributes may be normalized, in which
+ * case the shader sees them mapped to [-1, 1] (signed) or [0, 1]
+ * (unsigned) rather than as integer values.
+ */
+
+public class VertexLayout {
+
+	public static class Attribute
+	{
+		private final int index;
+		private final int numComponents;
+		private final int type;
+		private final boolean normalized;
+		private final int offset;
+
+		public Attribute(int index, int numComponents, int type, boolean normalized, int offset)
+		{
+			this.index = index;
+			this.numComponents = numComponents;
+			this.type = type;
+			this.normalized = normalized;
+			this.offset = offset;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public int getNumComponents()
+		{
+			return numComponents;
+		}
+
+		/**
+		 * The GL type of each component, e.g. GL2.GL_SHORT.
+		 */
+		public int getType()
+		{
+			return type;
+		}
+
+		public boolean isNormalized()
+		{
+			return normalized;
+		}
+
+		/**
+		 * Bytes from the start of the vertex to the attribute.
+		 */
+		public int getOffset()
+		{
+			return offset;
+		}
+	}
+
+	private static final int ALIGNMENT = 4;
+
+	private final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+	private int stride = 0;
+
+	/**
+	 * Appends an attribute to the vertex and returns this layout.
+	 */
+	public VertexLayout add(int index, int numComponents, int type, boolean normalized)
+	{
+		if (getAttributeAt(index) != null)
+			throw new Error("Attribute " + index + " is already in the layout.");
+
+		attributes.add(new Attribute(index, numComponents, type, normalized, stride));
+		stride += numComponents * VertexBuffer.numBytesFor(type);
+		stride = (stride + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		return this;
+	}
+
+	public int getNumAttributes()
+	{
+		return attributes.size();
+	}
+
+	public Attribute getAttribute(int i)
+	{
+		return attributes.get(i);
+	}
+
+	/**
+	 * The attribute read at the given attribute index, or null if the
+	 * layout has none.
+	 */
+	public Attribute getAttributeAt(int index)
+	{
+		for (int i = 0; i < attributes.size(); i++)
+			if (attributes.get(i).index == index)
+				return attributes.get(i);
+		return null;
+	}
+
+	/**
+	 * Bytes from one vertex to the next.
+	 */
+	public int getStride()
+	{
+		return stride;
+	}
+
+	/**
+	 * Packs v, in [-1, 1], into a normalized signed short, the inverse of the
+	 * mapping GL applies to GL2.GL_SHORT attributes that are normalized.
+	 */
+	public static short toNormalizedShort(float v)
+	{
+		return (short) Math.round(Math.max(-1, Math.min(1, v)) * Short.MAX_VALUE);
+	}
+}
@@ -1,22 +1,45 @@
 package cs4620.material;
 
-import java.util.ArrayList;
-
 import javax.media.opengl.GL2;
 
 import cs4620.scene.SceneProgram;
 
 public abstract class Material
 {
-	protected static ArrayList<Material> instances = new ArrayList<Material>();
-	
 	public abstract void applyTo(GL2 gl, SceneProgram program);
 
+	/**
+	 * A hash of the state applyTo() sets, used to sort draws so that
+	 * materials setting the same state are applied one after another.
+	 * Materials for which hasSameState() is true must hash the same.
+	 */
+	public int getStateHash()
+	{
+		return System.identityHashCode(this);
+	}
+
+	/**
+	 * Whether applyTo() sets the same state as other.applyTo(), so that
+	 * applying other after this one can be skipped.
+	 */
+	public boolean hasSameState(Material other)
+	{
+		return other == this;
+	}
+
+	/**
+	 * Returns a material that sets the same state as this one and is not
+	 * affected by later edits of it, for the render snapshot (see
+	 * Scene.publish()). Materials without editable state return themselves.
+	 */
+	public Material snapshot()
+	{
+		return this;
+	}
+
 	public Material()
 	{
-		synchronized(instances) {
-			instances.add(this);
-		}
+		// NOP
 	}
 
 	public abstract Object getYamlObjectRepresentation();
@@ -6,7 +6,6 @@ import java.util.List;
 import java.util.Map;
 
 import javax.media.opengl.GL2;
-import javax.vecmath.Vector3f;
 
 import cs4620.scene.SceneProgram;
 
@@ -24,12 +23,53 @@ public class PhongMaterial extends Material
 	
 	@Override
 	public void applyTo(GL2 gl, SceneProgram program) {
-		program.setAmbientColor(gl, new Vector3f( ambient[0],  ambient[1],  ambient[2]));
-		program.setDiffuseColor(gl, new Vector3f( diffuse[0],  diffuse[1],  diffuse[2]));
-		program.setSpecularColor(gl, new Vector3f(specular[0], specular[1], specular[2]));
+		program.setAmbientColor(gl,  ambient[0],  ambient[1],  ambient[2]);
+		program.setDiffuseColor(gl,  diffuse[0],  diffuse[1],  diffuse[2]);
+		program.setSpecularColor(gl, specular[0], specular[1], specular[2]);
 		program.setShininess(gl, shininess);
 	}
 
+	@Override
+	public int getStateHash()
+	{
+		// adding 0 turns -0 into 0, which compare equal in hasSameState()
+		int hash = Float.floatToIntBits(shininess + 0.0f);
+		for (int i = 0; i < 3; i++)
+		{
+			hash = 31 * hash + Float.floatToIntBits(ambient[i] + 0.0f);
+			hash = 31 * hash + Float.floatToIntBits(diffuse[i] + 0.0f);
+			hash = 31 * hash + Float.floatToIntBits(specular[i] + 0.0f);
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean hasSameState(Material other)
+	{
+		if (other == this)
+			return true;
+		if (!(other instanceof PhongMaterial))
+			return false;
+		PhongMaterial phong = (PhongMaterial)other;
+		for (int i = 0; i < 3; i++)
+		{
+			if (ambient[i] != phong.ambient[i] || diffuse[i] != phong.diffuse[i] || specular[i] != phong.specular[i])
+				return false;
+		}
+		return shininess == phong.shininess;
+	}
+
+	@Override
+	public Material snapshot()
+	{
+		PhongMaterial copy = new PhongMaterial();
+		System.arraycopy(ambient, 0, copy.ambient, 0, ambient.length);
+		System.arraycopy(diffuse, 0, copy.diffuse, 0, diffuse.length);
+		System.arraycopy(specular, 0, copy.specular, 0, specular.length);
+		copy.shininess = shininess;
+		return copy;
+	}
+
 	protected static void setArray(float[] x, float x0, float x1, float x2)
 	{
 		x[0] = x0;
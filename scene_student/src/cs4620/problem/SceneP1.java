@@ -144,18 +144,18 @@ public class SceneP1 extends JFrame implements GLSceneDrawer, ChangeListener {
 			return;
 		
 		meshes = new ArrayList<Mesh>();
-		meshes.add(new Cube(gl));
+		meshes.add(new Cube());
 		try
 		{
-			meshes.add(new CustomTriangleMesh(gl, new File("data/meshes/bunny500.msh")));
-			meshes.add(new CustomTriangleMesh(gl, new File("data/meshes/ship.msh")));
+			meshes.add(new CustomTriangleMesh(new File("data/meshes/bunny500.msh")));
+			meshes.add(new CustomTriangleMesh(new File("data/meshes/ship.msh")));
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 			System.exit(1);
 		}
-		meshes.add(new Torus(gl));
+		meshes.add(new Torus());
 		updateMeshTolerance(gl);
 
 		shapeComboBox.addItem("Cube");
@@ -292,7 +292,7 @@ public class SceneP1 extends JFrame implements GLSceneDrawer, ChangeListener {
 		{
 			float tolerance = sliderPanel.getTolerance();
 			for(Mesh mesh : meshes)
-				mesh.buildMesh(gl, tolerance);
+				mesh.buildMesh(tolerance);
 			sliderChanged = false;
 		}
 	}
@@ -146,9 +146,9 @@ public class SceneP2 extends JFrame implements GLSceneDrawer, ChangeListener {
 			return;
 		
 		meshes = new ArrayList<Mesh>();
-		meshes.add(new Sphere(gl));
-		meshes.add(new Cylinder(gl));
-		meshes.add(new Torus(gl));
+		meshes.add(new Sphere());
+		meshes.add(new Cylinder());
+		meshes.add(new Torus());
 		updateMeshTolerance(gl);
 
 		shapeComboBox.addItem("Sphere");
@@ -278,7 +278,7 @@ public class SceneP2 extends JFrame implements GLSceneDrawer, ChangeListener {
 		{
 			float tolerance = sliderPanel.getTolerance();
 			for(Mesh mesh : meshes)
-				mesh.buildMesh(gl, tolerance);
+				mesh.buildMesh(tolerance);
 			sliderChanged = false;
 		}
 	}
@@ -39,26 +39,32 @@ import javax.vecmath.Vector3f;
 
 import layout.TableLayout;
 import cs4620.framework.CameraController;
+import cs4620.framework.Frustum;
 import cs4620.framework.GLSceneDrawer;
 import cs4620.framework.GlslException;
+import cs4620.framework.InstanceBuffer;
 import cs4620.framework.PickingEventListener;
 import cs4620.framework.Program;
 import cs4620.framework.VerticalScrollPanel;
-import cs4620.material.PhongMaterial;
 import cs4620.scene.GLLightManager;
+import cs4620.scene.InstancedSceneProgram;
 import cs4620.scene.LightNode;
 import cs4620.scene.MeshNode;
 import cs4620.scene.Scene;
+import cs4620.scene.SceneLoader;
 import cs4620.scene.SceneNode;
 import cs4620.scene.SceneProgram;
 import cs4620.shape.Cube;
 import cs4620.shape.Cylinder;
 import cs4620.shape.Mesh;
+import cs4620.shape.MeshCache;
+import cs4620.shape.MeshRebuilder;
 import cs4620.shape.Sphere;
 import cs4620.shape.Teapot;
 import cs4620.shape.Torus;
 import cs4620.ui.BasicAction;
 import cs4620.ui.GLPhongMaterialSettingPanel;
+import cs4620.ui.LoadProgressPanel;
 import cs4620.ui.LightSettingPanel;
 import cs4620.ui.PopupListener;
 import cs4620.ui.SceneViewPanel;
@@ -76,7 +82,8 @@ import cs4620.ui.TreeRenderer;
  * @author pramook, arbree
  */
 public class SceneP3 extends JFrame implements GLSceneDrawer,
-	ChangeListener, ActionListener, PickingEventListener, TreeSelectionListener
+	ChangeListener, ActionListener, PickingEventListener, TreeSelectionListener,
+	SceneLoader.Listener
 
 {
 	private static final long serialVersionUID = 1L;
@@ -85,10 +92,13 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	public static final String SAVE_AS_MENU_TEXT = "Save As";
 	public static final String OPEN_MENU_TEXT = "Open";
 	public static final String EXIT_MENU_TEXT = "Exit";
+	public static final String CANCEL_LOAD_TEXT = "Cancel";
 	public static final String CLEAR_SELECTED_TEXT = "Clear selection";
 	public static final String GROUP_MENU_TEXT = "Group selected";
 	public static final String REPARENT_MENU_TEXT = "Reparent selected";
 	public static final String DELETE_MENU_TEXT = "Delete selected";	
+	public static final String FREEZE_MENU_TEXT = "Freeze selected";
+	public static final String THAW_MENU_TEXT = "Unfreeze selected";
 	public static final String ADD_LIGHT_MENU_TEXT = "Add Light";
 	public static final String ADD_SPHERE_MENU_TEXT = "Add Sphere";
 	public static final String ADD_CUBE_MENU_TEXT = "Add Cube";
@@ -100,6 +110,7 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	JSplitPane leftSplitPane;
 	SceneViewPanel sceneViewPanel;
 	ToleranceSliderPanel sliderPanel;
+	LoadProgressPanel loadPanel;
 	JFileChooser fileChooser;
 	JTree treeView;
 	GLPhongMaterialSettingPanel phongMaterialPanel;
@@ -108,10 +119,18 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	JPanel nodeSettingPanel;
 
 	Scene scene;
+	MeshRebuilder meshRebuilder;
+	// the last scene file opened, which may still be loading
+	SceneLoader sceneLoader;
+	// whether the meshes of a just loaded scene are still being built
+	boolean buildingLoadedMeshes = false;
+	// view volume of the view being drawn, used to cull the scene
+	final Frustum viewFrustum = new Frustum();
 	
 	// GL resources
 	SceneProgram flatColorProgram;
 	SceneProgram diffuseProgram;
+	SceneProgram pickProgram;
 	
 	boolean sliderChanged = true;
 
@@ -135,6 +154,8 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		getContentPane().add(mainSplitPane, BorderLayout.CENTER);
 		sliderPanel = new ToleranceSliderPanel(this);
 		getContentPane().add(sliderPanel, BorderLayout.EAST);
+		loadPanel = new LoadProgressPanel(new BasicAction(CANCEL_LOAD_TEXT, this));
+		getContentPane().add(loadPanel, BorderLayout.SOUTH);
 
 		initActionsAndMenus();
 
@@ -164,6 +185,8 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		BasicAction reparent = new BasicAction(REPARENT_MENU_TEXT, this);
 		BasicAction delete = new BasicAction(DELETE_MENU_TEXT, this);
 		BasicAction clear = new BasicAction(CLEAR_SELECTED_TEXT, this);
+		BasicAction freeze = new BasicAction(FREEZE_MENU_TEXT, this);
+		BasicAction thaw = new BasicAction(THAW_MENU_TEXT, this);
 
 		BasicAction addLight = new BasicAction(ADD_LIGHT_MENU_TEXT, this);
 		BasicAction addSphere = new BasicAction(ADD_SPHERE_MENU_TEXT, this);
@@ -202,6 +225,9 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		menu.add(new JMenuItem(group));
 		menu.add(new JMenuItem(reparent));
 		menu.add(new JMenuItem(delete));
+		menu.addSeparator();
+		menu.add(new JMenuItem(freeze));
+		menu.add(new JMenuItem(thaw));
 		bar.add(menu);
 
 		menu = new JMenu("Scene");
@@ -221,6 +247,8 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		p.add(new JMenuItem(reparent));
 		p.add(new JMenuItem(delete));
 		p.add(new JMenuItem(clear));
+		p.add(new JMenuItem(freeze));
+		p.add(new JMenuItem(thaw));
 		p.addSeparator();
 		p.add(new JMenuItem(addLight));
 		p.add(new JMenuItem(addSphere));
@@ -317,8 +345,18 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 			return;
 		
 		try {
-			diffuseProgram = new SceneProgram(gl, "diffuse.vs", "diffuse.fs");
-			flatColorProgram = new SceneProgram(gl, "flatcolor.vs", "flatcolor.fs");
+			if (InstanceBuffer.isSupported(gl))
+			{
+				// draw repeated meshes with one instanced call each
+				diffuseProgram = new InstancedSceneProgram(gl, "diffuse_instanced.vs", "diffuse_instanced.fs");
+				flatColorProgram = new InstancedSceneProgram(gl, "flatcolor_instanced.vs", "flatcolor_instanced.fs");
+			}
+			else
+			{
+				diffuseProgram = new SceneProgram(gl, "diffuse.vs", "diffuse.fs");
+				flatColorProgram = new SceneProgram(gl, "flatcolor.vs", "flatcolor.fs");
+			}
+			pickProgram = new SceneProgram(gl, "pickid.vs", "pickid.fs");
 		} catch (GlslException e) {
 			System.err.println("FAIL: making shader programs");
 			e.printStackTrace();
@@ -334,8 +372,12 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		
 		final GL2 gl = drawable.getGL().getGL2();
 		
-		scene = new Scene(gl);
+		scene = new Scene();
+		meshRebuilder = new MeshRebuilder(sceneViewPanel);
 		treeView.setModel(scene.getTreeModel());
+		transformSettingPanel.setScene(scene);
+		phongMaterialPanel.setScene(scene);
+		lightSettingPanel.setScene(scene);
 
 		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 
@@ -369,7 +411,15 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	public void draw(GLAutoDrawable drawable, CameraController cameraController)
 	{
 		final GL2 gl = drawable.getGL().getGL2();
+		if (drawForPicking)
+		{
+			drawForPicking(gl, cameraController);
+			return;
+		}
 		rebuildMeshes(gl);
+		meshRebuilder.uploadFinished(gl);
+		MeshCache.deleteUnused(gl);
+		showLoadProgress();
 
 		SceneProgram programToUse = flatColorProgram;
 		if (sceneViewPanel.isLightingMode())
@@ -378,7 +428,9 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		}
 		
 		Program.use(gl, programToUse);
-		programToUse.setProjection(gl, cameraController.getProjection());
+		Matrix4f projection = cameraController.getProjection();
+		programToUse.setProjection(gl, projection);
+		viewFrustum.set(projection);
 		
 		// give program info about all lights in the scene
 		scene.setupLighting(gl, programToUse, cameraController.getModelView());
@@ -386,15 +438,29 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 
 		if (sceneViewPanel.isWireframeMode())
 		{
-			scene.renderWireframe(gl, programToUse, cameraController.getModelView());
+			scene.renderWireframe(gl, programToUse, cameraController.getModelView(), viewFrustum);
 		}
 		else
 		{
-			scene.render(gl, programToUse, cameraController.getModelView());
+			scene.render(gl, programToUse, cameraController.getModelView(), viewFrustum);
 		}
 		Program.unuse(gl);
 	}
 
+	/**
+	 * Draws mesh ids for the PickingController that asked for it, with the
+	 * projection it narrowed to the pixels around the cursor.
+	 */
+	private void drawForPicking(GL2 gl, CameraController cameraController)
+	{
+		Program.use(gl, pickProgram);
+		Matrix4f projection = cameraController.getProjection();
+		pickProgram.setProjection(gl, projection);
+		viewFrustum.set(projection);
+		scene.renderForPicking(gl, pickProgram, cameraController.getModelView(), viewFrustum);
+		Program.unuse(gl);
+	}
+
 	@Override
 	public void stateChanged(ChangeEvent e) {
 		if (e.getSource() == sliderPanel.getSlider())
@@ -407,11 +473,38 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	{
 		if (sliderChanged)
 		{
-			scene.rebuildMeshes(gl, getTolerance());
+			scene.rebuildMeshes(gl, getTolerance(), meshRebuilder);
 			sliderChanged = false;
 		}
 	}
 
+	/**
+	 * Shows how far opening a scene has got: first reading the file, then
+	 * building the meshes of the loaded tree.
+	 */
+	protected void showLoadProgress()
+	{
+		if (sceneLoader != null && sceneLoader.getState() == SceneLoader.READING)
+		{
+			loadPanel.showProgress("Reading " + new File(sceneLoader.getFilename()).getName(),
+					sceneLoader.getProgress());
+			return;
+		}
+
+		int numStarted = meshRebuilder.getNumJobsStarted();
+		if (buildingLoadedMeshes && numStarted > 0)
+		{
+			int numDone = numStarted - meshRebuilder.getNumPendingJobs();
+			loadPanel.showProgress("Building meshes " + numDone + "/" + numStarted,
+					numDone / (float)numStarted);
+		}
+		else
+		{
+			buildingLoadedMeshes = false;
+			loadPanel.hideProgress();
+		}
+	}
+
 	public void terminate()
 	{
 		sceneViewPanel.stopAnimation();
@@ -457,23 +550,52 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	}
 
 	/**
-	 * Loads a tree stored in a file
+	 * Starts loading a tree stored in a file. The file is read in the
+	 * background; the tree replaces the current one when it is complete,
+	 * and its meshes are built afterwards.
 	 */
 	protected void openTree(GL2 gl, String filename)
 	{
-		//Load the tree
-		try
-		{
-			scene.load(gl, filename);
-			sliderChanged = true;
-		}
-		catch (Exception e) {
-			showExceptionDialog(e);
-		}
+		// a newer open wins over one still being read
+		if (sceneLoader != null)
+			sceneLoader.cancel();
+		sceneLoader = new SceneLoader(scene, filename);
+		sceneLoader.start(sceneViewPanel, this);
+		refresh();
+	}
+
+	@Override
+	public void sceneLoaded(GL2 gl, SceneLoader loader)
+	{
+		// binary scenes remember the tolerance they were saved at
+		if (!Float.isNaN(scene.getTolerance()))
+			sliderPanel.setTolerance(scene.getTolerance());
+		sliderChanged = true;
+		buildingLoadedMeshes = true;
 
 		//Update the window
 		refresh();
 	}
+
+	@Override
+	public void sceneLoadFailed(GL2 gl, SceneLoader loader, Exception e)
+	{
+		showExceptionDialog(e);
+		refresh();
+	}
+
+	/**
+	 * Stops opening a scene: a file still being read is dropped, and a
+	 * loaded tree keeps whatever meshes have been built so far.
+	 */
+	protected void cancelLoad()
+	{
+		if (sceneLoader != null)
+			sceneLoader.cancel();
+		meshRebuilder.cancel();
+		buildingLoadedMeshes = false;
+		refresh();
+	}
 	
 	protected void addNewShape(Mesh mesh, String name)
 	{
@@ -560,24 +682,40 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 			scene.deleteNodes(getSelection());
 			refresh();
 		}
+		else if (cmd.equals(FREEZE_MENU_TEXT) || cmd.equals(THAW_MENU_TEXT)) {
+			SceneNode[] selection = getSelection();
+			scene.beginEdit();
+			try {
+				for (int i = 0; i < selection.length; i++)
+				{
+					if (cmd.equals(FREEZE_MENU_TEXT))
+						selection[i].freeze();
+					else
+						selection[i].thaw();
+				}
+			} finally {
+				scene.endEdit();
+			}
+			refresh();
+		}
 		else if (cmd.equals(ADD_LIGHT_MENU_TEXT)) {
 			scene.addNewLight(treeView.getSelectionPath());
 		}
 		else if (cmd.equals(ADD_SPHERE_MENU_TEXT)) {
-			addNewShape(new Sphere(gl), "Sphere");
+			addNewShape(new Sphere(), "Sphere");
 		}
 		else if (cmd.equals(ADD_CUBE_MENU_TEXT)) {
-			addNewShape(new Cube(gl), "Cube");
+			addNewShape(new Cube(), "Cube");
 		}
 		else if (cmd.equals(ADD_CYLINDER_MENU_TEXT)) {
-			addNewShape(new Cylinder(gl), "Cylinder");
+			addNewShape(new Cylinder(), "Cylinder");
 		}
 		else if (cmd.equals(ADD_TORUS_MENU_TEXT)) {
-			addNewShape(new Torus(gl), "Torus");
+			addNewShape(new Torus(), "Torus");
 		}
 		else if (cmd.equals(ADD_TEAPOT_MENU_TEXT)) {
 			try {
-				addNewShape(new Teapot(gl), "Teapot");
+				addNewShape(new Teapot(), "Teapot");
 			} catch (Exception e1) {
 				showExceptionDialog(e1);
 			}
@@ -588,6 +726,9 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 		else if (cmd.equals(SAVE_AS_MENU_TEXT)) {
 			saveTreeAs(filename);
 		}
+		else if (cmd.equals(CANCEL_LOAD_TEXT)) {
+			cancelLoad();
+		}
 		else if (cmd.equals(EXIT_MENU_TEXT)) {
 			terminate();
 		}
@@ -596,7 +737,10 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 	@Override
 	public void objectPicked(Object source, int objectId,
 			Vector3f pickLocation, Vector2f mousePosition)
-	{				
+	{
+		// while reparenting, the new parent is chosen in the tree
+		if (isReparenting)
+			return;
 		SceneNode node = scene.searchForMeshId(objectId);
 		if (node != null)
 			treeView.setSelectionPath(new TreePath(node.getPath()));		
@@ -652,8 +796,7 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 			if (node instanceof MeshNode)
 			{
 				MeshNode meshNode = (MeshNode)node;
-				PhongMaterial material = (PhongMaterial)meshNode.getMaterial();
-				phongMaterialPanel.setMaterial(material);
+				phongMaterialPanel.setMeshNode(meshNode);
 				phongMaterialPanel.setVisible(true);
 
 				nodeSettingPanel.add(phongMaterialPanel, "0,"+Integer.toString(visibleCount)+",0,"+Integer.toString(visibleCount));
@@ -686,7 +829,7 @@ public class SceneP3 extends JFrame implements GLSceneDrawer,
 
 	@Override
 	public void mousePressed(MouseEvent e, CameraController controller) {
-		// NOP
+		// NOP; clicks are picked by the views' PickingControllers
 	}
 
 	@Override
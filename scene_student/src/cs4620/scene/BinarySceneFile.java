@@ -0,0 +1,609 @@
+package cs4620.scene;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Vector3f;
+
+import cs4620.material.Material;
+import cs4620.material.PhongMaterial;
+import cs4620.shape.Mesh;
+
+/*
+ * A binary version of the YAML scene format that is memory-mapped and read
+ * without parsing, for starting up on large scenes. All values are
+ * little-endian and 4 bytes wide, so every block is 4-byte aligned:
+ *
+ *   offset  contents
+ *        0  magic "SCNB"
+ *        4  int   format version (VERSION)
+ *        8  int   number of nodes n
+ *       12  int   number of materials m
+ *       16  int   number of lights l
+ *       20  int   number of strings s
+ *       24  int   size of the string pool in bytes b
+ *       28  float tessellation tolerance the scene was saved at, NaN if none
+ *       32  int   CRC32 of everything after the header
+ *       36  int   reserved, 0
+ *       40  int   node table [5n]: per node, in preorder, its kind
+ *                 (KIND_*), name (string), number of children, material
+ *                 (index into the material table) and mesh type (string)
+ *           float transformations [9n]: translation, rotation, scaling
+ *           float material table [13m]: ambient, diffuse, specular, shininess
+ *           float lights [4 + 4l]: the scene's ambient light, then the
+ *                 intensity of every light node in preorder
+ *           int   string offsets [s + 1] into the pool
+ *           byte  string pool [b], UTF-8, padded with zeros to a multiple of 4
+ *
+ * Strings and materials are referred to by index, -1 standing for none.
+ * Nodes with equal materials share an entry of the material table but get
+ * copies of their own on load. Meshes are referred to by the name of their
+ * type, like in the YAML format, and are tessellated after loading.
+ *
+ * Scene.save() and Scene.load() use this format for files ending in
+ * EXTENSION. YAML scenes can be converted, and checked to read back the
+ * same, by running this class:
+ *
+ *   java cs4620.scene.BinarySceneFile data/scenes/*.txt
+ */
+
+public class BinarySceneFile {
+
+	public static final String EXTENSION = ".scnb";
+	public static final int VERSION = 1;
+
+	public static final int KIND_SCENE_NODE = 0;
+	public static final int KIND_MESH_NODE = 1;
+	public static final int KIND_LIGHT_NODE = 2;
+
+	private static final int MAGIC = 0x424e4353; // "SCNB" read as a little-endian int
+	private static final int HEADER_SIZE = 40;
+	private static final int INTS_PER_NODE = 5;
+	private static final int FLOATS_PER_TRANSFORMATION = 9;
+	private static final int FLOATS_PER_MATERIAL = 13;
+	private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer data;
+	private final int numNodes;
+	private final int numMaterials;
+	private final int numLights;
+	private final int numStrings;
+	private final float tolerance;
+
+	// block offsets
+	private final int transformationsOffset;
+	private final int materialsOffset;
+	private final int lightsOffset;
+	private final int stringOffsetsOffset;
+	private final int stringPoolOffset;
+
+	private BinarySceneFile(ByteBuffer data, int numNodes, int numMaterials, int numLights,
+			int numStrings, float tolerance)
+	{
+		this.data = data;
+		this.numNodes = numNodes;
+		this.numMaterials = numMaterials;
+		this.numLights = numLights;
+		this.numStrings = numStrings;
+		this.tolerance = tolerance;
+
+		transformationsOffset = HEADER_SIZE + 4 * INTS_PER_NODE * numNodes;
+		materialsOffset = transformationsOffset + 4 * FLOATS_PER_TRANSFORMATION * numNodes;
+		lightsOffset = materialsOffset + 4 * FLOATS_PER_MATERIAL * numMaterials;
+		stringOffsetsOffset = lightsOffset + 4 * (4 + 4 * numLights);
+		stringPoolOffset = stringOffsetsOffset + 4 * (numStrings + 1);
+	}
+
+	public int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * The tessellation tolerance the scene was saved at, or NaN if it was
+	 * not known.
+	 */
+	public float getTolerance()
+	{
+		return tolerance;
+	}
+
+	/**
+	 * Whether filename names a file in this format rather than YAML.
+	 */
+	public static boolean isBinarySceneFile(String filename)
+	{
+		return filename.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Memory-maps a binary scene file and checks its header and checksum.
+	 * The tree is made by buildTree().
+	 */
+	public static BinarySceneFile map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer data;
+		try
+		{
+			// the mapping stays valid after the channel is closed
+			FileChannel channel = raf.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a binary scene file");
+		int version = data.getInt(4);
+		if (version != VERSION)
+			throw new IOException(file + " has scene format version " + version + ", expected " + VERSION);
+		int numNodes = data.getInt(8);
+		int numMaterials = data.getInt(12);
+		int numLights = data.getInt(16);
+		int numStrings = data.getInt(20);
+		int poolSize = data.getInt(24);
+		float tolerance = data.getFloat(28);
+		int checksum = data.getInt(32);
+
+		if (numNodes < 1 || numMaterials < 0 || numLights < 0 || numStrings < 0 || poolSize < 0
+				|| HEADER_SIZE + payloadSize(numNodes, numMaterials, numLights, numStrings, poolSize) != data.limit())
+			throw new IOException(file + " is truncated or has a corrupt header");
+		if (computeChecksum(data, HEADER_SIZE, data.limit()) != checksum)
+			throw new IOException(file + " failed its checksum");
+
+		return new BinarySceneFile(data, numNodes, numMaterials, numLights, numStrings, tolerance);
+	}
+
+	private static long payloadSize(int numNodes, int numMaterials, int numLights, int numStrings, int poolSize)
+	{
+		return 4L * INTS_PER_NODE * numNodes + 4L * FLOATS_PER_TRANSFORMATION * numNodes
+				+ 4L * FLOATS_PER_MATERIAL * numMaterials + 4L * (4 + 4L * numLights)
+				+ 4L * (numStrings + 1L) + padded(poolSize);
+	}
+
+	private static int padded(int size)
+	{
+		return (size + 3) & ~3;
+	}
+
+	/**
+	 * Makes the scene tree held by the file. The meshes are not built yet.
+	 */
+	public SceneNode buildTree() throws IOException
+	{
+		String [] strings = readStrings();
+
+		// nodes come in preorder; a node's children are inserted when the
+		// last of them is done, before it is attached itself, so no
+		// insertion has to look at a long path of ancestors
+		ArrayList<SceneNode> parents = new ArrayList<SceneNode>();
+		ArrayList<ArrayList<SceneNode>> siblings = new ArrayList<ArrayList<SceneNode>>();
+		ArrayList<Integer> remaining = new ArrayList<Integer>();
+		SceneNode root = null;
+		int light = 0;
+		for (int i = 0; i < numNodes; i++)
+		{
+			int record = HEADER_SIZE + 4 * INTS_PER_NODE * i;
+			int kind = data.getInt(record);
+			int name = data.getInt(record + 4);
+			int numChildren = data.getInt(record + 8);
+			int material = data.getInt(record + 12);
+			int meshType = data.getInt(record + 16);
+			if (numChildren < 0 || (i == 0) != parents.isEmpty())
+				throw new IOException("corrupt node table at node " + i);
+
+			SceneNode node;
+			if (kind == KIND_SCENE_NODE)
+				node = new SceneNode();
+			else if (kind == KIND_MESH_NODE)
+			{
+				MeshNode meshNode = new MeshNode();
+				meshNode.setMesh(Mesh.fromType(getString(strings, meshType)));
+				meshNode.setMaterial(readMaterial(material));
+				node = meshNode;
+			}
+			else if (kind == KIND_LIGHT_NODE)
+			{
+				if (light >= numLights)
+					throw new IOException("corrupt node table at node " + i);
+				LightNode lightNode = new LightNode();
+				int offset = lightsOffset + 4 * (4 + 4 * light++);
+				lightNode.intensity[3] = data.getFloat(offset + 12);
+				lightNode.setIntensity(data.getFloat(offset), data.getFloat(offset + 4), data.getFloat(offset + 8));
+				node = lightNode;
+			}
+			else
+				throw new IOException("invalid node kind " + kind + " at node " + i);
+
+			node.setName(getString(strings, name));
+			int transformation = transformationsOffset + 4 * FLOATS_PER_TRANSFORMATION * i;
+			node.translation.set(data.getFloat(transformation), data.getFloat(transformation + 4), data.getFloat(transformation + 8));
+			node.rotation.set(data.getFloat(transformation + 12), data.getFloat(transformation + 16), data.getFloat(transformation + 20));
+			node.scaling.set(data.getFloat(transformation + 24), data.getFloat(transformation + 28), data.getFloat(transformation + 32));
+			node.transformationChanged();
+
+			if (i == 0)
+				root = node;
+			else
+			{
+				int top = parents.size() - 1;
+				siblings.get(top).add(node);
+				remaining.set(top, remaining.get(top) - 1);
+			}
+			parents.add(node);
+			siblings.add(new ArrayList<SceneNode>());
+			remaining.add(numChildren);
+
+			// finish every node that has all its children now
+			while (!parents.isEmpty() && remaining.get(parents.size() - 1) == 0)
+			{
+				int top = parents.size() - 1;
+				parents.remove(top).insertChildren(siblings.remove(top), 0);
+				remaining.remove(top);
+			}
+		}
+		if (!parents.isEmpty())
+			throw new IOException("corrupt node table: nodes are missing");
+
+		System.arraycopy(readFloats(lightsOffset, 4), 0, LightNode.ambient, 0, 4);
+		return root;
+	}
+
+	private PhongMaterial readMaterial(int index) throws IOException
+	{
+		PhongMaterial material = new PhongMaterial();
+		if (index < 0)
+			return material;
+		if (index >= numMaterials)
+			throw new IOException("invalid material " + index);
+		int offset = materialsOffset + 4 * FLOATS_PER_MATERIAL * index;
+		FloatBuffer floats = slice(offset, 4 * FLOATS_PER_MATERIAL).asFloatBuffer();
+		floats.get(material.ambient).get(material.diffuse).get(material.specular);
+		material.shininess = floats.get();
+		return material;
+	}
+
+	private float [] readFloats(int offset, int count)
+	{
+		float [] result = new float[count];
+		slice(offset, 4 * count).asFloatBuffer().get(result);
+		return result;
+	}
+
+	private String [] readStrings() throws IOException
+	{
+		String [] strings = new String[numStrings];
+		byte [] bytes = new byte[0];
+		int poolSize = data.getInt(24);
+		for (int i = 0; i < numStrings; i++)
+		{
+			int start = data.getInt(stringOffsetsOffset + 4 * i);
+			int end = data.getInt(stringOffsetsOffset + 4 * i + 4);
+			if (start < 0 || end < start || end > poolSize)
+				throw new IOException("corrupt string pool at string " + i);
+			if (bytes.length < end - start)
+				bytes = new byte[end - start];
+			ByteBuffer view = slice(stringPoolOffset + start, end - start);
+			view.get(bytes, 0, end - start);
+			strings[i] = new String(bytes, 0, end - start, UTF8);
+		}
+		return strings;
+	}
+
+	private static String getString(String [] strings, int index) throws IOException
+	{
+		if (index == -1)
+			return null;
+		if (index < 0 || index >= strings.length)
+			throw new IOException("invalid string " + index);
+		return strings[index];
+	}
+
+	private ByteBuffer slice(int offset, int length)
+	{
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int computeChecksum(ByteBuffer data, int start, int end)
+	{
+		CRC32 crc = new CRC32();
+		byte [] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+		ByteBuffer view = data.duplicate();
+		view.position(start);
+		view.limit(end);
+		while (view.hasRemaining())
+		{
+			int length = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes the tree rooted at root to outFile, noting the tolerance its
+	 * meshes were tessellated at (NaN if not known).
+	 */
+	public static void write(SceneNode root, float tolerance, File outFile) throws IOException
+	{
+		// preorder, iteratively like the other subtree walks
+		ArrayList<SceneNode> nodes = new ArrayList<SceneNode>();
+		ArrayList<SceneNode> pending = new ArrayList<SceneNode>();
+		pending.add(root);
+		while (!pending.isEmpty())
+		{
+			SceneNode node = pending.remove(pending.size() - 1);
+			nodes.add(node);
+			for (int i = node.getChildCount() - 1; i >= 0; i--)
+				pending.add(node.getSceneNodeChild(i));
+		}
+
+		int [] nodeTable = new int[INTS_PER_NODE * nodes.size()];
+		float [] transformations = new float[FLOATS_PER_TRANSFORMATION * nodes.size()];
+		ArrayList<float []> materials = new ArrayList<float []>();
+		HashMap<FloatBuffer, Integer> materialIndices = new HashMap<FloatBuffer, Integer>();
+		ArrayList<float []> lights = new ArrayList<float []>();
+		ArrayList<byte []> strings = new ArrayList<byte []>();
+		HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+		int poolSize = 0;
+
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			SceneNode node = nodes.get(i);
+			int kind = KIND_SCENE_NODE;
+			int material = -1;
+			String meshType = null;
+			if (node instanceof MeshNode)
+			{
+				MeshNode meshNode = (MeshNode)node;
+				kind = KIND_MESH_NODE;
+				meshType = getMeshType(meshNode.getMesh());
+				material = addMaterial(meshNode.getMaterial(), materials, materialIndices);
+			}
+			else if (node instanceof LightNode)
+			{
+				kind = KIND_LIGHT_NODE;
+				lights.add(((LightNode)node).intensity.clone());
+			}
+
+			int [] stringRefs = new int[2];
+			String [] values = new String[] { node.getName(), meshType };
+			for (int s = 0; s < 2; s++)
+			{
+				if (values[s] == null)
+				{
+					stringRefs[s] = -1;
+					continue;
+				}
+				Integer index = stringIndices.get(values[s]);
+				if (index == null)
+				{
+					byte [] bytes = values[s].getBytes(UTF8);
+					index = strings.size();
+					strings.add(bytes);
+					stringIndices.put(values[s], index);
+					poolSize += bytes.length;
+				}
+				stringRefs[s] = index;
+			}
+
+			int record = INTS_PER_NODE * i;
+			nodeTable[record] = kind;
+			nodeTable[record + 1] = stringRefs[0];
+			nodeTable[record + 2] = node.getChildCount();
+			nodeTable[record + 3] = material;
+			nodeTable[record + 4] = stringRefs[1];
+
+			int t = FLOATS_PER_TRANSFORMATION * i;
+			Vector3f [] parts = new Vector3f[] { node.translation, node.rotation, node.scaling };
+			for (int p = 0; p < 3; p++)
+			{
+				transformations[t + 3 * p] = parts[p].x;
+				transformations[t + 3 * p + 1] = parts[p].y;
+				transformations[t + 3 * p + 2] = parts[p].z;
+			}
+		}
+
+		long payloadSize = payloadSize(nodes.size(), materials.size(), lights.size(), strings.size(), poolSize);
+		if (HEADER_SIZE + payloadSize > Integer.MAX_VALUE)
+			throw new IOException("scene is too large for the binary scene format");
+
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + (int) payloadSize);
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		out.position(HEADER_SIZE);
+		out.asIntBuffer().put(nodeTable);
+		out.position(out.position() + 4 * nodeTable.length);
+		FloatBuffer floats = out.asFloatBuffer();
+		floats.put(transformations);
+		for (int i = 0; i < materials.size(); i++)
+			floats.put(materials.get(i));
+		floats.put(LightNode.ambient, 0, 4);
+		for (int i = 0; i < lights.size(); i++)
+			floats.put(lights.get(i));
+		out.position(out.position() + 4 * floats.position());
+		int offset = 0;
+		for (int i = 0; i < strings.size(); i++)
+		{
+			out.putInt(offset);
+			offset += strings.get(i).length;
+		}
+		out.putInt(offset);
+		for (int i = 0; i < strings.size(); i++)
+			out.put(strings.get(i));
+		// the padding is left zero
+
+		out.putInt(0, MAGIC);
+		out.putInt(4, VERSION);
+		out.putInt(8, nodes.size());
+		out.putInt(12, materials.size());
+		out.putInt(16, lights.size());
+		out.putInt(20, strings.size());
+		out.putInt(24, poolSize);
+		out.putFloat(28, tolerance);
+		out.putInt(32, computeChecksum(out, HEADER_SIZE, out.capacity()));
+		out.putInt(36, 0);
+		out.clear();
+
+		FileOutputStream stream = new FileOutputStream(outFile);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * The type name of mesh, as in its YAML representation.
+	 */
+	@SuppressWarnings("unchecked")
+	private static String getMeshType(Mesh mesh)
+	{
+		if (mesh == null)
+			return null;
+		return (String)((Map<String, Object>)mesh.getYamlObjectRepresentation()).get("type");
+	}
+
+	private static int addMaterial(Material material, ArrayList<float []> materials, HashMap<FloatBuffer, Integer> indices)
+	{
+		if (!(material instanceof PhongMaterial))
+			return -1;
+		PhongMaterial phong = (PhongMaterial)material;
+		float [] values = new float[FLOATS_PER_MATERIAL];
+		System.arraycopy(phong.ambient, 0, values, 0, 4);
+		System.arraycopy(phong.diffuse, 0, values, 4, 4);
+		System.arraycopy(phong.specular, 0, values, 8, 4);
+		values[12] = phong.shininess;
+
+		// float buffers compare by content
+		FloatBuffer key = FloatBuffer.wrap(values);
+		Integer index = indices.get(key);
+		if (index == null)
+		{
+			index = materials.size();
+			materials.add(values);
+			indices.put(key, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Whether two trees hold the same scene: the same kinds of nodes with
+	 * the same names, transformations, meshes, materials and lights.
+	 */
+	public static boolean isSameTree(SceneNode a, SceneNode b)
+	{
+		ArrayList<SceneNode> pending = new ArrayList<SceneNode>();
+		pending.add(a);
+		pending.add(b);
+		while (!pending.isEmpty())
+		{
+			SceneNode y = pending.remove(pending.size() - 1);
+			SceneNode x = pending.remove(pending.size() - 1);
+			if (x.getClass() != y.getClass() || x.getChildCount() != y.getChildCount()
+					|| !(x.getName() == null ? y.getName() == null : x.getName().equals(y.getName()))
+					|| !x.translation.equals(y.translation) || !x.rotation.equals(y.rotation)
+					|| !x.scaling.equals(y.scaling))
+				return false;
+			if (x instanceof MeshNode)
+			{
+				MeshNode mx = (MeshNode)x, my = (MeshNode)y;
+				PhongMaterial px = (PhongMaterial)mx.getMaterial(), py = (PhongMaterial)my.getMaterial();
+				if (mx.getMesh().getClass() != my.getMesh().getClass()
+						|| !Arrays.equals(px.ambient, py.ambient) || !Arrays.equals(px.diffuse, py.diffuse)
+						|| !Arrays.equals(px.specular, py.specular) || px.shininess != py.shininess)
+					return false;
+			}
+			if (x instanceof LightNode && !Arrays.equals(((LightNode)x).intensity, ((LightNode)y).intensity))
+				return false;
+			for (int i = 0; i < x.getChildCount(); i++)
+			{
+				pending.add(x.getSceneNodeChild(i));
+				pending.add(y.getSceneNodeChild(i));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The path of the binary version of the given YAML scene file.
+	 */
+	public static File getBinaryFile(File sceneFile)
+	{
+		String name = sceneFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0)
+			name = name.substring(0, dot);
+		return new File(sceneFile.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Converts every YAML scene file given on the command line to a binary
+	 * file next to it, and checks that both read back as the same tree.
+	 */
+	public static void main(String [] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: BinarySceneFile scene.txt [scene.txt ...]");
+			System.exit(1);
+		}
+		boolean allSame = true;
+		for (String arg : args)
+		{
+			File sceneFile = new File(arg);
+			File outFile = getBinaryFile(sceneFile);
+
+			long start = System.nanoTime();
+			FileReader in = new FileReader(sceneFile);
+			SceneNode root;
+			try
+			{
+				root = SceneReader.read(in);
+			}
+			finally
+			{
+				in.close();
+			}
+			long parsed = System.nanoTime();
+			write(root, Float.NaN, outFile);
+			long written = System.nanoTime();
+			SceneNode copy = map(outFile).buildTree();
+			long loaded = System.nanoTime();
+
+			boolean same = isSameTree(root, copy);
+			allSame &= same;
+			System.out.println(sceneFile + " -> " + outFile + " (YAML " + (parsed - start) / 1000000
+					+ " ms, write " + (written - parsed) / 1000000 + " ms, load " + (loaded - written) / 1000000
+					+ " ms)" + (same ? "" : ": DIFFERS FROM THE YAML"));
+		}
+		if (!allSame)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,300 @@
+package cs4620.scene;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.media.opengl.GL2;
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+
+import cs4620.material.Material;
+import cs4620.shape.MeshBuffers;
+import cs4620.shape.MeshCache;
+import cs4620.shape.MeshData;
+import cs4620.shape.TriangleMesh;
+
+/*
+ * The merged geometry of a frozen subtree (see SceneNode.freeze()). Every
+ * triangle mesh in the subtree is transformed into the frame of the frozen
+ * node and appended to one set of buffers per material state, so
+ * the subtree draws with one call per material instead of one per mesh.
+ * Meshes whose arrays are not at hand (not built yet, or not triangle
+ * meshes) are kept apart and drawn on their own. The merged buffers keep
+ * float positions, as 16 bits across a whole subtree may be too coarse for
+ * its smaller meshes.
+ *
+ * The buffers are built on the GL thread from the render snapshot of the
+ * subtree when it is first rendered. Any edit in the subtree thaws the node
+ * (see SceneNode.thawWithAncestors()), so the snapshot they were built from
+ * stays current; only the meshes' geometry can change under them, e.g. from
+ * the tolerance slider, which is checked every time they are drawn and has
+ * the buffers rebuilt. Buffers of thawed nodes are freed by deleteReleased()
+ * on the GL thread.
+ */
+
+class FrozenGeometry {
+
+	// a mesh node of the subtree, and what it looked like when merged
+	private static class Member
+	{
+		RenderSnapshot.Node node;
+		Matrix4f toFrozen;
+		MeshCache.Entry geometry;
+		boolean merged;
+		MeshData data; // only kept while merging
+	}
+
+	// the merged geometry of all members with the same material state
+	private static class Group
+	{
+		Material material;
+		final ArrayList<Member> members = new ArrayList<Member>();
+
+		MeshBuffers buffers;
+	}
+
+	private static final ConcurrentLinkedQueue<FrozenGeometry> released = new ConcurrentLinkedQueue<FrozenGeometry>();
+
+	private volatile boolean isReleased = false;
+
+	// null until first built
+	private ArrayList<Member> members;
+	private final ArrayList<Group> groups = new ArrayList<Group>();
+	private final ArrayList<Member> separate = new ArrayList<Member>();
+
+	// scratch space for queue()
+	private final Matrix4f memberToEye = new Matrix4f();
+
+	/**
+	 * Makes sure the merged buffers match the given snapshot of the frozen
+	 * node, building them if needed. Returns false if the node has been
+	 * thawed, in which case the subtree must be drawn normally.
+	 */
+	boolean prepare(GL2 gl, RenderSnapshot.Node root)
+	{
+		if (isReleased)
+			return false;
+		if (members == null)
+		{
+			build(gl, root);
+			return true;
+		}
+
+		for (int i = 0; i < members.size(); i++)
+		{
+			Member member = members.get(i);
+			if (getGeometry(member.node) != member.geometry
+					|| (!member.merged && getMeshData(member.node) != null))
+			{
+				deleteBuffers(gl);
+				build(gl, root);
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues the merged buffers, and the meshes that could not be merged,
+	 * for drawing with the given transformation from the frozen node's frame
+	 * to eye coordinates.
+	 */
+	void queue(GL2 gl, RenderQueue queue, Matrix4f toEye, boolean drawWireframe)
+	{
+		for (int i = 0; i < groups.size(); i++)
+		{
+			Group group = groups.get(i);
+			queue.add(group.material, group.buffers, drawWireframe, toEye);
+		}
+		for (int i = 0; i < separate.size(); i++)
+		{
+			Member member = separate.get(i);
+			memberToEye.mul(toEye, member.toFrozen);
+			queue.add(gl, member.node, memberToEye, drawWireframe);
+		}
+	}
+
+	private void build(GL2 gl, RenderSnapshot.Node root)
+	{
+		members = new ArrayList<Member>();
+		HashMap<Integer, ArrayList<Group>> groupsByHash = new HashMap<Integer, ArrayList<Group>>();
+
+		// collect the mesh nodes with their transformation to the frozen
+		// node's frame, iteratively like the other subtree walks
+		ArrayList<RenderSnapshot.Node> pendingNodes = new ArrayList<RenderSnapshot.Node>();
+		ArrayList<Matrix4f> pendingTransforms = new ArrayList<Matrix4f>();
+		pendingNodes.add(root);
+		Matrix4f identity = new Matrix4f();
+		identity.setIdentity();
+		pendingTransforms.add(identity);
+		while (!pendingNodes.isEmpty())
+		{
+			RenderSnapshot.Node node = pendingNodes.remove(pendingNodes.size() - 1);
+			Matrix4f toFrozen = pendingTransforms.remove(pendingTransforms.size() - 1);
+			for (int c = 0; c < node.getChildCount(); c++)
+			{
+				RenderSnapshot.Node child = node.getChild(c);
+				Matrix4f childToFrozen = new Matrix4f();
+				childToFrozen.mul(toFrozen, child.getLocalTransform());
+				pendingNodes.add(child);
+				pendingTransforms.add(childToFrozen);
+			}
+
+			if (node.getMesh() == null)
+				continue;
+
+			Member member = new Member();
+			member.node = node;
+			member.toFrozen = toFrozen;
+			member.geometry = getGeometry(node);
+			member.data = getMeshData(node);
+			member.merged = member.data != null;
+			members.add(member);
+
+			if (!member.merged)
+			{
+				separate.add(member);
+				continue;
+			}
+
+			Material material = node.getMaterial();
+			ArrayList<Group> candidates = groupsByHash.get(material.getStateHash());
+			if (candidates == null)
+			{
+				candidates = new ArrayList<Group>();
+				groupsByHash.put(material.getStateHash(), candidates);
+			}
+			Group group = null;
+			for (int i = 0; i < candidates.size() && group == null; i++)
+				if (candidates.get(i).material.hasSameState(material))
+					group = candidates.get(i);
+			if (group == null)
+			{
+				group = new Group();
+				group.material = material;
+				candidates.add(group);
+				groups.add(group);
+			}
+			group.members.add(member);
+		}
+
+		for (int i = 0; i < groups.size(); i++)
+		{
+			Group group = groups.get(i);
+			group.buffers = new MeshBuffers(gl, false);
+			group.buffers.upload(gl, merge(group));
+		}
+		for (int i = 0; i < members.size(); i++)
+			members.get(i).data = null;
+	}
+
+	/**
+	 * Concatenates the geometry of the group's members, transformed to the
+	 * frozen node's frame.
+	 */
+	private static MeshData merge(Group group)
+	{
+		int numVertices = 0, numTriangles = 0, numLines = 0;
+		for (int i = 0; i < group.members.size(); i++)
+		{
+			MeshData data = group.members.get(i).data;
+			numVertices += data.getNumVertices();
+			numTriangles += data.getNumTriangles();
+			numLines += data.wireframe.length / 2;
+		}
+
+		MeshData merged = new MeshData(new float[3 * numVertices], new float[3 * numVertices],
+				new int[3 * numTriangles], new int[2 * numLines]);
+		Matrix3f normalMatrix = new Matrix3f();
+		int vertexOffset = 0, triangleOffset = 0, lineOffset = 0;
+		for (int i = 0; i < group.members.size(); i++)
+		{
+			Member member = group.members.get(i);
+			MeshData data = member.data;
+			Matrix4f m = member.toFrozen;
+			SceneProgram.computeNormalMatrix(m, normalMatrix);
+
+			for (int v = 0; v < data.getNumVertices(); v++)
+			{
+				float x = data.vertices[3*v], y = data.vertices[3*v+1], z = data.vertices[3*v+2];
+				int o = 3 * (vertexOffset + v);
+				merged.vertices[o]   = m.m00 * x + m.m01 * y + m.m02 * z + m.m03;
+				merged.vertices[o+1] = m.m10 * x + m.m11 * y + m.m12 * z + m.m13;
+				merged.vertices[o+2] = m.m20 * x + m.m21 * y + m.m22 * z + m.m23;
+
+				float nx = data.normals[3*v], ny = data.normals[3*v+1], nz = data.normals[3*v+2];
+				float tx = normalMatrix.m00 * nx + normalMatrix.m01 * ny + normalMatrix.m02 * nz;
+				float ty = normalMatrix.m10 * nx + normalMatrix.m11 * ny + normalMatrix.m12 * nz;
+				float tz = normalMatrix.m20 * nx + normalMatrix.m21 * ny + normalMatrix.m22 * nz;
+				float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+				if (length > 0)
+				{
+					tx /= length; ty /= length; tz /= length;
+				}
+				merged.normals[o] = tx;
+				merged.normals[o+1] = ty;
+				merged.normals[o+2] = tz;
+			}
+
+			// a mirroring transformation turns the triangles inside out
+			boolean flip = m.determinant() < 0;
+			for (int t = 0; t < data.triangles.length; t += 3)
+			{
+				int o = 3 * triangleOffset + t;
+				merged.triangles[o]   = vertexOffset + data.triangles[t];
+				merged.triangles[o+1] = vertexOffset + data.triangles[flip ? t+2 : t+1];
+				merged.triangles[o+2] = vertexOffset + data.triangles[flip ? t+1 : t+2];
+			}
+			for (int l = 0; l < data.wireframe.length; l++)
+				merged.wireframe[2 * lineOffset + l] = vertexOffset + data.wireframe[l];
+
+			vertexOffset += data.getNumVertices();
+			triangleOffset += data.getNumTriangles();
+			lineOffset += data.wireframe.length / 2;
+		}
+		return merged;
+	}
+
+	private void deleteBuffers(GL2 gl)
+	{
+		for (int i = 0; i < groups.size(); i++)
+		{
+			groups.get(i).buffers.delete(gl);
+		}
+		groups.clear();
+		separate.clear();
+		members = null;
+	}
+
+	private static MeshCache.Entry getGeometry(RenderSnapshot.Node node)
+	{
+		return node.getMesh() instanceof TriangleMesh ? ((TriangleMesh)node.getMesh()).getGeometry() : null;
+	}
+
+	private static MeshData getMeshData(RenderSnapshot.Node node)
+	{
+		return node.getMesh() instanceof TriangleMesh ? ((TriangleMesh)node.getMesh()).getMeshData() : null;
+	}
+
+	/**
+	 * Gives up the buffers, which are freed by the next deleteReleased().
+	 * May be called on any thread.
+	 */
+	void release()
+	{
+		isReleased = true;
+		released.add(this);
+	}
+
+	/**
+	 * Frees the buffers of every released FrozenGeometry. Cheap when there
+	 * is nothing to do, so it can be called every frame.
+	 */
+	static void deleteReleased(GL2 gl)
+	{
+		FrozenGeometry frozen;
+		while ((frozen = released.poll()) != null)
+			frozen.deleteBuffers(gl);
+	}
+}
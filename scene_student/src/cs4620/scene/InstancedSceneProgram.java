@@ -0,0 +1,99 @@
+package cs4620.scene;
+
+import java.util.HashMap;
+
+import javax.media.opengl.GL2;
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+
+import cs4620.framework.GlslException;
+import cs4620.framework.InstanceBuffer;
+
+public class InstancedSceneProgram extends SceneProgram {
+
+	/**
+	 * A SceneProgram whose shaders read the modelview matrix, normal matrix
+	 * and material colors from per-instance vertex attributes rather than
+	 * uniforms. The scene renderer recognizes programs of this class and
+	 * draws all nodes that share a mesh with one instanced draw call.
+	 *
+	 * The lighting and projection uniforms are the same as SceneProgram's.
+	 */
+
+	// Attribute indices of the instance attributes. Matrices take one index
+	// per column: the modelview uses 2-5 and the normal matrix 6-8.
+	public static final int INSTANCE_MODELVIEW_INDEX      = 2;
+	public static final int INSTANCE_NORMAL_MATRIX_INDEX  = 6;
+	public static final int INSTANCE_AMBIENT_COLOR_INDEX  = 9;
+	public static final int INSTANCE_DIFFUSE_COLOR_INDEX  = 10;
+
+	public static final String INSTANCE_MODELVIEW_STRING     = "in_InstanceModelView";     // mat4
+	public static final String INSTANCE_NORMAL_MATRIX_STRING = "in_InstanceNormalMatrix";  // mat3
+	public static final String INSTANCE_AMBIENT_COLOR_STRING = "in_InstanceAmbientColor";  // vec3
+	public static final String INSTANCE_DIFFUSE_COLOR_STRING = "in_InstanceDiffuseColor";  // vec3
+
+	// Layout of one instance record, in floats. Matrices are column-major.
+	public static final int MODELVIEW_OFFSET      = 0;
+	public static final int NORMAL_MATRIX_OFFSET  = 16;
+	public static final int AMBIENT_COLOR_OFFSET  = 25;
+	public static final int DIFFUSE_COLOR_OFFSET  = 28;
+	public static final int FLOATS_PER_INSTANCE   = 31;
+
+	/**
+	 * The attribute map of SceneProgram extended with the instance attributes.
+	 */
+	public static HashMap<Integer, String> getInstancedAttributeMap() {
+		HashMap<Integer, String> attributeMap = getAttributeMap();
+
+		attributeMap.put(INSTANCE_MODELVIEW_INDEX, INSTANCE_MODELVIEW_STRING);
+		attributeMap.put(INSTANCE_NORMAL_MATRIX_INDEX, INSTANCE_NORMAL_MATRIX_STRING);
+		attributeMap.put(INSTANCE_AMBIENT_COLOR_INDEX, INSTANCE_AMBIENT_COLOR_STRING);
+		attributeMap.put(INSTANCE_DIFFUSE_COLOR_INDEX, INSTANCE_DIFFUSE_COLOR_STRING);
+
+		return attributeMap;
+	}
+
+	public InstancedSceneProgram(GL2 glContext, String vertexSrcFile,
+			String fragmentSrcFile) throws GlslException {
+		super(glContext, vertexSrcFile, fragmentSrcFile, getInstancedAttributeMap());
+	}
+
+	/**
+	 * Creates an instance buffer laid out the way these shaders expect.
+	 */
+	public static InstanceBuffer createInstanceBuffer(GL2 gl)
+	{
+		InstanceBuffer buffer = new InstanceBuffer(gl, FLOATS_PER_INSTANCE);
+		for(int c = 0; c < 4; c++)
+			buffer.addAttribute(INSTANCE_MODELVIEW_INDEX + c, 4, MODELVIEW_OFFSET + 4 * c);
+		for(int c = 0; c < 3; c++)
+			buffer.addAttribute(INSTANCE_NORMAL_MATRIX_INDEX + c, 3, NORMAL_MATRIX_OFFSET + 3 * c);
+		buffer.addAttribute(INSTANCE_AMBIENT_COLOR_INDEX, 3, AMBIENT_COLOR_OFFSET);
+		buffer.addAttribute(INSTANCE_DIFFUSE_COLOR_INDEX, 3, DIFFUSE_COLOR_OFFSET);
+		return buffer;
+	}
+
+	/**
+	 * Writes one instance record into out, starting at offset.
+	 */
+	public static void writeInstance(float [] out, int offset, Matrix4f modelView,
+			Matrix3f normalMatrix, float [] ambient, float [] diffuse)
+	{
+		int i = offset + MODELVIEW_OFFSET;
+		out[i++] = modelView.m00; out[i++] = modelView.m10; out[i++] = modelView.m20; out[i++] = modelView.m30;
+		out[i++] = modelView.m01; out[i++] = modelView.m11; out[i++] = modelView.m21; out[i++] = modelView.m31;
+		out[i++] = modelView.m02; out[i++] = modelView.m12; out[i++] = modelView.m22; out[i++] = modelView.m32;
+		out[i++] = modelView.m03; out[i++] = modelView.m13; out[i++] = modelView.m23; out[i++] = modelView.m33;
+
+		i = offset + NORMAL_MATRIX_OFFSET;
+		out[i++] = normalMatrix.m00; out[i++] = normalMatrix.m10; out[i++] = normalMatrix.m20;
+		out[i++] = normalMatrix.m01; out[i++] = normalMatrix.m11; out[i++] = normalMatrix.m21;
+		out[i++] = normalMatrix.m02; out[i++] = normalMatrix.m12; out[i++] = normalMatrix.m22;
+
+		i = offset + AMBIENT_COLOR_OFFSET;
+		out[i++] = ambient[0]; out[i++] = ambient[1]; out[i++] = ambient[2];
+
+		i = offset + DIFFUSE_COLOR_OFFSET;
+		out[i++] = diffuse[0]; out[i++] = diffuse[1]; out[i++] = diffuse[2];
+	}
+}
@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
-
 import cs4620.util.Util;
 
 public class LightNode extends SceneNode
@@ -16,7 +14,8 @@ public class LightNode extends SceneNode
 	public static final float INTENSITY_CONSTANT = 0.4f;
 
 	/**
-	 * Diffuse intensity.
+	 * Diffuse intensity. Edit it through setIntensity(), so that the change
+	 * is rendered.
 	 */
 	public final float[] intensity = new float[] { INTENSITY_CONSTANT, INTENSITY_CONSTANT, INTENSITY_CONSTANT, 1 };
 
@@ -40,6 +39,13 @@ public class LightNode extends SceneNode
 		intensity[0] = r;
 		intensity[1] = g;
 		intensity[2] = b;
+		snapshotChanged();
+	}
+
+	@Override
+	protected RenderSnapshot.Node createSnapshot(RenderSnapshot.Node [] children)
+	{
+		return new RenderSnapshot.Node(this, children, null, null, intensity.clone(), getFrozenGeometry());
 	}
 
 	public static void setAmbient(float r, float g, float b)
@@ -76,9 +82,10 @@ public class LightNode extends SceneNode
 
 		Util.assign4ElementArrayFromYamlObject(ambient, yamlMap.get("ambient"));
 		Util.assign4ElementArrayFromYamlObject(intensity, yamlMap.get("intensity"));
+		snapshotChanged();
 	}
 
-	public static SceneNode fromYamlObject(GL2 gl, Object yamlObject)
+	public static SceneNode fromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
@@ -87,19 +94,19 @@ public class LightNode extends SceneNode
 		LightNode result = new LightNode();
 		result.setName((String)yamlMap.get("name"));
 		result.extractTransformationFromYamlObject(yamlObject);
-		result.addChildrenFromYamlObject(gl, yamlObject);
+		result.addChildrenFromYamlObject(yamlObject);
 		result.extractLightFromYamlObject(yamlObject);
 
 		return result;
 	}
 	
-	public void addChildrenFromYamlObject(GL2 gl, Object yamlObject)
+	public void addChildrenFromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
 		Map<?, ?> yamlMap = (Map<?, ?>)yamlObject;
 		List<?> childrenList = (List<?>)yamlMap.get("children");
 		for(Object o : childrenList)
-			insert(SceneNode.fromYamlObject(gl, o),getChildCount());
+			insert(SceneNode.fromYamlObject(o),getChildCount());
 	}
 }
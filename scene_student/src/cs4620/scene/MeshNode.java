@@ -5,6 +5,7 @@ import java.util.Map;
 import javax.media.opengl.GL2;
 import javax.vecmath.Matrix4f;
 
+import cs4620.framework.BoundingBox;
 import cs4620.material.Material;
 import cs4620.material.PhongMaterial;
 import cs4620.shape.Mesh;
@@ -26,9 +27,9 @@ public class MeshNode extends SceneNode
 		this("", null, null);
 	}
 
-	public MeshNode(GL2 gl, String name)
+	public MeshNode(String name)
 	{
-		this(name, new Sphere(gl), new PhongMaterial());
+		this(name, new Sphere(), new PhongMaterial());
 	}
 
 	public MeshNode(String name, Mesh mesh)
@@ -50,7 +51,25 @@ public class MeshNode extends SceneNode
 
 	public void setMesh(Mesh mesh)
 	{
+		Mesh oldMesh = this.mesh;
+		if (oldMesh != null && oldMesh != mesh)
+			oldMesh.dispose();
 		this.mesh = mesh;
+		if (getIndex() != null)
+			getIndex().meshChanged(this, oldMesh);
+		subtreeBoundsChanged();
+	}
+
+	@Override
+	protected boolean getOwnBounds(BoundingBox out)
+	{
+		if (mesh == null)
+			return true;
+		BoundingBox meshBounds = mesh.getBoundingBox();
+		if (meshBounds == null)
+			return false;
+		out.set(meshBounds);
+		return true;
 	}
 
 	public Material getMaterial()
@@ -72,15 +91,26 @@ public class MeshNode extends SceneNode
 		getMesh().drawWireframe(gl);
 	}
 	
-	public void drawForPicking(GL2 gl)
+	public void setMaterial(Material material)
 	{
-		gl.glLoadName(getMesh().getId());
-		getMesh().draw(gl);
+		this.material = material;
+		materialChanged();
 	}
 
-	public void setMaterial(Material material)
+	/**
+	 * Must be called after the material is edited in place.
+	 */
+	public void materialChanged()
 	{
-		this.material = material;
+		thawWithAncestors();
+		snapshotChanged();
+	}
+
+	@Override
+	protected RenderSnapshot.Node createSnapshot(RenderSnapshot.Node [] children)
+	{
+		return new RenderSnapshot.Node(this, children, mesh,
+				material == null ? null : material.snapshot(), null, getFrozenGeometry());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -94,13 +124,13 @@ public class MeshNode extends SceneNode
 		return result;
 	}
 
-	public void extractMeshFromYamlObject(GL2 gl, Object yamlObject)
+	public void extractMeshFromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
 		Map<?, ?> yamlMap = (Map<?, ?>)yamlObject;
 
-		mesh = Mesh.fromYamlObject(gl, yamlMap.get("mesh"));
+		setMesh(Mesh.fromYamlObject(yamlMap.get("mesh")));
 	}
 
 	public void extractMaterialFromYamlObject(Object yamlObject)
@@ -120,12 +150,13 @@ public class MeshNode extends SceneNode
 		Util.assign4ElementArrayFromYamlObject(glMaterial.ambient, materialMap.get("ambient"));
 		Util.assign4ElementArrayFromYamlObject(glMaterial.diffuse, materialMap.get("diffuse"));
 		Util.assign4ElementArrayFromYamlObject(glMaterial.specular, materialMap.get("specular"));
-		glMaterial.shininess = Float.valueOf(materialMap.get("shininess").toString());
+		glMaterial.shininess = Util.getFloatFromYamlObject(materialMap.get("shininess"));
 
 		material = glMaterial;
+		materialChanged();
 	}
 
-	public static SceneNode fromYamlObject(GL2 gl, Object yamlObject)
+	public static SceneNode fromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
@@ -134,8 +165,8 @@ public class MeshNode extends SceneNode
 		MeshNode result = new MeshNode();
 		result.setName((String)yamlMap.get("name"));
 		result.extractTransformationFromYamlObject(yamlObject);
-		result.addChildrenFromYamlObject(gl, yamlObject);
-		result.extractMeshFromYamlObject(gl, yamlObject);
+		result.addChildrenFromYamlObject(yamlObject);
+		result.extractMeshFromYamlObject(yamlObject);
 		result.extractMaterialFromYamlObject(yamlObject);
 
 		return result;
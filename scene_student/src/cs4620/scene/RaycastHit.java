@@ -0,0 +1,62 @@
+package cs4620.scene;
+
+import javax.vecmath.Point3f;
+
+/*
+ * The closest intersection of a ray with the scene, as found by
+ * Scene.raycast().
+ */
+
+public class RaycastHit {
+
+	private final MeshNode node;
+	private final int triangle;
+	private final float t;
+	private final Point3f point;
+
+	public RaycastHit(MeshNode node, int triangle, float t, Point3f point)
+	{
+		this.node = node;
+		this.triangle = triangle;
+		this.t = t;
+		this.point = point;
+	}
+
+	/**
+	 * The node whose mesh was hit.
+	 */
+	public MeshNode getNode()
+	{
+		return node;
+	}
+
+	/**
+	 * Index of the triangle hit, in the node's mesh.
+	 */
+	public int getTriangle()
+	{
+		return triangle;
+	}
+
+	/**
+	 * Ray parameter of the hit: the hit point is origin + t * direction.
+	 */
+	public float getT()
+	{
+		return t;
+	}
+
+	/**
+	 * The hit point, in the frame of the root of the scene.
+	 */
+	public Point3f getPoint()
+	{
+		return point;
+	}
+
+	@Override
+	public String toString()
+	{
+		return node + ", triangle " + triangle + " at " + point;
+	}
+}
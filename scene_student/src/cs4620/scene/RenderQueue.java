@@ -0,0 +1,418 @@
+package cs4620.scene;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.media.opengl.GL2;
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+
+import cs4620.framework.InstanceBuffer;
+import cs4620.framework.Program;
+import cs4620.framework.VertexArray;
+import cs4620.material.Material;
+import cs4620.material.PhongMaterial;
+import cs4620.shape.Mesh;
+import cs4620.shape.MeshBuffers;
+import cs4620.shape.TriangleMesh;
+
+/*
+ * The draws of one render pass, collected during traversal and submitted
+ * afterwards in an order that keeps state changes down.
+ *
+ * Each draw is a mesh, its material, the vertex array to draw with the
+ * buffers it reads (null for meshes that draw themselves) and its
+ * transformation; geometry that
+ * belongs to no single mesh, such as a frozen subtree's merged buffers, has
+ * no mesh. Draws are ordered by a 64 bit key: from the top, 24 bits of vertex array serial, 24 bits of the
+ * material's state hash, and 16 bits of distance from the eye, so that
+ * draws of one geometry are grouped, within that draws with the same
+ * material, and within that nearer draws come first. The keys are sorted
+ * with a least significant digit radix sort, skipping digits that are the
+ * same for every key.
+ *
+ * On submission, a vertex array is bound, and the program told how to
+ * read its buffers, only when it differs from the previous draw's, and a material is applied only when it sets different
+ * state than the previous one. With an InstancedSceneProgram, each run of
+ * draws of one vertex array becomes a single instanced draw.
+ */
+
+public class RenderQueue {
+
+	private static final int GEOMETRY_SHIFT = 40;
+	private static final int MATERIAL_SHIFT = 16;
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX = 1 << RADIX_BITS;
+	private static final int NUM_DIGITS = 64 / RADIX_BITS;
+
+	private int numItems = 0;
+	private long [] keys = new long[64];
+	private int [] order = new int[64];
+	private Mesh [] meshes = new Mesh[64];
+	private Material [] materials = new Material[64];
+	private MeshBuffers [] buffers = new MeshBuffers[64];
+	private VertexArray [] arrays = new VertexArray[64];
+	private Matrix4f [] transforms = new Matrix4f[64];
+
+	// scratch space for sort()
+	private long [] sortedKeys = new long[64];
+	private int [] sortedOrder = new int[64];
+	private final int [] counts = new int[NUM_DIGITS * RADIX];
+
+	// scratch space for instanced submission
+	private InstanceBuffer instanceBuffer;
+	private final float [] instanceRecord = new float[InstancedSceneProgram.FLOATS_PER_INSTANCE];
+	private final Matrix3f normalMatrix = new Matrix3f();
+
+	// statistics of the last sort() and submit()
+	private int numSortPasses;
+	private long sortNanos;
+	private long submitNanos;
+	private int numDrawCalls;
+	private int numArrayBinds;
+	private int numMaterialChanges;
+	private int numProgramChanges;
+
+	public void clear()
+	{
+		// keep the meshes from being held on to
+		Arrays.fill(meshes, 0, numItems, null);
+		Arrays.fill(materials, 0, numItems, null);
+		Arrays.fill(buffers, 0, numItems, null);
+		Arrays.fill(arrays, 0, numItems, null);
+		numItems = 0;
+	}
+
+	/**
+	 * Queues a draw of node's mesh with the given transformation to eye
+	 * coordinates, using its wireframe geometry if drawWireframe is set.
+	 * Triangle meshes that are not built yet are skipped; the GL buffers of
+	 * those that are built are made here if they were never drawn before.
+	 */
+	public void add(GL2 gl, RenderSnapshot.Node node, Matrix4f toEye, boolean drawWireframe)
+	{
+		Mesh mesh = node.getMesh();
+		if (mesh instanceof TriangleMesh)
+		{
+			MeshBuffers meshBuffers = ((TriangleMesh)mesh).getBuffers(gl);
+			if (meshBuffers != null) // otherwise not built yet, nothing to draw
+				add(mesh, node.getMaterial(), meshBuffers, drawWireframe, toEye);
+		}
+		else if (mesh != null)
+		{
+			add(mesh, node.getMaterial(), null, false, toEye);
+		}
+	}
+
+	/**
+	 * Queues a draw of the given buffers with the given material and
+	 * transformation to eye coordinates, which is copied.
+	 */
+	public void add(Material material, MeshBuffers meshBuffers, boolean drawWireframe, Matrix4f toEye)
+	{
+		add(null, material, meshBuffers, drawWireframe, toEye);
+	}
+
+	/**
+	 * Queues a draw of mesh with the given material and transformation to
+	 * eye coordinates, which is copied. meshBuffers are the buffers to draw,
+	 * their wireframe if drawWireframe is set, or null if the mesh is to
+	 * draw itself.
+	 */
+	public void add(Mesh mesh, Material material, MeshBuffers meshBuffers, boolean drawWireframe, Matrix4f toEye)
+	{
+		if (numItems == keys.length)
+			grow();
+
+		VertexArray array = null;
+		if (meshBuffers != null)
+			array = drawWireframe ? meshBuffers.getWireframeArray() : meshBuffers.getTrianglesArray();
+
+		int i = numItems++;
+		meshes[i] = mesh;
+		materials[i] = material;
+		buffers[i] = meshBuffers;
+		arrays[i] = array;
+		if (transforms[i] == null)
+			transforms[i] = new Matrix4f();
+		transforms[i].set(toEye);
+
+		long geometry = array == null ? 0 : array.getSerial() & 0xffffff;
+		int hash = material.getStateHash();
+		long state = (hash ^ (hash >>> 24)) & 0xffffff;
+		// for non-negative floats the bits order like the values
+		float distance = Math.max(0, -toEye.m23);
+		long depth = Float.floatToIntBits(distance) >>> 15;
+		keys[i] = geometry << GEOMETRY_SHIFT | state << MATERIAL_SHIFT | depth;
+	}
+
+	private void grow()
+	{
+		int capacity = 2 * keys.length;
+		keys = Arrays.copyOf(keys, capacity);
+		order = Arrays.copyOf(order, capacity);
+		meshes = Arrays.copyOf(meshes, capacity);
+		materials = Arrays.copyOf(materials, capacity);
+		buffers = Arrays.copyOf(buffers, capacity);
+		arrays = Arrays.copyOf(arrays, capacity);
+		transforms = Arrays.copyOf(transforms, capacity);
+		sortedKeys = new long[capacity];
+		sortedOrder = new int[capacity];
+	}
+
+	public int getNumItems()
+	{
+		return numItems;
+	}
+
+	/**
+	 * Orders the queued draws by key.
+	 */
+	public void sort()
+	{
+		long start = System.nanoTime();
+
+		// histograms of all digits in one pass
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < numItems; i++)
+		{
+			long key = keys[i];
+			order[i] = i;
+			for (int d = 0; d < NUM_DIGITS; d++)
+				counts[d * RADIX + (int)((key >>> (d * RADIX_BITS)) & (RADIX - 1))]++;
+		}
+
+		long [] fromKeys = keys, toKeys = sortedKeys;
+		int [] fromOrder = order, toOrder = sortedOrder;
+		numSortPasses = 0;
+		for (int d = 0; d < NUM_DIGITS; d++)
+		{
+			int base = d * RADIX;
+			int shift = d * RADIX_BITS;
+
+			// a digit shared by every key does not change the order
+			if (numItems == 0 || counts[base + (int)((fromKeys[0] >>> shift) & (RADIX - 1))] == numItems)
+				continue;
+
+			int sum = 0;
+			for (int b = 0; b < RADIX; b++)
+			{
+				int count = counts[base + b];
+				counts[base + b] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < numItems; i++)
+			{
+				long key = fromKeys[i];
+				int slot = counts[base + (int)((key >>> shift) & (RADIX - 1))]++;
+				toKeys[slot] = key;
+				toOrder[slot] = fromOrder[i];
+			}
+
+			long [] swapKeys = fromKeys; fromKeys = toKeys; toKeys = swapKeys;
+			int [] swapOrder = fromOrder; fromOrder = toOrder; toOrder = swapOrder;
+			numSortPasses++;
+		}
+
+		// the result may have ended up in the scratch arrays
+		if (fromKeys != keys)
+		{
+			sortedKeys = keys;
+			sortedOrder = order;
+			keys = fromKeys;
+			order = fromOrder;
+		}
+
+		sortNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Draws the queued draws in the order of the last sort() with the given
+	 * program, using the meshes' wireframe geometry if drawWireframe is set.
+	 */
+	public void submit(GL2 gl, SceneProgram program, boolean drawWireframe)
+	{
+		long start = System.nanoTime();
+		numDrawCalls = 0;
+		numArrayBinds = 0;
+		numMaterialChanges = 0;
+		numProgramChanges = 0;
+
+		if (!program.isUsed())
+		{
+			Program.use(gl, program);
+			numProgramChanges++;
+		}
+
+		if (program instanceof InstancedSceneProgram)
+			submitInstanced(gl, program, drawWireframe);
+		else
+			submitEach(gl, program, drawWireframe);
+
+		submitNanos = System.nanoTime() - start;
+	}
+
+	private void submitEach(GL2 gl, SceneProgram program, boolean drawWireframe)
+	{
+		VertexArray bound = null;
+		Material applied = null;
+
+		for (int k = 0; k < numItems; k++)
+		{
+			int i = order[k];
+			Material material = materials[i];
+			if (applied == null || !applied.hasSameState(material))
+			{
+				material.applyTo(gl, program);
+				applied = material;
+				numMaterialChanges++;
+			}
+			program.setModelView(gl, transforms[i]);
+
+			VertexArray array = arrays[i];
+			if (array == null)
+			{
+				if (bound != null)
+				{
+					bound.unbind(gl);
+					bound = null;
+				}
+				drawMesh(gl, meshes[i], drawWireframe);
+				continue;
+			}
+			if (array != bound)
+			{
+				if (bound != null)
+					bound.unbind(gl);
+				array.bind(gl);
+				buffers[i].applyTo(gl, program);
+				bound = array;
+				numArrayBinds++;
+			}
+			array.drawBound(gl);
+			numDrawCalls++;
+		}
+
+		if (bound != null)
+			bound.unbind(gl);
+	}
+
+	private void submitInstanced(GL2 gl, SceneProgram program, boolean drawWireframe)
+	{
+		if (instanceBuffer == null)
+			instanceBuffer = InstancedSceneProgram.createInstanceBuffer(gl);
+
+		int k = 0;
+		while (k < numItems)
+		{
+			int i = order[k];
+			VertexArray array = arrays[i];
+			if (array == null || !(materials[i] instanceof PhongMaterial))
+			{
+				// cannot be instanced, draw on its own
+				materials[i].applyTo(gl, program);
+				numMaterialChanges++;
+				program.setModelView(gl, transforms[i]);
+				if (array == null)
+					drawMesh(gl, meshes[i], drawWireframe);
+				else
+				{
+					buffers[i].applyTo(gl, program);
+					array.draw(gl);
+					numArrayBinds++;
+					numDrawCalls++;
+				}
+				k++;
+				continue;
+			}
+
+			int end = k + 1;
+			while (end < numItems && arrays[order[end]] == array
+					&& materials[order[end]] instanceof PhongMaterial)
+				end++;
+
+			FloatBuffer data = instanceBuffer.begin(end - k);
+			for (; k < end; k++)
+			{
+				i = order[k];
+				PhongMaterial material = (PhongMaterial)materials[i];
+				SceneProgram.computeNormalMatrix(transforms[i], normalMatrix);
+				InstancedSceneProgram.writeInstance(instanceRecord, 0, transforms[i], normalMatrix,
+						material.ambient, material.diffuse);
+				data.put(instanceRecord);
+			}
+			instanceBuffer.upload(gl);
+			buffers[i].applyTo(gl, program);
+			array.drawInstanced(gl, instanceBuffer);
+			numArrayBinds++;
+			numDrawCalls++;
+		}
+	}
+
+	private void drawMesh(GL2 gl, Mesh mesh, boolean drawWireframe)
+	{
+		if (drawWireframe)
+			mesh.drawWireframe(gl);
+		else
+			mesh.draw(gl);
+		numDrawCalls++;
+	}
+
+	/**
+	 * Number of radix sort passes the last sort() needed; digits shared by
+	 * all keys are skipped.
+	 */
+	public int getNumSortPasses()
+	{
+		return numSortPasses;
+	}
+
+	public long getSortNanos()
+	{
+		return sortNanos;
+	}
+
+	public long getSubmitNanos()
+	{
+		return submitNanos;
+	}
+
+	public int getNumDrawCalls()
+	{
+		return numDrawCalls;
+	}
+
+	/**
+	 * Number of times the last submit() bound a vertex array. Drawing in
+	 * tree order would have bound one for every queued draw.
+	 */
+	public int getNumArrayBinds()
+	{
+		return numArrayBinds;
+	}
+
+	/**
+	 * Number of times the last submit() applied a material. Drawing in tree
+	 * order would have applied one for every queued draw.
+	 */
+	public int getNumMaterialChanges()
+	{
+		return numMaterialChanges;
+	}
+
+	public int getNumProgramChanges()
+	{
+		return numProgramChanges;
+	}
+
+	@Override
+	public String toString()
+	{
+		return numItems + " draws in " + numDrawCalls + " calls, "
+				+ numArrayBinds + " vertex array binds, "
+				+ numMaterialChanges + " material changes, "
+				+ numProgramChanges + " program changes; sort "
+				+ (sortNanos / 1000) + " us (" + numSortPasses + " passes), submit "
+				+ (submitNanos / 1000) + " us";
+	}
+}
@@ -0,0 +1,196 @@
+package cs4620.scene;
+
+import java.util.ArrayList;
+
+import javax.vecmath.Matrix4f;
+
+import cs4620.framework.BoundingBox;
+import cs4620.material.Material;
+import cs4620.shape.Mesh;
+
+/*
+ * An immutable copy of what the renderer reads from a scene: for every node
+ * its transformation, mesh, material, light intensity and frozen geometry,
+ * and its children. Scene.publish() makes one after each batch of edits and
+ * hands it to the GL thread through an atomic reference, so drawing never
+ * sees a node that is half edited and needs no locks.
+ *
+ * Snapshots share the nodes of the subtrees that did not change: each
+ * SceneNode keeps the snapshot node last made of it until it or one of its
+ * descendants is edited, so publishing copies only the edited nodes and the
+ * paths from them to the root.
+ *
+ * Meshes are not copied; their geometry only ever changes on the GL thread.
+ */
+
+public final class RenderSnapshot {
+
+	public static final class Node
+	{
+		private final SceneNode source;
+		private final Matrix4f localTransform;
+		private final Node [] children;
+		private final Mesh mesh;
+		private final Material material;
+		private final float [] intensity;
+		private final FrozenGeometry frozen;
+
+		// Bounds of the subtree in this node's frame. They depend on nothing
+		// but the meshes besides the immutable fields, so they are cached
+		// here; only the thread that renders touches them.
+		private final BoundingBox subtreeBounds = new BoundingBox();
+		private boolean subtreeUnbounded;
+		private boolean subtreeBoundsValid = false;
+		private int subtreeBoundsVersion;
+
+		Node(SceneNode source, Node [] children, Mesh mesh, Material material, float [] intensity,
+				FrozenGeometry frozen)
+		{
+			this.source = source;
+			this.localTransform = new Matrix4f(source.getLocalTransform());
+			this.children = children;
+			this.mesh = mesh;
+			this.material = material;
+			this.intensity = intensity;
+			this.frozen = frozen;
+		}
+
+		/**
+		 * The node this is a copy of. Only its identity may be used while
+		 * rendering, its fields may be changing.
+		 */
+		public SceneNode getSource()
+		{
+			return source;
+		}
+
+		/**
+		 * The transformation from this node's frame to its parent's. Must not
+		 * be modified.
+		 */
+		public Matrix4f getLocalTransform()
+		{
+			return localTransform;
+		}
+
+		public int getChildCount()
+		{
+			return children.length;
+		}
+
+		public Node getChild(int i)
+		{
+			return children[i];
+		}
+
+		/**
+		 * The mesh of a MeshNode, otherwise null.
+		 */
+		public Mesh getMesh()
+		{
+			return mesh;
+		}
+
+		/**
+		 * The material of a MeshNode, otherwise null.
+		 */
+		public Material getMaterial()
+		{
+			return material;
+		}
+
+		public boolean isLight()
+		{
+			return intensity != null;
+		}
+
+		/**
+		 * The intensity of a LightNode, otherwise null. Must not be modified.
+		 */
+		public float [] getIntensity()
+		{
+			return intensity;
+		}
+
+		FrozenGeometry getFrozenGeometry()
+		{
+			return frozen;
+		}
+
+		private boolean isSubtreeBoundsStale()
+		{
+			return !subtreeBoundsValid || subtreeBoundsVersion != Mesh.getBoundsVersion();
+		}
+
+		/**
+		 * Returns the (cached) bounds of all geometry in this node's subtree,
+		 * in this node's frame, or null if some of it has unknown bounds. Like
+		 * SceneNode.getSubtreeBounds(), but safe to call from the thread that
+		 * renders while the scene is being edited.
+		 */
+		public BoundingBox getSubtreeBounds()
+		{
+			if (isSubtreeBoundsStale())
+			{
+				ArrayList<Node> stale = new ArrayList<Node>();
+				stale.add(this);
+				for (int i = 0; i < stale.size(); i++)
+				{
+					Node node = stale.get(i);
+					for (int c = 0; c < node.children.length; c++)
+						if (node.children[c].isSubtreeBoundsStale())
+							stale.add(node.children[c]);
+				}
+				for (int i = stale.size() - 1; i >= 0; i--)
+					stale.get(i).updateSubtreeBounds();
+			}
+			return subtreeUnbounded ? null : subtreeBounds;
+		}
+
+		private void updateSubtreeBounds()
+		{
+			subtreeBounds.setEmpty();
+			subtreeUnbounded = false;
+			if (mesh != null)
+			{
+				BoundingBox meshBounds = mesh.getBoundingBox();
+				if (meshBounds == null)
+					subtreeUnbounded = true;
+				else
+					subtreeBounds.set(meshBounds);
+			}
+			for (int c = 0; c < children.length && !subtreeUnbounded; c++)
+			{
+				Node child = children[c];
+				if (child.subtreeUnbounded)
+					subtreeUnbounded = true;
+				else
+					subtreeBounds.extend(child.subtreeBounds, child.localTransform);
+			}
+			subtreeBoundsValid = true;
+			subtreeBoundsVersion = Mesh.getBoundsVersion();
+		}
+	}
+
+	private final Node root;
+	private final long serial;
+
+	RenderSnapshot(Node root, long serial)
+	{
+		this.root = root;
+		this.serial = serial;
+	}
+
+	public Node getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Counts the snapshots published by a scene, starting from 1.
+	 */
+	public long getSerial()
+	{
+		return serial;
+	}
+}
@@ -1,36 +1,79 @@
 package cs4620.scene;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.media.opengl.GL2;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreePath;
 import javax.vecmath.Matrix4f;
+import javax.vecmath.Tuple3f;
 import javax.vecmath.Vector3f;
 
 import org.yaml.snakeyaml.Yaml;
 
+import cs4620.framework.BoundingBox;
+import cs4620.framework.Frustum;
 import cs4620.framework.Transforms;
 import cs4620.shape.Mesh;
-import cs4620.shape.Sphere;
+import cs4620.shape.MeshRebuilder;
 
 public class Scene
 {
 	protected DefaultTreeModel treeModel;
 
-	public Scene(GL2 gl)
+	private static final Matrix4f IDENTITY = Transforms.identity3DH();
+
+	// Edits of the tree are made between beginEdit() and endEdit(), from any
+	// thread; traversals only read the snapshot published after the last
+	// batch, so they need no locks and never see half an edit.
+	private final ReentrantLock editLock = new ReentrantLock();
+	private final AtomicReference<RenderSnapshot> snapshot = new AtomicReference<RenderSnapshot>();
+	private long numPublished = 0;
+
+	private final SceneIndex index = new SceneIndex();
+
+	// tessellation tolerance of the last rebuild, or of the loaded file
+	private float tolerance = Float.NaN;
+
+	// explicit stack for traverseHelper(), grown on demand to the tree depth,
+	// with each node's transformation to eye coordinates
+	private RenderSnapshot.Node[] traversalNodes = new RenderSnapshot.Node[32];
+	private int[] traversalChildIndices = new int[32];
+	private Matrix4f[] traversalTransforms = new Matrix4f[32];
+
+	// traversers are reused from frame to frame
+	private final RenderTraverser renderTraverser = new RenderTraverser();
+	private final PickingTraverser pickingTraverser = new PickingTraverser();
+	private final LightingTraverser lightingTraverser = new LightingTraverser();
+	private final RebuildTraverser rebuildTraverser = new RebuildTraverser();
+	private final ArrayList<Mesh> rebuildList = new ArrayList<Mesh>();
+
+	// ray query structure over the mesh nodes, rebuilt by raycast() when stale
+	private SceneBVH sceneBVH;
+	private SceneNode sceneBVHRoot;
+	private int sceneBVHModificationCount;
+	private int sceneBVHBoundsVersion;
+
+	public Scene()
 	{
 		SceneNode root = new SceneNode("Root");
 
-		MeshNode sphereNode = new MeshNode(gl, "Sphere");
-		sphereNode.setMesh(new Sphere(gl));
+		MeshNode sphereNode = new MeshNode("Sphere");
 		root.add(sphereNode);
 
 		LightNode lightNode = new LightNode("Light");
@@ -39,6 +82,8 @@ public class Scene
 		root.add(lightNode);
 
 		treeModel = new DefaultTreeModel(root);
+		index.addSubtree(root);
+		publish();
 	} 
 	
 	public SceneNode getSceneRoot()
@@ -47,103 +92,312 @@ public class Scene
 	}
 	
 	/**
-	 * Traverses the scene, giving each traversed node to the traverser object so
-	 * it can do something with the node (e.g. render it, rebuild its meshes,
-	 * gather info about lights). The modelView matrix describes a transformation
-	 * that takes the scene described by the hierarchy to where it should be drawn.
-	 * Each time a node is "traversed", the traverser should be given the node as
-	 * well as the full transformation that takes the node up to the coordinate
-	 * frame of the root and through the transformation specified by modelView.
+	 * Starts a batch of edits of the scene tree: of transformations,
+	 * materials, lights, meshes, the hierarchy or frozen subtrees. Edits may
+	 * be made on any thread, but only inside such a batch, which keeps them
+	 * from interleaving with other threads' edits. Batches may nest.
+	 */
+	public void beginEdit()
+	{
+		editLock.lock();
+	}
+	
+	/**
+	 * Ends a batch of edits started by beginEdit(). Ending the outermost
+	 * batch publishes the result for rendering.
+	 */
+	public void endEdit()
+	{
+		try
+		{
+			if (editLock.getHoldCount() == 1)
+				publish();
+		}
+		finally
+		{
+			editLock.unlock();
+		}
+	}
+	
+	/**
+	 * Makes the current state of the tree what traversals see, if it changed
+	 * since it was last published. Only the nodes edited since then are
+	 * copied, the new snapshot shares all others with the previous one.
+	 */
+	public void publish()
+	{
+		editLock.lock();
+		try
+		{
+			RenderSnapshot.Node root = getSceneRoot().getSnapshot();
+			RenderSnapshot current = snapshot.get();
+			if (current == null || current.getRoot() != root)
+				snapshot.set(new RenderSnapshot(root, ++numPublished));
+		}
+		finally
+		{
+			editLock.unlock();
+		}
+	}
+	
+	/**
+	 * The last published snapshot of the tree. Never blocks, so it can be
+	 * called from the thread that renders while another one edits.
+	 */
+	public RenderSnapshot getSnapshot()
+	{
+		return snapshot.get();
+	}
+	
+	/**
+	 * Traverses the last published snapshot of the scene, giving each traversed
+	 * node to the traverser object so it can do something with the node (e.g.
+	 * render it, rebuild its meshes, gather info about lights). The modelView
+	 * matrix describes a transformation that takes the scene described by the
+	 * hierarchy to where it should be drawn. Each time a node is "traversed",
+	 * the traverser should be given the node as well as the full transformation
+	 * that takes the node up to the coordinate frame of the root and through
+	 * the transformation specified by modelView.
 	 */
 	
 	public void traverse(SceneTraverser traverser, Matrix4f modelView)
 	{
-		traverseHelper(traverser, getSceneRoot(), modelView);
+		traverser.traversalStarted();
+		traverseHelper(traverser, snapshot.get().getRoot(), modelView);
 		traverser.traversalDone(); // perform any post-traversal actions
 	}
 	
-	protected void traverseHelper(SceneTraverser traverser, SceneNode node, Matrix4f transform)
+	/**
+	 * Visits the subtree rooted at node in depth-first pre-order. The walk is
+	 * iterative over a node/child-index stack that only grows when a deeper
+	 * hierarchy than any seen before is traversed, so steady-state traversals
+	 * allocate nothing and very deep scenes cannot overflow the call stack.
+	 */
+	protected void traverseHelper(SceneTraverser traverser, RenderSnapshot.Node node, Matrix4f modelView)
 	{
-		Matrix4f nextTransform = new Matrix4f(transform);
-		
-		// TODO (Scene P3):
-		// * Modify nextTransform so the transform sends geometry from the
-		//   local frame of node to the frame of the root of the scene hierarchy
-		//   and through the modelView transform that was given to traverse. 
-		//   The Transforms class (cs4620.framework) contains basic transformation matrices.
-		// * Use traverser.traverseNode() to traverse this node with nextTransform.
-		// * Recursively traverse the tree.
-		// Get parameters for the transform
-		Vector3f scale = node.scaling;
-		Vector3f rotation = node.rotation;
-		Vector3f translation = node.translation;
-		// Calculate the affine transformation in the form of TRzRyRxS
-		nextTransform.mul(Transforms.translate3DH(translation.x, translation.y, translation.z));
-		nextTransform.mul(Transforms.rotateAxis3DH(2, rotation.z));
-		nextTransform.mul(Transforms.rotateAxis3DH(1, rotation.y));
-		nextTransform.mul(Transforms.rotateAxis3DH(0, rotation.x));
-		nextTransform.mul(Transforms.scale3DH(scale.x, scale.y, scale.z));
-		// Traverse this node
-		traverser.traverseNode(node, nextTransform);
-		// Traverse child nodes
-		for(int i = 0; i < node.getChildCount(); i++)
-		{
-			SceneNode child = node.getSceneNodeChild(i);
-			traverseHelper(traverser, child, nextTransform);
-		}
-	}
-
-	public void rebuildMeshes(GL2 gl, float tolerance)
-	{
-		RebuildTraverser rebuildTraverser = new RebuildTraverser(gl, tolerance);
-		traverse(rebuildTraverser, new Matrix4f()); // we don't care about transformations in this case
+		int depth = 0;
+		if (!visit(traverser, node, modelView, depth))
+			return;
+		pushTraversal(node, depth++);
+
+		while (depth > 0)
+		{
+			RenderSnapshot.Node top = traversalNodes[depth - 1];
+			int next = traversalChildIndices[depth - 1];
+			if (next < top.getChildCount())
+			{
+				traversalChildIndices[depth - 1] = next + 1;
+				RenderSnapshot.Node child = top.getChild(next);
+				if (visit(traverser, child, traversalTransforms[depth - 1], depth))
+					pushTraversal(child, depth++);
+			}
+			else
+			{
+				traversalNodes[--depth] = null;
+			}
+		}
+	}
+
+	/**
+	 * Hands node, at the given depth of the stack, to the traverser. Returns
+	 * false if the traverser chose to skip the node's subtree.
+	 */
+	private boolean visit(SceneTraverser traverser, RenderSnapshot.Node node, Matrix4f parentToEye, int depth)
+	{
+		// the transformation to eye coordinates is kept on the stack for the
+		// node's children; traversers copy out whatever they keep
+		if (depth == traversalNodes.length)
+		{
+			int capacity = 2 * traversalNodes.length;
+			traversalNodes = Arrays.copyOf(traversalNodes, capacity);
+			traversalChildIndices = Arrays.copyOf(traversalChildIndices, capacity);
+			traversalTransforms = Arrays.copyOf(traversalTransforms, capacity);
+		}
+		if (traversalTransforms[depth] == null)
+			traversalTransforms[depth] = new Matrix4f();
+		Matrix4f toEye = traversalTransforms[depth];
+		toEye.mul(parentToEye, node.getLocalTransform());
+
+		if (!traverser.enterSubtree(node, toEye))
+			return false;
+		traverser.traverseNode(node, toEye);
+		return true;
+	}
+
+	private void pushTraversal(RenderSnapshot.Node node, int depth)
+	{
+		traversalNodes[depth] = node;
+		traversalChildIndices[depth] = 0;
+	}
+
+	/**
+	 * Builds every mesh for the given tolerance. Needs no GL, so it may be
+	 * called without a context; GL buffers are made as meshes are drawn.
+	 */
+	public void rebuildMeshes(float tolerance)
+	{
+		this.tolerance = tolerance;
+		rebuildTraverser.set(tolerance);
+		traverse(rebuildTraverser, IDENTITY); // we don't care about transformations in this case
+	}
+
+	/**
+	 * Like rebuildMeshes(tolerance), but tessellates on the rebuilder's
+	 * worker threads; meshes switch to their new geometry as it arrives.
+	 */
+	public void rebuildMeshes(GL2 gl, float tolerance, MeshRebuilder rebuilder)
+	{
+		this.tolerance = tolerance;
+		rebuildTraverser.set(rebuildList);
+		traverse(rebuildTraverser, IDENTITY);
+		rebuilder.rebuild(gl, rebuildList, tolerance);
+		rebuildList.clear();
 	}
 
 	public void render(GL2 gl, SceneProgram program, Matrix4f modelView)
 	{
-		RenderTraverser renderTraverser = new RenderTraverser(gl, program);
+		render(gl, program, modelView, null);
+	}
+	
+	/**
+	 * Renders the scene, skipping every subtree whose bounds lie outside the
+	 * given view frustum (in eye coordinates). A null frustum draws everything.
+	 */
+	public void render(GL2 gl, SceneProgram program, Matrix4f modelView, Frustum frustum)
+	{
+		renderTraverser.set(gl, program, false, frustum);
 		traverse(renderTraverser, modelView);
 	}
 	
 	public void renderWireframe(GL2 gl, SceneProgram program, Matrix4f modelView)
 	{
-		RenderTraverser renderTraverser = new RenderTraverser(gl, program, true);
+		renderWireframe(gl, program, modelView, null);
+	}
+	
+	public void renderWireframe(GL2 gl, SceneProgram program, Matrix4f modelView, Frustum frustum)
+	{
+		renderTraverser.set(gl, program, true, frustum);
 		traverse(renderTraverser, modelView);
 	}
+	
+	/**
+	 * Draws every mesh in the color that encodes its id, for picking. Only
+	 * SceneProgram.setObjectId() and the matrices are set, so program should
+	 * be a plain (not instanced) picking program.
+	 */
+	public void renderForPicking(GL2 gl, SceneProgram program, Matrix4f modelView, Frustum frustum)
+	{
+		pickingTraverser.set(gl, program, frustum);
+		traverse(pickingTraverser, modelView);
+	}
+	
+	/**
+	 * Number of subtrees skipped by the last render because they were out
+	 * of view.
+	 */
+	public int getNumCulledSubtrees()
+	{
+		return renderTraverser.numCulled;
+	}
 
-	public void setupLighting(GL2 gl, SceneProgram program, Matrix4f modelView)
+	/**
+	 * Number of frozen subtrees the last render drew from their merged
+	 * buffers, see SceneNode.freeze().
+	 */
+	public int getNumFrozenSubtrees()
 	{
-		LightingTraverser lightingTraverser = new LightingTraverser(gl, program);
-		traverse(lightingTraverser, modelView);
+		return renderTraverser.numFrozen;
 	}
 
-	public SceneNode searchForMeshId(int meshId)
+	/**
+	 * The queue of the last render, with its sort and submission statistics.
+	 */
+	public RenderQueue getRenderQueue()
 	{
-		return searchForMeshIdHelper(getSceneRoot(), meshId);		
+		return renderTraverser.queue;
 	}
 
-	private SceneNode searchForMeshIdHelper(SceneNode node, int meshId)
+	public void setupLighting(GL2 gl, SceneProgram program, Matrix4f modelView)
 	{
-		if (node instanceof MeshNode)
+		lightingTraverser.set(gl, program);
+		traverse(lightingTraverser, modelView);
+	}
+
+	/**
+	 * Finds the closest point where the ray origin + t * direction, t >= 0,
+	 * given in the frame of the root, hits a triangle mesh in the scene, or
+	 * returns null. Meshes that are not built yet are not hit. Uses a BVH over
+	 * the mesh nodes on top of a shared BVH per mesh geometry; after an edit,
+	 * the first query rebuilds the former, and the latter is built the first
+	 * time a ray reaches a mesh. Must be called on the GL thread, which is
+	 * the one that changes geometry.
+	 */
+	public RaycastHit raycast(Tuple3f origin, Tuple3f direction)
+	{
+		// the BVH is built from the tree itself, not the snapshot
+		editLock.lock();
+		try
+		{
+			return raycastHelper(origin, direction);
+		}
+		finally
 		{
-			MeshNode meshNode = (MeshNode)node;
-			if (meshNode.getMesh().getId() == meshId)
-				return meshNode;
+			editLock.unlock();
 		}
-		for (int i = 0; i < node.getChildCount(); i++)
+	}
+
+	private RaycastHit raycastHelper(Tuple3f origin, Tuple3f direction)
+	{
+		if (sceneBVH == null || sceneBVHRoot != getSceneRoot()
+				|| sceneBVHModificationCount != SceneNode.getModificationCount()
+				|| sceneBVHBoundsVersion != Mesh.getBoundsVersion())
 		{
-			SceneNode result = searchForMeshIdHelper(node.getSceneNodeChild(i), meshId);
-			if (result != null)
-				return result;
+			sceneBVHRoot = getSceneRoot();
+			sceneBVHModificationCount = SceneNode.getModificationCount();
+			sceneBVHBoundsVersion = Mesh.getBoundsVersion();
+			sceneBVH = new SceneBVH(sceneBVHRoot);
 		}
-		return null;
+		return sceneBVH.raycast(origin, direction);
+	}
+
+	/**
+	 * Finds the node with the given mesh id, or null if no node in the scene
+	 * has it. May be called while the tree is being edited.
+	 */
+	public SceneNode searchForMeshId(int meshId)
+	{
+		return index.findByMeshId(meshId);
+	}
+
+	/**
+	 * The index of the nodes in the scene by mesh id, name and type.
+	 */
+	public SceneIndex getIndex()
+	{
+		return index;
 	}
 	
 	/**
-	 * Save the current scene to a file.
+	 * The tessellation tolerance the meshes were last rebuilt at, or that a
+	 * loaded binary scene was saved at; NaN if neither is known.
+	 */
+	public float getTolerance()
+	{
+		return tolerance;
+	}
+
+	/**
+	 * Save the current scene to a file, in the binary format if the name
+	 * ends in BinarySceneFile.EXTENSION and as YAML otherwise.
 	 */
 	public void save(String filename) throws IOException
 	{
+		if (BinarySceneFile.isBinarySceneFile(filename))
+		{
+			BinarySceneFile.write(getSceneRoot(), tolerance, new File(filename));
+			return;
+		}
+
 		Yaml yaml = new Yaml();
 		Object rep = ((SceneNode)treeModel.getRoot()).getYamlObjectRepresentation();
 		String output = yaml.dump(rep);
@@ -155,28 +409,56 @@ public class Scene
 	}
 
 	/**
-	 * Stolen from http://snippets.dzone.com/posts/show/1335
+	 * Replaces the scene with the one in a file written by save(). The file
+	 * is read as it is parsed (see SceneReader), or memory-mapped if it is
+	 * binary, outside of an edit batch; only swapping in the new tree is one.
+	 * SceneLoader does the same in the background.
 	 */
-	private static String readFileAsString(String filePath) throws IOException{
-	    byte[] buffer = new byte[(int) new File(filePath).length()];
-	    BufferedInputStream f = null;
-	    try {
-	        f = new BufferedInputStream(new FileInputStream(filePath));
-	        f.read(buffer);
-	    } finally {
-	        if (f != null) try { f.close(); } catch (IOException ignored) { }
-	    }
-	    return new String(buffer);
+	public void load(String filename) throws java.io.IOException
+	{
+		SceneLoader loader = new SceneLoader(this, filename);
+		setSceneRoot(loader.read(), loader.getTolerance());
 	}
 
-	public void load(GL2 gl, String filename) throws java.io.IOException
+	/**
+	 * Replaces the scene's tree with newRoot, which has no parent, disposing
+	 * the meshes of the old one. tolerance is the tessellation tolerance the
+	 * new tree was saved at, or NaN if it is not known.
+	 */
+	public void setSceneRoot(SceneNode newRoot, float tolerance)
 	{
-		String fileContent = readFileAsString(filename);
-		Yaml yaml = new Yaml();
-		Object yamlObject = yaml.load(fileContent);
+		if (!Float.isNaN(tolerance))
+			this.tolerance = tolerance;
 
-		SceneNode newRoot = SceneNode.fromYamlObject(gl, yamlObject);
-		treeModel.setRoot(newRoot);
+		beginEdit();
+		try
+		{
+			disposeMeshes(getSceneRoot());
+			index.removeSubtree(getSceneRoot());
+			treeModel.setRoot(newRoot);
+			index.addSubtree(newRoot);
+		}
+		finally
+		{
+			endEdit();
+		}
+	}
+	
+	/**
+	 * Releases the meshes of every MeshNode, and the merged buffers of every
+	 * frozen node, in the subtree rooted at node, which is about to leave the
+	 * scene.
+	 */
+	static void disposeMeshes(SceneNode node)
+	{
+		Enumeration<?> nodes = node.preorderEnumeration();
+		while (nodes.hasMoreElements())
+		{
+			Object child = nodes.nextElement();
+			((SceneNode)child).thaw();
+			if (child instanceof MeshNode && ((MeshNode)child).getMesh() != null)
+				((MeshNode)child).getMesh().dispose();
+		}
 	}
 
 	private static String getBaseClassName(Class<? extends Object> c)
@@ -194,7 +476,15 @@ public class Scene
 			selected = (SceneNode) path.getLastPathComponent();
 
 		MeshNode node = new MeshNode(name, mesh);
-		treeModel.insertNodeInto(node, selected, selected.getChildCount());
+		beginEdit();
+		try
+		{
+			treeModel.insertNodeInto(node, selected, selected.getChildCount());
+		}
+		finally
+		{
+			endEdit();
+		}
 	}
 
 	/**
@@ -210,42 +500,125 @@ public class Scene
 		if (path != null)
 			selected = (SceneNode) path.getLastPathComponent();
 
-		treeModel.insertNodeInto(node, selected, selected.getChildCount());
+		beginEdit();
+		try
+		{
+			treeModel.insertNodeInto(node, selected, selected.getChildCount());
+		}
+		finally
+		{
+			endEdit();
+		}
 	}
 
 	/**
 	 * Filters out extraneous child nodes from the
-	 * supplied array of Treeables.
+	 * supplied array of Treeables: those with a supplied ancestor, and
+	 * repeats. Whether a node has a supplied ancestor is remembered for every
+	 * node on the way up, so no ancestor is looked at twice and the time is
+	 * linear in the selection and the part of the tree above it.
 	 */
 	public Vector<SceneNode> filterChildren(SceneNode[] nodes)
 	{
-		// Trim extraneous child nodes
+		HashSet<SceneNode> selected = new HashSet<SceneNode>(Arrays.asList(nodes));
+		// whether a node or one of its ancestors is selected
+		HashMap<SceneNode, Boolean> covered = new HashMap<SceneNode, Boolean>();
+		ArrayList<SceneNode> path = new ArrayList<SceneNode>();
+
 		Vector<SceneNode> filtered = new Vector<SceneNode>();
+		HashSet<SceneNode> added = new HashSet<SceneNode>();
 		for (int i = 0; i < nodes.length; i++)
-			filtered.add(nodes[i]);
-
-		//Find the redundant children
-		for (Iterator<SceneNode> j = filtered.iterator(); j.hasNext();) {
-			SceneNode tj = j.next();
-			for (int i = 0; i < nodes.length; i++) {
-				SceneNode ti = nodes[i];
-				if (ti == tj) continue;
-				if (tj.isNodeAncestor(ti)) j.remove();
+		{
+			Boolean isCovered = null;
+			path.clear();
+			for (SceneNode n = (SceneNode)nodes[i].getParent(); n != null && isCovered == null; n = (SceneNode)n.getParent())
+			{
+				isCovered = covered.get(n);
+				if (isCovered == null && selected.contains(n))
+					isCovered = Boolean.TRUE;
+				path.add(n);
 			}
+			if (isCovered == null)
+				isCovered = Boolean.FALSE;
+			for (int j = 0; j < path.size(); j++)
+				covered.put(path.get(j), isCovered);
+
+			if (!isCovered && added.add(nodes[i]))
+				filtered.add(nodes[i]);
 		}
 		return filtered;
 	}
 
-	public void deleteNodes(SceneNode[] nodes)
+	/**
+	 * Detaches nodes from their parents, taking all children of one parent
+	 * out in one pass, and tells the tree model's listeners with one event
+	 * per parent rather than a reload of the whole tree.
+	 */
+	private void removeNodes(List<SceneNode> nodes)
 	{
-		Vector<SceneNode> filtered = filterChildren(nodes);
-		for (int i=0; i<filtered.size(); i++) {
-			SceneNode t = (SceneNode)filtered.get(i);
-			if(t == treeModel.getRoot())
+		LinkedHashMap<SceneNode, HashSet<SceneNode>> byParent = new LinkedHashMap<SceneNode, HashSet<SceneNode>>();
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			SceneNode parent = (SceneNode)nodes.get(i).getParent();
+			if (parent == null)
 				continue;
-			treeModel.removeNodeFromParent(t);
+			HashSet<SceneNode> siblings = byParent.get(parent);
+			if (siblings == null)
+			{
+				siblings = new HashSet<SceneNode>();
+				byParent.put(parent, siblings);
+			}
+			siblings.add(nodes.get(i));
+		}
+
+		for (Map.Entry<SceneNode, HashSet<SceneNode>> entry : byParent.entrySet())
+		{
+			SceneNode parent = entry.getKey();
+			HashSet<SceneNode> removed = entry.getValue();
+			int [] indices = new int[removed.size()];
+			Object [] removedChildren = new Object[removed.size()];
+			int n = 0;
+			for (int i = 0; i < parent.getChildCount(); i++)
+			{
+				if (removed.contains(parent.getChildAt(i)))
+				{
+					indices[n] = i;
+					removedChildren[n++] = parent.getChildAt(i);
+				}
+			}
+			parent.removeChildren(removed);
+			treeModel.nodesWereRemoved(parent, indices, removedChildren);
+		}
+	}
+
+	/**
+	 * Inserts nodes, which must have no parent, as children of parent
+	 * starting at childIndex, with one event for the tree model's listeners.
+	 */
+	private void insertNodes(List<SceneNode> nodes, SceneNode parent, int childIndex)
+	{
+		parent.insertChildren(nodes, childIndex);
+		int [] indices = new int[nodes.size()];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = childIndex + i;
+		treeModel.nodesWereInserted(parent, indices);
+	}
+
+	public void deleteNodes(SceneNode[] nodes)
+	{
+		beginEdit();
+		try
+		{
+			Vector<SceneNode> filtered = filterChildren(nodes);
+			filtered.remove(treeModel.getRoot());
+			removeNodes(filtered);
+			for (int i=0; i<filtered.size(); i++)
+				disposeMeshes(filtered.get(i));
+		}
+		finally
+		{
+			endEdit();
 		}
-		treeModel.reload();
 	}
 
 	/**
@@ -255,6 +628,19 @@ public class Scene
 	 * @param groupName
 	 */
 	public SceneNode groupNodes(SceneNode[] nodes, String groupName)
+	{
+		beginEdit();
+		try
+		{
+			return groupNodesHelper(nodes, groupName);
+		}
+		finally
+		{
+			endEdit();
+		}
+	}
+
+	private SceneNode groupNodesHelper(SceneNode[] nodes, String groupName)
 	{
 		Vector<SceneNode> filtered = filterChildren(nodes);
 
@@ -268,13 +654,8 @@ public class Scene
 		int groupIdx = groupParent.getIndex(firstSelected);
 
 		treeModel.insertNodeInto(groupNode, groupParent, groupIdx);
-		for (int i = 0; i < filtered.size(); i++)
-		{
-			SceneNode node = (SceneNode) filtered.get(i);
-			treeModel.removeNodeFromParent(node);
-			treeModel.insertNodeInto(node, groupNode, groupNode.getChildCount());
-		}
-		treeModel.reload();
+		removeNodes(filtered);
+		insertNodes(filtered, groupNode, 0);
 
 		return groupNode;
 	}
@@ -285,21 +666,31 @@ public class Scene
 	 */
 	public void reparent(SceneNode[] nodesToReparent, SceneNode parent)
 	{
-		// Invalid children selected?
-		for (int i=0; i<nodesToReparent.length; i++) {
-			if (parent.isNodeAncestor(nodesToReparent[i])) return;
+		beginEdit();
+		try
+		{
+			reparentHelper(nodesToReparent, parent);
+		}
+		finally
+		{
+			endEdit();
 		}
+	}
 
-		Vector<SceneNode> filtered = filterChildren(nodesToReparent);
+	private void reparentHelper(SceneNode[] nodesToReparent, SceneNode parent)
+	{
+		// Invalid children selected? (the new parent or one of its ancestors)
+		HashSet<SceneNode> selected = new HashSet<SceneNode>(Arrays.asList(nodesToReparent));
+		for (SceneNode n = parent; n != null; n = (SceneNode)n.getParent())
+			if (selected.contains(n)) return;
 
-		//reparent the filtered children each seperately
-		for (int i=0; i<filtered.size(); i++) {
-			SceneNode t = (SceneNode)filtered.get(i);
-			t.removeFromParent();
-			parent.insert(t,0);
-		}
+		Vector<SceneNode> filtered = filterChildren(nodesToReparent);
 
-		treeModel.reload();
+		// the nodes go first under the new parent, the last one selected on
+		// top, as when each was inserted at the front in turn
+		removeNodes(filtered);
+		Collections.reverse(filtered);
+		insertNodes(filtered, parent, 0);
 	}
 
 	public DefaultTreeModel getTreeModel()
@@ -313,35 +704,125 @@ class RenderTraverser extends SceneTraverser {
 	GL2 gl;
 	SceneProgram program;
 	boolean drawWireframe;
+	Frustum frustum;
+	int numCulled;
+	int numFrozen;
+	
+	// Nodes are not drawn as they are visited but queued, and the queue is
+	// sorted and drawn once the traversal is done.
+	final RenderQueue queue = new RenderQueue();
+	
+	public RenderTraverser()
+	{
+		// state is supplied by set() before each traversal
+	}
 	
 	public RenderTraverser(GL2 gl, SceneProgram program)
 	{
-		this.gl = gl;
-		this.program = program;
-		this.drawWireframe = false;
+		set(gl, program, false);
 	}
 	
 	public RenderTraverser(GL2 gl, SceneProgram program, boolean drawWireframe)
+	{
+		set(gl, program, drawWireframe);
+	}
+	
+	public void set(GL2 gl, SceneProgram program, boolean drawWireframe)
+	{
+		set(gl, program, drawWireframe, null);
+	}
+	
+	public void set(GL2 gl, SceneProgram program, boolean drawWireframe, Frustum frustum)
 	{
 		this.gl = gl;
 		this.program = program;
 		this.drawWireframe = drawWireframe;
+		this.frustum = frustum;
 	}
-
+	
+	@Override
+	public void traversalStarted()
+	{
+		FrozenGeometry.deleteReleased(gl);
+		queue.clear();
+		numCulled = 0;
+		numFrozen = 0;
+	}
+	
 	@Override
-	public void traverseNode(SceneNode node, Matrix4f toEye) {
-		if (node instanceof MeshNode)
+	public boolean enterSubtree(RenderSnapshot.Node node, Matrix4f toEye)
+	{
+		if (frustum != null)
 		{
-			MeshNode meshNode = (MeshNode)node;
-			if(drawWireframe)
-				meshNode.drawWireframe(gl, program, toEye);
-			else
-				meshNode.draw(gl, program, toEye);
+			BoundingBox bounds = node.getSubtreeBounds();
+			if (bounds != null && !frustum.intersects(bounds, toEye))
+			{
+				numCulled++;
+				return false;
+			}
 		}
+		
+		// a frozen subtree is drawn from its merged buffers as a whole
+		FrozenGeometry frozen = node.getFrozenGeometry();
+		if (frozen != null && frozen.prepare(gl, node))
+		{
+			frozen.queue(gl, queue, toEye, drawWireframe);
+			numFrozen++;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void traverseNode(RenderSnapshot.Node node, Matrix4f toEye) {
+		if (node.getMesh() != null)
+			queue.add(gl, node, toEye, drawWireframe);
+	}
+	
+	@Override
+	public void traversalDone()
+	{
+		queue.sort();
+		queue.submit(gl, program, drawWireframe);
 	}
 	
 }
 
+class PickingTraverser extends SceneTraverser {
+	
+	GL2 gl;
+	SceneProgram program;
+	Frustum frustum;
+	
+	public void set(GL2 gl, SceneProgram program, Frustum frustum)
+	{
+		this.gl = gl;
+		this.program = program;
+		this.frustum = frustum;
+	}
+	
+	@Override
+	public boolean enterSubtree(RenderSnapshot.Node node, Matrix4f toEye)
+	{
+		if (frustum == null)
+			return true;
+		BoundingBox bounds = node.getSubtreeBounds();
+		return bounds == null || frustum.intersects(bounds, toEye);
+	}
+	
+	@Override
+	public void traverseNode(RenderSnapshot.Node node, Matrix4f toEye) {
+		// the mesh's id as the color, see SceneProgram.setObjectId()
+		Mesh mesh = node.getMesh();
+		if (mesh != null)
+		{
+			program.setObjectId(gl, mesh.getId());
+			program.setModelView(gl, toEye);
+			mesh.draw(gl);
+		}
+	}
+}
+
 class LightingTraverser extends SceneTraverser {
 	
 	GL2 gl;
@@ -350,26 +831,46 @@ class LightingTraverser extends SceneTraverser {
 	Vector3f [] lightColors;
 	int numLights;
 	
-	public LightingTraverser(GL2 gl, SceneProgram program)
+	public LightingTraverser()
 	{
-		this.gl = gl;
-		this.program = program;
-		
 		numLights = 0;
 		lightEyePositions = new Vector3f [SceneProgram.NUM_LIGHTS];
 		lightColors = new Vector3f [SceneProgram.NUM_LIGHTS];
 		
-		// black out all lights, initially
 		for(int i = 0; i < SceneProgram.NUM_LIGHTS; i++)
 		{
 			lightEyePositions[i] = new Vector3f(0.0f, 0.0f, 0.0f);
 			lightColors[i] = new Vector3f(0.0f, 0.0f, 0.0f);
 		}
 	}
+	
+	public LightingTraverser(GL2 gl, SceneProgram program)
+	{
+		this();
+		set(gl, program);
+	}
+	
+	public void set(GL2 gl, SceneProgram program)
+	{
+		this.gl = gl;
+		this.program = program;
+	}
+	
+	@Override
+	public void traversalStarted()
+	{
+		// black out all lights, initially
+		numLights = 0;
+		for(int i = 0; i < SceneProgram.NUM_LIGHTS; i++)
+		{
+			lightEyePositions[i].set(0.0f, 0.0f, 0.0f);
+			lightColors[i].set(0.0f, 0.0f, 0.0f);
+		}
+	}
 
 	@Override
-	public void traverseNode(SceneNode node, Matrix4f toEye) {
-		if (node instanceof LightNode)
+	public void traverseNode(RenderSnapshot.Node node, Matrix4f toEye) {
+		if (node.isLight())
 		{
 			if(numLights >= SceneProgram.NUM_LIGHTS)
 			{
@@ -377,9 +878,9 @@ class LightingTraverser extends SceneTraverser {
 			}
 			else
 			{
-				LightNode lNode = (LightNode) node;
+				float [] intensity = node.getIntensity();
 				lightEyePositions[numLights].set(toEye.m03, toEye.m13, toEye.m23);
-				lightColors[numLights].set(lNode.intensity[0], lNode.intensity[1], lNode.intensity[2]);
+				lightColors[numLights].set(intensity[0], intensity[1], intensity[2]);
 				numLights++;
 			}
 		}
@@ -398,22 +899,39 @@ class LightingTraverser extends SceneTraverser {
 
 class RebuildTraverser extends SceneTraverser {
 	
-	GL2 gl;
 	float tolerance;
+	// if set, meshes are only collected here, to be rebuilt elsewhere
+	ArrayList<Mesh> meshes;
 	
-	public RebuildTraverser(GL2 gl, float tolerance)
+	public RebuildTraverser()
+	{
+		// state is supplied by set() before each traversal
+	}
+	
+	public RebuildTraverser(float tolerance)
+	{
+		set(tolerance);
+	}
+	
+	public void set(float tolerance)
 	{
-		this.gl = gl;
 		this.tolerance = tolerance;
+		this.meshes = null;
+	}
+	
+	public void set(ArrayList<Mesh> meshes)
+	{
+		this.meshes = meshes;
 	}
 
 	@Override
-	public void traverseNode(SceneNode node, Matrix4f toEye) {
-		if (node instanceof MeshNode)
-		{
-			MeshNode meshNode = (MeshNode)node;
-			meshNode.getMesh().buildMesh(gl, tolerance);
-		}
+	public void traverseNode(RenderSnapshot.Node node, Matrix4f toEye) {
+		if (node.getMesh() == null)
+			return;
+		if (meshes != null)
+			meshes.add(node.getMesh());
+		else
+			node.getMesh().buildMesh(tolerance);
 	}
 	
 }
@@ -0,0 +1,128 @@
+package cs4620.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+import javax.vecmath.SingularMatrixException;
+import javax.vecmath.Tuple3f;
+
+import cs4620.framework.BVH;
+import cs4620.framework.BoundingBox;
+import cs4620.shape.TriangleBVH;
+import cs4620.shape.TriangleMesh;
+
+/*
+ * Top level of the two-level ray query structure of a Scene: a BVH over the
+ * world-space bounds of every MeshNode with a built TriangleMesh. A ray that
+ * reaches an instance is taken into the mesh's own frame and cast against
+ * the triangle BVH shared by all meshes with the same geometry, so instances
+ * cost one box each here, however big their meshes are.
+ *
+ * A SceneBVH is a snapshot: Scene rebuilds it when the scene has changed.
+ */
+
+class SceneBVH implements BVH.Intersector {
+
+	private final ArrayList<MeshNode> nodes = new ArrayList<MeshNode>();
+	private final ArrayList<Matrix4f> worldToLocal = new ArrayList<Matrix4f>();
+	private final BVH bvh;
+
+	// ray of the query in progress, and its result
+	private float ox, oy, oz, dx, dy, dz;
+	private int hitInstance;
+	private int hitTriangle;
+
+	SceneBVH(SceneNode root)
+	{
+		BoundingBox worldBox = new BoundingBox();
+		float [] bounds = new float[6 * 64];
+
+		Enumeration<?> all = root.preorderEnumeration();
+		while (all.hasMoreElements())
+		{
+			Object node = all.nextElement();
+			if (!(node instanceof MeshNode) || !(((MeshNode)node).getMesh() instanceof TriangleMesh))
+				continue;
+			MeshNode meshNode = (MeshNode)node;
+			BoundingBox meshBox = meshNode.getMesh().getBoundingBox();
+			if (meshBox == null || meshBox.isEmpty())
+				continue; // not built yet
+
+			Matrix4f world = meshNode.getWorldTransform();
+			Matrix4f inverse = new Matrix4f(world);
+			try
+			{
+				inverse.invert();
+			}
+			catch (SingularMatrixException e)
+			{
+				continue; // scaled to nothing, cannot be hit
+			}
+
+			worldBox.setEmpty();
+			worldBox.extend(meshBox, world);
+			int i = nodes.size();
+			if (6 * (i + 1) > bounds.length)
+				bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+			bounds[6*i]   = worldBox.min.x; bounds[6*i+1] = worldBox.min.y; bounds[6*i+2] = worldBox.min.z;
+			bounds[6*i+3] = worldBox.max.x; bounds[6*i+4] = worldBox.max.y; bounds[6*i+5] = worldBox.max.z;
+
+			nodes.add(meshNode);
+			worldToLocal.add(inverse);
+		}
+
+		bvh = new BVH(bounds, nodes.size());
+	}
+
+	/**
+	 * Casts the ray origin + t * direction, t >= 0, given in the frame of the
+	 * root, and returns the closest hit or null.
+	 */
+	RaycastHit raycast(Tuple3f origin, Tuple3f direction)
+	{
+		ox = origin.x; oy = origin.y; oz = origin.z;
+		dx = direction.x; dy = direction.y; dz = direction.z;
+		hitInstance = -1;
+		hitTriangle = -1;
+
+		float t = bvh.raycast(ox, oy, oz, dx, dy, dz, Float.POSITIVE_INFINITY, this);
+		if (hitInstance < 0)
+			return null;
+
+		Point3f point = new Point3f(ox + t * dx, oy + t * dy, oz + t * dz);
+		return new RaycastHit(nodes.get(hitInstance), hitTriangle, t, point);
+	}
+
+	public float intersect(int instance, float tMax)
+	{
+		TriangleBVH meshBVH = ((TriangleMesh)nodes.get(instance).getMesh()).getBVH();
+		if (meshBVH == null)
+			return tMax;
+
+		// An affine map keeps the ray parameter, so the direction is
+		// transformed without normalizing and t carries over unchanged.
+		Matrix4f m = worldToLocal.get(instance);
+		float lox = m.m00 * ox + m.m01 * oy + m.m02 * oz + m.m03;
+		float loy = m.m10 * ox + m.m11 * oy + m.m12 * oz + m.m13;
+		float loz = m.m20 * ox + m.m21 * oy + m.m22 * oz + m.m23;
+		float ldx = m.m00 * dx + m.m01 * dy + m.m02 * dz;
+		float ldy = m.m10 * dx + m.m11 * dy + m.m12 * dz;
+		float ldz = m.m20 * dx + m.m21 * dy + m.m22 * dz;
+
+		float t = meshBVH.raycast(lox, loy, loz, ldx, ldy, ldz, tMax);
+		if (t < tMax)
+		{
+			hitInstance = instance;
+			hitTriangle = meshBVH.getHitTriangle();
+		}
+		return t;
+	}
+
+	int getNumInstances()
+	{
+		return nodes.size();
+	}
+}
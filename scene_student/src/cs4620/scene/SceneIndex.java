@@ -0,0 +1,155 @@
+package cs4620.scene;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import cs4620.shape.Mesh;
+
+/*
+ * Finds the nodes of a scene by mesh id, name or type without walking the
+ * tree. A node is in the index of the tree it belongs to (see
+ * SceneNode.setParent()), and the index is kept up to date as nodes are
+ * inserted, removed, renamed or given new meshes, so each lookup costs the
+ * size of its answer rather than the size of the scene.
+ *
+ * Nodes are indexed under their exact class; findByType() also returns the
+ * nodes of subclasses, by going through the (few) classes present.
+ *
+ * Lookups may be made on any thread, e.g. picking on the GL thread while the
+ * tree is being edited.
+ */
+
+public class SceneIndex {
+
+	private final HashMap<Integer, MeshNode> byMeshId = new HashMap<Integer, MeshNode>();
+	private final HashMap<String, LinkedHashSet<SceneNode>> byName = new HashMap<String, LinkedHashSet<SceneNode>>();
+	private final HashMap<Class<?>, LinkedHashSet<SceneNode>> byType = new HashMap<Class<?>, LinkedHashSet<SceneNode>>();
+	private int size = 0;
+
+	/**
+	 * Adds node and its descendants, which are joining the indexed tree.
+	 */
+	synchronized void addSubtree(SceneNode node)
+	{
+		ArrayList<SceneNode> pending = new ArrayList<SceneNode>();
+		pending.add(node);
+		while (!pending.isEmpty())
+		{
+			SceneNode current = pending.remove(pending.size() - 1);
+			current.setIndex(this);
+			add(byName, current.getName(), current);
+			add(byType, current.getClass(), current);
+			if (current instanceof MeshNode)
+				addMesh((MeshNode)current, ((MeshNode)current).getMesh());
+			size++;
+			for (int i = 0; i < current.getChildCount(); i++)
+				pending.add(current.getSceneNodeChild(i));
+		}
+	}
+
+	/**
+	 * Removes node and its descendants, which are leaving the indexed tree.
+	 */
+	synchronized void removeSubtree(SceneNode node)
+	{
+		ArrayList<SceneNode> pending = new ArrayList<SceneNode>();
+		pending.add(node);
+		while (!pending.isEmpty())
+		{
+			SceneNode current = pending.remove(pending.size() - 1);
+			current.setIndex(null);
+			remove(byName, current.getName(), current);
+			remove(byType, current.getClass(), current);
+			if (current instanceof MeshNode)
+				removeMesh((MeshNode)current, ((MeshNode)current).getMesh());
+			size--;
+			for (int i = 0; i < current.getChildCount(); i++)
+				pending.add(current.getSceneNodeChild(i));
+		}
+	}
+
+	synchronized void nameChanged(SceneNode node, String oldName)
+	{
+		remove(byName, oldName, node);
+		add(byName, node.getName(), node);
+	}
+
+	synchronized void meshChanged(MeshNode node, Mesh oldMesh)
+	{
+		removeMesh(node, oldMesh);
+		addMesh(node, node.getMesh());
+	}
+
+	private void addMesh(MeshNode node, Mesh mesh)
+	{
+		if (mesh != null)
+			byMeshId.put(mesh.getId(), node);
+	}
+
+	private void removeMesh(MeshNode node, Mesh mesh)
+	{
+		// the id may already have been given to a mesh of another node, if
+		// this one's was disposed first
+		if (mesh != null && byMeshId.get(mesh.getId()) == node)
+			byMeshId.remove(mesh.getId());
+	}
+
+	private static <K> void add(Map<K, LinkedHashSet<SceneNode>> map, K key, SceneNode node)
+	{
+		LinkedHashSet<SceneNode> nodes = map.get(key);
+		if (nodes == null)
+		{
+			nodes = new LinkedHashSet<SceneNode>();
+			map.put(key, nodes);
+		}
+		nodes.add(node);
+	}
+
+	private static <K> void remove(Map<K, LinkedHashSet<SceneNode>> map, K key, SceneNode node)
+	{
+		LinkedHashSet<SceneNode> nodes = map.get(key);
+		if (nodes != null && nodes.remove(node) && nodes.isEmpty())
+			map.remove(key);
+	}
+
+	/**
+	 * Returns the node whose mesh has the given id, or null if there is none.
+	 */
+	public synchronized MeshNode findByMeshId(int meshId)
+	{
+		return byMeshId.get(meshId);
+	}
+
+	/**
+	 * Returns the nodes with the given name, in the order they were added.
+	 */
+	public synchronized List<SceneNode> findByName(String name)
+	{
+		LinkedHashSet<SceneNode> nodes = byName.get(name);
+		return nodes == null ? new ArrayList<SceneNode>() : new ArrayList<SceneNode>(nodes);
+	}
+
+	/**
+	 * Returns the nodes that are instances of type.
+	 */
+	public synchronized <T extends SceneNode> List<T> findByType(Class<T> type)
+	{
+		ArrayList<T> result = new ArrayList<T>();
+		for (Map.Entry<Class<?>, LinkedHashSet<SceneNode>> entry : byType.entrySet())
+			if (type.isAssignableFrom(entry.getKey()))
+				for (SceneNode node : entry.getValue())
+					result.add(type.cast(node));
+		return result;
+	}
+
+	/**
+	 * Number of nodes in the indexed tree.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+}
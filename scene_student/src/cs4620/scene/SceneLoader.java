@@ -0,0 +1,223 @@
+package cs4620.scene;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLRunnable;
+
+import cs4620.framework.GLInvoker;
+
+/*
+ * Opens a scene file without freezing the view. Loading happens in stages:
+ *
+ *   1. A loader thread reads the file into a new tree (see SceneReader and
+ *      BinarySceneFile). Meshes are made but not built, which needs no GL.
+ *   2. On the GL thread, through the GLInvoker, the new tree replaces the
+ *      scene's, so it shows up in the tree view at once, and the listener is
+ *      told. It then typically rebuilds the meshes with a MeshRebuilder,
+ *      whose workers read mesh files and tessellate in parallel and whose
+ *      uploads are spread over frames, so the geometry fills in as it
+ *      arrives.
+ *
+ * A load can be cancelled until the tree has been swapped in; the scene is
+ * then left as it was.
+ */
+
+public class SceneLoader implements Runnable, GLRunnable {
+
+	public static final int READING = 0;
+	public static final int LOADED = 1;
+	public static final int FAILED = 2;
+	public static final int CANCELLED = 3;
+
+	/*
+	 * Told how a load started with start() ended. Both methods are called on
+	 * the GL thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called right after the loaded tree has replaced the scene's.
+		 */
+		public void sceneLoaded(GL2 gl, SceneLoader loader);
+
+		/**
+		 * Called if the file could not be read; the scene is unchanged.
+		 */
+		public void sceneLoadFailed(GL2 gl, SceneLoader loader, Exception e);
+	}
+
+	private final Scene scene;
+	private final String filename;
+	private GLInvoker invoker;
+	private Listener listener;
+
+	private volatile int state = READING;
+	// characters read so far and the file's length, for getProgress()
+	private volatile long numRead = 0;
+	private final long length;
+
+	// the result of reading, handed from the loader thread to the GL thread
+	private SceneNode newRoot;
+	private float tolerance = Float.NaN;
+	private Exception error;
+
+	public SceneLoader(Scene scene, String filename)
+	{
+		this.scene = scene;
+		this.filename = filename;
+		this.length = new File(filename).length();
+	}
+
+	/**
+	 * Starts reading the file on a new thread. The listener is told on the
+	 * GL thread when the load is over, unless it is cancelled.
+	 */
+	public void start(GLInvoker invoker, Listener listener)
+	{
+		this.invoker = invoker;
+		this.listener = listener;
+		Thread thread = new Thread(this, "scene-loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Reads the file into a new tree without adding it to the scene. May be
+	 * called on any thread.
+	 */
+	public SceneNode read() throws IOException
+	{
+		if (BinarySceneFile.isBinarySceneFile(filename))
+		{
+			BinarySceneFile file = BinarySceneFile.map(new File(filename));
+			SceneNode root = file.buildTree();
+			tolerance = file.getTolerance();
+			numRead = length;
+			return root;
+		}
+
+		Reader in = new ProgressReader(new FileReader(filename));
+		try
+		{
+			return SceneReader.read(in);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/*
+	 * Counts what is read for getProgress(), and stops the reading once
+	 * the load is cancelled.
+	 */
+	private class ProgressReader extends FilterReader
+	{
+		ProgressReader(Reader in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read(char [] buffer, int offset, int count) throws IOException
+		{
+			if (state == CANCELLED)
+				throw new InterruptedIOException("loading " + filename + " cancelled");
+			int n = super.read(buffer, offset, count);
+			if (n > 0)
+				numRead += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Stage 1, on the loader thread.
+	 */
+	public void run()
+	{
+		try
+		{
+			newRoot = read();
+		}
+		catch (Exception e)
+		{
+			error = e;
+		}
+		invoker.invoke(false, this);
+	}
+
+	/**
+	 * Stage 2, on the GL thread.
+	 */
+	public boolean run(GLAutoDrawable drawable)
+	{
+		GL2 gl = drawable.getGL().getGL2();
+		if (state == CANCELLED)
+		{
+			if (newRoot != null)
+				Scene.disposeMeshes(newRoot);
+		}
+		else if (error != null)
+		{
+			state = FAILED;
+			listener.sceneLoadFailed(gl, this, error);
+		}
+		else
+		{
+			scene.setSceneRoot(newRoot, tolerance);
+			state = LOADED;
+			listener.sceneLoaded(gl, this);
+		}
+		newRoot = null;
+		return true;
+	}
+
+	/**
+	 * Gives up the load if the tree has not replaced the scene's yet. Must
+	 * be called on the GL thread.
+	 */
+	public void cancel()
+	{
+		if (state == READING)
+			state = CANCELLED;
+	}
+
+	/**
+	 * One of READING, LOADED, FAILED or CANCELLED.
+	 */
+	public int getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Roughly how much of the file has been read, from 0 to 1.
+	 */
+	public float getProgress()
+	{
+		if (length <= 0)
+			return state == READING ? 0 : 1;
+		return Math.min(1, numRead / (float)length);
+	}
+
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	/**
+	 * The tessellation tolerance a binary scene was saved at, known once it
+	 * is read; NaN otherwise.
+	 */
+	public float getTolerance()
+	{
+		return tolerance;
+	}
+}
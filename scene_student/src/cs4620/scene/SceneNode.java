@@ -4,11 +4,17 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
 
-import javax.media.opengl.GL2;
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Vector3f;
 
+import cs4620.framework.BoundingBox;
+import cs4620.shape.Mesh;
 import cs4620.util.Util;
 
 public class SceneNode extends DefaultMutableTreeNode {
@@ -32,6 +38,47 @@ public class SceneNode extends DefaultMutableTreeNode {
 	 */
 	public final Vector3f translation = new Vector3f();
 
+	/**
+	 * Cached transformation taking this node's frame to its parent's frame,
+	 * i.e. T * Rz * Ry * Rx * S built from the components above.
+	 */
+	private final Matrix4f localTransform = new Matrix4f();
+
+	/**
+	 * Cached transformation taking this node's frame to the frame of the
+	 * root of the hierarchy (the product of all local transformations on
+	 * the path from the root down to this node).
+	 */
+	private final Matrix4f worldTransform = new Matrix4f();
+
+	private boolean localTransformDirty = true;
+	private boolean worldTransformDirty = true;
+
+	/**
+	 * Cached bounds of the geometry in this node's subtree, in this node's
+	 * own frame. They depend on the transformations of the descendants but
+	 * not on this node's, so editing a node only makes the bounds of its
+	 * ancestors stale. See getSubtreeBounds().
+	 */
+	private final BoundingBox subtreeBounds = new BoundingBox();
+	private boolean subtreeUnbounded;
+	private boolean subtreeBoundsDirty = true;
+	private int subtreeBoundsVersion;
+
+	// bumped by every edit of any node's transformation, parent or geometry
+	private static int modificationCount = 0;
+
+	// merged geometry drawn in place of the subtree while it is frozen
+	private FrozenGeometry frozen;
+	private static int numFrozen = 0;
+
+	// Immutable copy of this subtree for rendering, see getSnapshot(). Null
+	// after an edit of the subtree; a null node always has null ancestors.
+	private RenderSnapshot.Node snapshot;
+
+	// index of the scene this node belongs to, if any (see SceneIndex)
+	private SceneIndex index;
+
 	public SceneNode()
 	{
 		setName("Unnamed");
@@ -49,6 +96,7 @@ public class SceneNode extends DefaultMutableTreeNode {
 		scaling.set(1,1,1);
 		rotation.set(0, 0, 0);
 		translation.set(0, 0, 0);
+		transformationChanged();
 	}
 
 	public String getName() {
@@ -56,7 +104,22 @@ public class SceneNode extends DefaultMutableTreeNode {
 	}
 
 	public void setName(String name) {
+		String oldName = this.name;
 		this.name = name;
+		if (index != null)
+			index.nameChanged(this, oldName);
+	}
+
+	/**
+	 * Called by the tree model when the node is renamed in the tree view.
+	 */
+	@Override
+	public void setUserObject(Object userObject)
+	{
+		if (userObject instanceof String)
+			setName((String)userObject);
+		else
+			super.setUserObject(userObject);
 	}
 
 	@Override
@@ -73,16 +136,415 @@ public class SceneNode extends DefaultMutableTreeNode {
 	public void setRotation(float xAngle, float yAngle, float zAngle)
 	{
 		this.rotation.set(xAngle, yAngle, zAngle);
+		transformationChanged();
 	}
 
 	public void setScaling(float x, float y, float z)
 	{
 		this.scaling.set(x, y, z);
+		transformationChanged();
 	}
 
 	public void setTranslation(float x, float y, float z)
 	{
 		this.translation.set(x, y, z);
+		transformationChanged();
+	}
+
+	/**
+	 * Must be called whenever translation, rotation or scaling is modified
+	 * directly rather than through the setters, so the cached matrices of
+	 * this node and its subtree get rebuilt.
+	 */
+	public void transformationChanged()
+	{
+		localTransformDirty = true;
+		modificationCount++;
+		snapshotChanged();
+		invalidateWorldTransform();
+		if (getParent() != null)
+			((SceneNode)getParent()).subtreeBoundsChanged();
+	}
+
+	/**
+	 * Marks the world transformation of this node and all of its descendants
+	 * as stale. A dirty node always has dirty descendants, so the walk can skip
+	 * any subtree that is already marked. Iterative so that arbitrarily deep
+	 * hierarchies cannot overflow the call stack.
+	 */
+	protected void invalidateWorldTransform()
+	{
+		if (worldTransformDirty)
+			return;
+		ArrayList<SceneNode> pending = new ArrayList<SceneNode>();
+		pending.add(this);
+		while (!pending.isEmpty())
+		{
+			SceneNode node = pending.remove(pending.size() - 1);
+			if (node.worldTransformDirty)
+				continue;
+			node.worldTransformDirty = true;
+			for (int i = 0; i < node.getChildCount(); i++)
+				pending.add(node.getSceneNodeChild(i));
+		}
+	}
+
+	@Override
+	public void setParent(MutableTreeNode newParent)
+	{
+		// called by insert() and remove(), so this covers reparenting
+		if (getParent() != null)
+			((SceneNode)getParent()).subtreeBoundsChanged();
+		super.setParent(newParent);
+		modificationCount++;
+		invalidateWorldTransform();
+		if (newParent != null)
+			((SceneNode)newParent).subtreeBoundsChanged();
+
+		// the subtree leaves one scene's index and joins another's
+		SceneIndex newIndex = newParent == null ? null : ((SceneNode)newParent).index;
+		if (newIndex != index)
+		{
+			if (index != null)
+				index.removeSubtree(this);
+			if (newIndex != null)
+				newIndex.addSubtree(this);
+		}
+	}
+
+	SceneIndex getIndex()
+	{
+		return index;
+	}
+
+	void setIndex(SceneIndex index)
+	{
+		this.index = index;
+	}
+
+	/**
+	 * Removes the children of this node that are in toRemove, in one pass
+	 * over the children; remove() shifts all later children every time.
+	 */
+	void removeChildren(Set<SceneNode> toRemove)
+	{
+		ArrayList<SceneNode> kept = new ArrayList<SceneNode>();
+		ArrayList<SceneNode> removed = new ArrayList<SceneNode>();
+		for (int i = 0; i < getChildCount(); i++)
+		{
+			SceneNode child = getSceneNodeChild(i);
+			if (toRemove.contains(child))
+				removed.add(child);
+			else
+				kept.add(child);
+		}
+		if (removed.isEmpty())
+			return;
+
+		children.clear();
+		children.addAll(kept);
+		for (int i = 0; i < removed.size(); i++)
+			removed.get(i).setParent(null);
+	}
+
+	/**
+	 * Inserts newChildren, which must have no parent, as children of this
+	 * node starting at childIndex, shifting the later children only once.
+	 */
+	void insertChildren(List<SceneNode> newChildren, int childIndex)
+	{
+		TreeNode root = getRoot();
+		for (int i = 0; i < newChildren.size(); i++)
+		{
+			SceneNode child = newChildren.get(i);
+			if (child.getParent() != null)
+				throw new IllegalArgumentException("new child has a parent");
+			// a node without a parent can only be an ancestor as the root
+			if (child == root)
+				throw new IllegalArgumentException("new child is an ancestor");
+		}
+
+		if (children == null)
+			children = new Vector<TreeNode>();
+		children.addAll(childIndex, newChildren);
+		for (int i = 0; i < newChildren.size(); i++)
+			newChildren.get(i).setParent(this);
+	}
+
+	/**
+	 * Marks the subtree bounds of this node and its ancestors as stale, e.g.
+	 * because the node's own geometry changed. Bounds are only stale together
+	 * with those of all ancestors, so the walk stops at the first stale one.
+	 * Frozen subtrees containing this node are thawed.
+	 */
+	protected void subtreeBoundsChanged()
+	{
+		modificationCount++;
+		thawWithAncestors();
+		snapshotChanged();
+		for (SceneNode n = this; n != null && !n.subtreeBoundsDirty; n = (SceneNode)n.getParent())
+			n.subtreeBoundsDirty = true;
+	}
+
+	/**
+	 * Freezes this node's subtree: from the next render on, its triangle
+	 * meshes are transformed into this node's frame and merged into one
+	 * vertex and index buffer per material, each drawn with a single call.
+	 * This node's own transformation can still be edited. Any other edit in
+	 * the subtree (a transformation, the hierarchy, a mesh or a material)
+	 * thaws it again.
+	 */
+	public void freeze()
+	{
+		if (frozen == null)
+		{
+			frozen = new FrozenGeometry();
+			numFrozen++;
+			snapshotChanged();
+		}
+	}
+
+	/**
+	 * Undoes freeze(), so the subtree is drawn node by node again.
+	 */
+	public void thaw()
+	{
+		if (frozen != null)
+		{
+			frozen.release();
+			frozen = null;
+			numFrozen--;
+			snapshotChanged();
+		}
+	}
+
+	public boolean isFrozen()
+	{
+		return frozen != null;
+	}
+
+	FrozenGeometry getFrozenGeometry()
+	{
+		return frozen;
+	}
+
+	/**
+	 * Thaws this node and all of its ancestors, whose merged geometry
+	 * includes this node's.
+	 */
+	protected void thawWithAncestors()
+	{
+		if (numFrozen == 0)
+			return;
+		for (SceneNode n = this; n != null; n = (SceneNode)n.getParent())
+			n.thaw();
+	}
+
+	/**
+	 * Marks the snapshots of this node and its ancestors as stale, so the
+	 * next getSnapshot() of the root copies them again. Must be called after
+	 * any edit of what RenderSnapshot.Node holds. A stale node only has
+	 * stale ancestors, so the walk stops at the first stale one.
+	 */
+	protected void snapshotChanged()
+	{
+		for (SceneNode n = this; n != null && n.snapshot != null; n = (SceneNode)n.getParent())
+			n.snapshot = null;
+	}
+
+	/**
+	 * Returns an immutable copy of this node's subtree. Only the nodes edited
+	 * since the last call are copied; the others are the same objects as in
+	 * the copy returned then. Must not run concurrently with edits of the
+	 * subtree, see Scene.beginEdit().
+	 */
+	public RenderSnapshot.Node getSnapshot()
+	{
+		if (snapshot == null)
+		{
+			// collect the stale part of the subtree, then copy it bottom-up,
+			// iteratively like getSubtreeBounds()
+			ArrayList<SceneNode> stale = new ArrayList<SceneNode>();
+			stale.add(this);
+			for (int i = 0; i < stale.size(); i++)
+			{
+				SceneNode node = stale.get(i);
+				for (int c = 0; c < node.getChildCount(); c++)
+					if (node.getSceneNodeChild(c).snapshot == null)
+						stale.add(node.getSceneNodeChild(c));
+			}
+			for (int i = stale.size() - 1; i >= 0; i--)
+			{
+				SceneNode node = stale.get(i);
+				RenderSnapshot.Node [] children = new RenderSnapshot.Node[node.getChildCount()];
+				for (int c = 0; c < children.length; c++)
+					children[c] = node.getSceneNodeChild(c).snapshot;
+				node.snapshot = node.createSnapshot(children);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Copies this node, with the given copies of its children.
+	 */
+	protected RenderSnapshot.Node createSnapshot(RenderSnapshot.Node [] children)
+	{
+		return new RenderSnapshot.Node(this, children, null, null, null, frozen);
+	}
+
+	/**
+	 * Changes whenever a node anywhere is transformed, moved in a hierarchy
+	 * or given new geometry, so that structures derived from a scene can
+	 * tell when they are stale.
+	 */
+	public static int getModificationCount()
+	{
+		return modificationCount;
+	}
+
+	private boolean isSubtreeBoundsStale()
+	{
+		return subtreeBoundsDirty || subtreeBoundsVersion != Mesh.getBoundsVersion();
+	}
+
+	/**
+	 * Sets out, which is empty on entry, to the bounds of this node's own
+	 * geometry in its own frame. Returns false if the node has geometry
+	 * whose bounds are not known. Plain nodes have no geometry.
+	 */
+	protected boolean getOwnBounds(BoundingBox out)
+	{
+		return true;
+	}
+
+	/**
+	 * Returns the (cached) bounds of all geometry in this node's subtree, in
+	 * this node's frame, or null if some of it has unknown bounds. The box
+	 * is owned by the node and must not be modified.
+	 */
+	public BoundingBox getSubtreeBounds()
+	{
+		if (isSubtreeBoundsStale())
+		{
+			// collect the stale part of the subtree, then update it bottom-up;
+			// iterative for the same reason as invalidateWorldTransform()
+			ArrayList<SceneNode> stale = new ArrayList<SceneNode>();
+			stale.add(this);
+			for (int i = 0; i < stale.size(); i++)
+			{
+				SceneNode node = stale.get(i);
+				for (int c = 0; c < node.getChildCount(); c++)
+					if (node.getSceneNodeChild(c).isSubtreeBoundsStale())
+						stale.add(node.getSceneNodeChild(c));
+			}
+			for (int i = stale.size() - 1; i >= 0; i--)
+				stale.get(i).updateSubtreeBounds();
+		}
+		return subtreeUnbounded ? null : subtreeBounds;
+	}
+
+	private void updateSubtreeBounds()
+	{
+		subtreeBounds.setEmpty();
+		subtreeUnbounded = !getOwnBounds(subtreeBounds);
+		for (int c = 0; c < getChildCount() && !subtreeUnbounded; c++)
+		{
+			SceneNode child = getSceneNodeChild(c);
+			if (child.subtreeUnbounded)
+				subtreeUnbounded = true;
+			else
+				subtreeBounds.extend(child.subtreeBounds, child.getLocalTransform());
+		}
+		subtreeBoundsDirty = false;
+		subtreeBoundsVersion = Mesh.getBoundsVersion();
+	}
+
+	/**
+	 * Returns the (cached) transformation from this node's frame to its parent's.
+	 * The returned matrix is owned by the node and must not be modified.
+	 */
+	public Matrix4f getLocalTransform()
+	{
+		if (localTransformDirty)
+		{
+			buildLocalTransform(localTransform);
+			localTransformDirty = false;
+		}
+		return localTransform;
+	}
+
+	/**
+	 * Returns the (cached) transformation from this node's frame to the frame
+	 * of the root. The returned matrix is owned by the node and must not be
+	 * modified.
+	 */
+	public Matrix4f getWorldTransform()
+	{
+		if (!worldTransformDirty)
+			return worldTransform;
+
+		SceneNode parent = (SceneNode)getParent();
+		if (parent != null && parent.worldTransformDirty)
+		{
+			// Dirty nodes only have dirty descendants, so the stale nodes on the
+			// path to the root form a chain ending here; clean it top-down.
+			// (During a traversal the parent is always clean already.)
+			ArrayList<SceneNode> chain = new ArrayList<SceneNode>();
+			for (SceneNode n = parent; n != null && n.worldTransformDirty; n = (SceneNode)n.getParent())
+				chain.add(n);
+			for (int i = chain.size() - 1; i >= 0; i--)
+				chain.get(i).updateWorldTransform();
+		}
+		updateWorldTransform();
+		return worldTransform;
+	}
+
+	private void updateWorldTransform()
+	{
+		SceneNode parent = (SceneNode)getParent();
+		if (parent == null)
+			worldTransform.set(getLocalTransform());
+		else
+			worldTransform.mul(parent.worldTransform, getLocalTransform());
+		worldTransformDirty = false;
+	}
+
+	/**
+	 * Writes T * Rz * Ry * Rx * S into out without allocating any temporaries.
+	 * Equivalent to multiplying out the Transforms.translate3DH, rotateAxis3DH
+	 * and scale3DH matrices in that order.
+	 */
+	private void buildLocalTransform(Matrix4f out)
+	{
+		double ax = Math.toRadians(rotation.x);
+		double ay = Math.toRadians(rotation.y);
+		double az = Math.toRadians(rotation.z);
+		float cx = (float) Math.cos(ax), sx = (float) Math.sin(ax);
+		float cy = (float) Math.cos(ay), sy = (float) Math.sin(ay);
+		float cz = (float) Math.cos(az), sz = (float) Math.sin(az);
+
+		// columns of Rz * Ry * Rx, each scaled by the matching scaling component
+		out.m00 = (cz * cy) * scaling.x;
+		out.m10 = (sz * cy) * scaling.x;
+		out.m20 = (-sy) * scaling.x;
+
+		out.m01 = (cz * sy * sx - sz * cx) * scaling.y;
+		out.m11 = (sz * sy * sx + cz * cx) * scaling.y;
+		out.m21 = (cy * sx) * scaling.y;
+
+		out.m02 = (cz * sy * cx + sz * sx) * scaling.z;
+		out.m12 = (sz * sy * cx - cz * sx) * scaling.z;
+		out.m22 = (cy * cx) * scaling.z;
+
+		out.m03 = translation.x;
+		out.m13 = translation.y;
+		out.m23 = translation.z;
+
+		out.m30 = 0.0f;
+		out.m31 = 0.0f;
+		out.m32 = 0.0f;
+		out.m33 = 1.0f;
 	}
 
 	private Object convertVector3ToIntList(Vector3f v)
@@ -109,18 +571,18 @@ public class SceneNode extends DefaultMutableTreeNode {
 		return result;
 	}
 
-	public static SceneNode fromYamlObject(GL2 gl, Object yamlObject)
+	public static SceneNode fromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
 		Map<?, ?> yamlMap = (Map<?, ?>)yamlObject;
 
 		if (yamlMap.get("type").equals("SceneNode"))
-			return SceneNode.sceneNodeFromYamlObject(gl, yamlObject);
+			return SceneNode.sceneNodeFromYamlObject(yamlObject);
 		else if (yamlMap.get("type").equals("MeshNode"))
-			return MeshNode.fromYamlObject(gl, yamlObject);
+			return MeshNode.fromYamlObject(yamlObject);
 		else if (yamlMap.get("type").equals("LightNode"))
-			return LightNode.fromYamlObject(gl, yamlObject);
+			return LightNode.fromYamlObject(yamlObject);
 		else
 			throw new RuntimeException("invalid SceneNode type: " + yamlMap.get("type").toString());
 	}
@@ -133,19 +595,20 @@ public class SceneNode extends DefaultMutableTreeNode {
 		translation.set(Util.getVector3ffromYamlObject(yamlMap.get("translation")));
 		rotation.set(Util.getVector3ffromYamlObject(yamlMap.get("rotation")));
 		scaling.set(Util.getVector3ffromYamlObject(yamlMap.get("scaling")));
+		transformationChanged();
 	}
 
-	public void addChildrenFromYamlObject(GL2 gl, Object yamlObject)
+	public void addChildrenFromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
 		Map<?, ?> yamlMap = (Map<?, ?>)yamlObject;
 		List<?> childrenList = (List<?>)yamlMap.get("children");
 		for(Object o : childrenList)
-			insert(SceneNode.fromYamlObject(gl, o),getChildCount());
+			insert(SceneNode.fromYamlObject(o),getChildCount());
 	}
 
-	public static SceneNode sceneNodeFromYamlObject(GL2 gl, Object yamlObject)
+	public static SceneNode sceneNodeFromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
@@ -154,7 +617,7 @@ public class SceneNode extends DefaultMutableTreeNode {
 		SceneNode result = new SceneNode();
 		result.setName((String)yamlMap.get("name"));
 		result.extractTransformationFromYamlObject(yamlObject);
-		result.addChildrenFromYamlObject(gl, yamlObject);
+		result.addChildrenFromYamlObject(yamlObject);
 
 		return result;
 	}
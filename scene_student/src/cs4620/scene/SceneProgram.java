@@ -12,7 +12,7 @@ import javax.vecmath.Vector4f;
 
 import cs4620.framework.GlslException;
 import cs4620.framework.Program;
-import cs4620.framework.Transforms;
+import cs4620.framework.VertexLayout;
 import cs4620.material.Material;
 
 public class SceneProgram extends Program {
@@ -33,18 +33,33 @@ public class SceneProgram extends Program {
 	// The names of the uniform variables corresponding to the two positions
 	// in the array of vertex attributes.
 	public static final String VERTEX_STRING = "in_Vertex";                   // vec3
-	public static final String NORMAL_STRING = "in_Normal";                   // vec3
+	public static final String NORMAL_STRING = "in_Normal";                   // vec2
+	
+	// The layouts of the interleaved vertex buffers the shaders read (see
+	// MeshBuffers). Normals are unit vectors in octahedral encoding, two
+	// normalized shorts. Positions are floats, or normalized shorts in the
+	// mesh's bounding box that the shaders map back to the mesh's frame with
+	// the position scale and offset uniforms (see setPositionTransform()).
+	public static final VertexLayout FLOAT_POSITIONS_LAYOUT = new VertexLayout()  // 16 bytes
+			.add(VERTEX_INDEX, 3, GL2.GL_FLOAT, false)
+			.add(NORMAL_INDEX, 2, GL2.GL_SHORT, true);
+	public static final VertexLayout QUANTIZED_POSITIONS_LAYOUT = new VertexLayout()  // 12 bytes
+			.add(VERTEX_INDEX, 3, GL2.GL_SHORT, true)
+			.add(NORMAL_INDEX, 2, GL2.GL_SHORT, true);
 	
 	// Uniform names. Again, programs do not need to have all of these;
 	// non-existent ones will be silently ignored.
 	public static final String PROJECTION_UNIFORM      = "un_Projection";     // mat4
 	public static final String MODELVIEW_UNIFORM       = "un_ModelView";      // mat4
 	public static final String NORMAL_MATRIX_UNIFORM   = "un_NormalMatrix";   // mat3
+	public static final String POSITION_SCALE_UNIFORM  = "un_PositionScale";  // vec3
+	public static final String POSITION_OFFSET_UNIFORM = "un_PositionOffset"; // vec3
 	
 	public static final String AMBIENT_COLOR_UNIFORM   = "un_AmbientColor";   // vec3
 	public static final String DIFFUSE_COLOR_UNIFORM   = "un_DiffuseColor";   // vec3
 	public static final String SPECULAR_COLOR_UNIFORM  = "un_SpecularColor";  // vec3
 	public static final String SHININESS_UNIFORM       = "un_Shininess";      // float
+	public static final String OBJECT_ID_UNIFORM       = "un_ObjectId";       // vec4
 	
 	public static final int NUM_LIGHTS = 16;
 	public static final String LIGHT_POSITIONS_UNIFORM = "un_LightPositions"; // vec3 * NUM_LIGHTS
@@ -64,6 +79,9 @@ public class SceneProgram extends Program {
 		return attributeMap;
 	}
 
+	// scratch space for setModelView()
+	private final Matrix3f normalMatrix = new Matrix3f();
+	
 	public SceneProgram(GL2 glContext, String vertexSrcFile,
 			String fragmentSrcFile) throws GlslException {
 		super(glContext, vertexSrcFile, fragmentSrcFile, getAttributeMap());
@@ -98,24 +116,46 @@ public class SceneProgram extends Program {
 		}
 		if(hasUniform(NORMAL_MATRIX_UNIFORM))
 		{
-			// calculate normal matrix (inverse transpose of upper 3x3 of modelview)
-			Matrix3f normalMatrix = new Matrix3f(
-					modelview.m00, modelview.m01, modelview.m02,
-					modelview.m10, modelview.m11, modelview.m12,
-					modelview.m20, modelview.m21, modelview.m22
-					);
-			normalMatrix.transpose();
-			try {
-				normalMatrix.invert();
-			}
-			catch (SingularMatrixException e)
-			{
-				normalMatrix = Transforms.identity3D();
-			}
+			computeNormalMatrix(modelview, normalMatrix);
 			getUniform(NORMAL_MATRIX_UNIFORM).setMatrix3(gl, normalMatrix);
 		}
 	}
 	
+	/**
+	 * Computes the normal matrix (inverse transpose of upper 3x3) of a modelview
+	 * matrix into result. A singular modelview yields the identity.
+	 */
+	public static void computeNormalMatrix(Matrix4f modelview, Matrix3f result)
+	{
+		result.m00 = modelview.m00; result.m01 = modelview.m10; result.m02 = modelview.m20;
+		result.m10 = modelview.m01; result.m11 = modelview.m11; result.m12 = modelview.m21;
+		result.m20 = modelview.m02; result.m21 = modelview.m12; result.m22 = modelview.m22;
+		try {
+			result.invert();
+		}
+		catch (SingularMatrixException e)
+		{
+			result.setIdentity();
+		}
+	}
+	
+	/**
+	 * Sets how the shaders map stored vertex positions to the mesh's frame:
+	 * each coordinate is multiplied by scale and offset is added. The
+	 * identity for float positions.
+	 */
+	public void setPositionTransform(GL2 gl, float [] scale, float [] offset)
+	{
+		if(hasUniform(POSITION_SCALE_UNIFORM))
+		{
+			getUniform(POSITION_SCALE_UNIFORM).set3Float(gl, scale[0], scale[1], scale[2]);
+		}
+		if(hasUniform(POSITION_OFFSET_UNIFORM))
+		{
+			getUniform(POSITION_OFFSET_UNIFORM).set3Float(gl, offset[0], offset[1], offset[2]);
+		}
+	}
+	
 	public void setMaterial(GL2 gl, Material material)
 	{
 		material.applyTo(gl, this);
@@ -129,6 +169,14 @@ public class SceneProgram extends Program {
 		}
 	}
 	
+	public void setAmbientColor(GL2 gl, float r, float g, float b)
+	{
+		if(hasUniform(AMBIENT_COLOR_UNIFORM))
+		{
+			getUniform(AMBIENT_COLOR_UNIFORM).set3Float(gl, r, g, b);
+		}
+	}
+	
 	public void setDiffuseColor(GL2 gl, Vector3f diffuseColor)
 	{
 		if(hasUniform(DIFFUSE_COLOR_UNIFORM))
@@ -137,6 +185,14 @@ public class SceneProgram extends Program {
 		}
 	}
 	
+	public void setDiffuseColor(GL2 gl, float r, float g, float b)
+	{
+		if(hasUniform(DIFFUSE_COLOR_UNIFORM))
+		{
+			getUniform(DIFFUSE_COLOR_UNIFORM).set3Float(gl, r, g, b);
+		}
+	}
+	
 	public void setSpecularColor(GL2 gl, Vector3f specularColor)
 	{
 		if(hasUniform(SPECULAR_COLOR_UNIFORM))
@@ -145,6 +201,14 @@ public class SceneProgram extends Program {
 		}
 	}
 	
+	public void setSpecularColor(GL2 gl, float r, float g, float b)
+	{
+		if(hasUniform(SPECULAR_COLOR_UNIFORM))
+		{
+			getUniform(SPECULAR_COLOR_UNIFORM).set3Float(gl, r, g, b);
+		}
+	}
+	
 	public void setShininess(GL2 gl, float shininess)
 	{
 		if(hasUniform(SHININESS_UNIFORM))
@@ -153,6 +217,20 @@ public class SceneProgram extends Program {
 		}
 	}
 	
+	/**
+	 * Sets the id written by picking shaders, packed into four bytes with
+	 * the lowest in red, the way PickingController reads it back.
+	 */
+	public void setObjectId(GL2 gl, int id)
+	{
+		if(hasUniform(OBJECT_ID_UNIFORM))
+		{
+			getUniform(OBJECT_ID_UNIFORM).set4Float(gl,
+					(id & 0xff) / 255.0f, ((id >> 8) & 0xff) / 255.0f,
+					((id >> 16) & 0xff) / 255.0f, ((id >>> 24) & 0xff) / 255.0f);
+		}
+	}
+	
 	public void setLightPositions(GL2 gl, Vector3f [] positions)
 	{
 		if(positions.length != NUM_LIGHTS)
@@ -0,0 +1,219 @@
+package cs4620.scene;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import cs4620.material.PhongMaterial;
+import cs4620.shape.Mesh;
+import cs4620.util.YamlReader;
+
+/*
+ * Builds a scene tree from a scene file, in the format Scene.save() writes,
+ * in one pass over the file's YAML events (see YamlReader). Unlike
+ * SceneNode.fromYamlObject() it needs neither the whole file in memory nor
+ * an object tree of maps and lists.
+ *
+ * The keys of a node come in any order, and its type often comes after its
+ * children, so what is read of a node is collected in a Record until the
+ * end of its mapping, when the node is made. The children are made first,
+ * at the end of their own mappings, so every node is made exactly once.
+ * Records are kept on a stack rather than the call stack, so deep
+ * hierarchies load like shallow ones.
+ */
+
+public class SceneReader {
+
+	// what has been read of a node whose mapping has not ended yet
+	private static class Record
+	{
+		String type;
+		String name;
+		final float [] translation = new float[] { 0, 0, 0 };
+		final float [] rotation = new float[] { 0, 0, 0 };
+		final float [] scaling = new float[] { 1, 1, 1 };
+		final ArrayList<SceneNode> children = new ArrayList<SceneNode>();
+		boolean readingChildren = false;
+
+		// MeshNode
+		String meshType;
+		PhongMaterial material;
+
+		// LightNode
+		float [] intensity;
+		float [] ambient;
+	}
+
+	/**
+	 * Reads the tree in the scene file in, which is not closed.
+	 */
+	public static SceneNode read(Reader in) throws IOException
+	{
+		YamlReader reader = new YamlReader(in);
+		if (reader.next() != YamlReader.START_MAPPING)
+			throw reader.error("scene node expected");
+
+		ArrayList<Record> stack = new ArrayList<Record>();
+		stack.add(new Record());
+		SceneNode root = null;
+		while (!stack.isEmpty())
+		{
+			Record record = stack.get(stack.size() - 1);
+			int event = reader.next();
+
+			if (record.readingChildren)
+			{
+				if (event == YamlReader.START_MAPPING)
+					stack.add(new Record());
+				else if (event == YamlReader.END_SEQUENCE)
+					record.readingChildren = false;
+				else
+					throw reader.error("scene node expected");
+			}
+			else if (event == YamlReader.END_MAPPING)
+			{
+				stack.remove(stack.size() - 1);
+				SceneNode node = build(record, reader);
+				if (stack.isEmpty())
+					root = node;
+				else
+					stack.get(stack.size() - 1).children.add(node);
+			}
+			else if (event == YamlReader.KEY)
+			{
+				readField(reader, record);
+			}
+			else
+				throw reader.error("key expected");
+		}
+		return root;
+	}
+
+	private static void readField(YamlReader reader, Record record) throws IOException
+	{
+		if (reader.isText("type"))
+			record.type = readText(reader);
+		else if (reader.isText("name"))
+			record.name = readText(reader);
+		else if (reader.isText("translation"))
+			reader.readFloats(record.translation);
+		else if (reader.isText("rotation"))
+			reader.readFloats(record.rotation);
+		else if (reader.isText("scaling"))
+			reader.readFloats(record.scaling);
+		else if (reader.isText("children"))
+		{
+			int event = reader.next();
+			if (event == YamlReader.START_SEQUENCE)
+				record.readingChildren = true;
+			else if (event != YamlReader.SCALAR || !reader.isNull())
+				throw reader.error("children not a list");
+		}
+		else if (reader.isText("mesh"))
+			record.meshType = readMeshType(reader);
+		else if (reader.isText("material"))
+			record.material = readMaterial(reader);
+		else if (reader.isText("intensity"))
+		{
+			record.intensity = new float[4];
+			reader.readFloats(record.intensity);
+		}
+		else if (reader.isText("ambient"))
+		{
+			record.ambient = new float[4];
+			reader.readFloats(record.ambient);
+		}
+		else
+			reader.skipValue();
+	}
+
+	private static String readText(YamlReader reader) throws IOException
+	{
+		if (reader.next() != YamlReader.SCALAR)
+			throw reader.error("text expected");
+		return reader.getText();
+	}
+
+	private static String readMeshType(YamlReader reader) throws IOException
+	{
+		if (reader.next() != YamlReader.START_MAPPING)
+			throw reader.error("mesh not a map");
+		String type = null;
+		while (reader.next() == YamlReader.KEY)
+		{
+			if (reader.isText("type"))
+				type = readText(reader);
+			else
+				reader.skipValue();
+		}
+		return type;
+	}
+
+	private static PhongMaterial readMaterial(YamlReader reader) throws IOException
+	{
+		if (reader.next() != YamlReader.START_MAPPING)
+			throw reader.error("material field not a Map");
+		PhongMaterial material = new PhongMaterial();
+		String type = null;
+		while (reader.next() == YamlReader.KEY)
+		{
+			if (reader.isText("type"))
+				type = readText(reader);
+			else if (reader.isText("ambient"))
+				reader.readFloats(material.ambient);
+			else if (reader.isText("diffuse"))
+				reader.readFloats(material.diffuse);
+			else if (reader.isText("specular"))
+				reader.readFloats(material.specular);
+			else if (reader.isText("shininess"))
+			{
+				if (reader.next() != YamlReader.SCALAR)
+					throw reader.error("number expected");
+				material.shininess = reader.getFloat();
+			}
+			else
+				reader.skipValue();
+		}
+		if (!"GLPhongMaterial".equals(type))
+			throw reader.error("material other than GLPhongMaterial is not supported");
+		return material;
+	}
+
+	private static SceneNode build(Record record, YamlReader reader)
+	{
+		SceneNode node;
+		if ("SceneNode".equals(record.type))
+		{
+			node = new SceneNode();
+		}
+		else if ("MeshNode".equals(record.type))
+		{
+			MeshNode meshNode = new MeshNode();
+			meshNode.setMesh(Mesh.fromType(record.meshType));
+			meshNode.setMaterial(record.material != null ? record.material : new PhongMaterial());
+			node = meshNode;
+		}
+		else if ("LightNode".equals(record.type))
+		{
+			LightNode lightNode = new LightNode();
+			if (record.ambient != null)
+				System.arraycopy(record.ambient, 0, LightNode.ambient, 0, 4);
+			if (record.intensity != null)
+			{
+				lightNode.intensity[3] = record.intensity[3];
+				lightNode.setIntensity(record.intensity[0], record.intensity[1], record.intensity[2]);
+			}
+			node = lightNode;
+		}
+		else
+			throw reader.error("invalid SceneNode type: " + record.type);
+
+		node.setName(record.name);
+		node.translation.set(record.translation);
+		node.rotation.set(record.rotation);
+		node.scaling.set(record.scaling);
+		node.transformationChanged();
+		node.insertChildren(record.children, 0);
+		return node;
+	}
+}
@@ -5,11 +5,34 @@ import javax.vecmath.Matrix4f;
 public abstract class SceneTraverser {
 	
 	/**
-	 * Perform some action involving the SceneNode node. Also receives
-	 * the complete transformation taking the node to eye coordinates,
-	 * formed by a traversal of the Scene hierarchy.
+	 * Perform some action involving the node, a node of the scene's last
+	 * published RenderSnapshot. Also receives the complete transformation
+	 * taking the node to eye coordinates, formed by a traversal of the
+	 * snapshot. The matrix is reused for the next node, so copy it if it has
+	 * to outlive this call.
 	 */
-	public abstract void traverseNode(SceneNode node, Matrix4f toEye);
+	public abstract void traverseNode(RenderSnapshot.Node node, Matrix4f toEye);
+	
+	/**
+	 * (optional) Called before node is traversed, with the same matrix.
+	 * Returning false skips the node and its entire subtree, e.g. because
+	 * it is out of view.
+	 */
+	
+	public boolean enterSubtree(RenderSnapshot.Node node, Matrix4f toEye)
+	{
+		return true;
+	}
+	
+	/**
+	 * (optional) Notifies traverser that a traversal is about to begin.
+	 * Traversers that are reused across traversals reset their state here.
+	 */
+	
+	public void traversalStarted()
+	{
+		// NOP by default
+	}
 	
 	/**
 	 * (optional) Notifies traverser that the entire scene has been traversed.
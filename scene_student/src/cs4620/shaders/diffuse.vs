@@ -4,6 +4,8 @@
 uniform mat4 un_Projection;
 uniform mat4 un_ModelView;
 uniform mat3 un_NormalMatrix;
+uniform vec3 un_PositionScale;
+uniform vec3 un_PositionOffset;
 
 uniform vec3 un_AmbientColor;
 uniform vec3 un_DiffuseColor;
@@ -15,17 +17,26 @@ uniform vec3 un_LightIntensities[16];
 uniform vec3 un_LightAmbientIntensity;
 
 // vertex attributes -- distinct value used for each vertex
-attribute vec3 in_Vertex;
-attribute vec3 in_Normal;
+attribute vec3 in_Vertex; // position, scaled and offset to fit the mesh in [-1, 1] if quantized
+attribute vec2 in_Normal; // octahedral-encoded, see decodeNormal()
 
 varying vec3 ex_Normal;
 varying vec4 ex_EyeSpacePosition;
 
+// Undoes the octahedral encoding of normals (see MeshBuffers).
+vec3 decodeNormal(vec2 e)
+{
+	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+	if (n.z < 0.0)
+		n.xy = (1.0 - abs(e.yx)) * vec2(e.x >= 0.0 ? 1.0 : -1.0, e.y >= 0.0 ? 1.0 : -1.0);
+	return n;
+}
+
 void main(void)
 {
-	ex_Normal = normalize(un_NormalMatrix * in_Normal);
+	ex_Normal = normalize(un_NormalMatrix * decodeNormal(in_Normal));
 
-	ex_EyeSpacePosition = un_ModelView * vec4(in_Vertex, 1.0);
+	ex_EyeSpacePosition = un_ModelView * vec4(un_PositionOffset + un_PositionScale * in_Vertex, 1.0);
 	gl_Position = un_Projection * ex_EyeSpacePosition;
 }
 
@@ -0,0 +1,28 @@
+#version 120
+
+// uniforms -- same value is used for every vertex in model
+uniform vec3 un_LightPositions[16];
+uniform vec3 un_LightIntensities[16];
+uniform vec3 un_LightAmbientIntensity;
+
+varying vec3 ex_Normal;
+varying vec4 ex_EyeSpacePosition;
+varying vec3 ex_AmbientColor;
+varying vec3 ex_DiffuseColor;
+
+void main(void)
+{
+	vec3 unitToLight = vec3(0.0,0.0,0.0);
+
+	vec3 unitNormal = normalize(ex_Normal);
+	vec3 colorRGB = ex_AmbientColor * un_LightAmbientIntensity;
+
+	// for each light source
+	for (int i = 0; i < 16; i++)
+	{
+		unitToLight = normalize(un_LightPositions[i] - ex_EyeSpacePosition.xyz);
+		colorRGB = colorRGB + un_LightIntensities[i] * ex_DiffuseColor * clamp(dot(unitNormal, unitToLight), 0.0, 1.0);
+	}
+
+	gl_FragColor = vec4(colorRGB, 1.0);
+}
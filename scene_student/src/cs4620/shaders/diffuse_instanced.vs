@@ -0,0 +1,48 @@
+#version 120
+
+// Instanced variant of diffuse.vs: the modelview and normal matrices and the
+// material colors come from per-instance attributes instead of uniforms, so
+// every copy of a mesh can be drawn with a single call.
+
+// uniforms -- same value is used for every vertex in model
+uniform mat4 un_Projection;
+uniform vec3 un_PositionScale;
+uniform vec3 un_PositionOffset;
+
+uniform vec3 un_LightPositions[16];
+uniform vec3 un_LightIntensities[16];
+uniform vec3 un_LightAmbientIntensity;
+
+// vertex attributes -- distinct value used for each vertex
+attribute vec3 in_Vertex; // position, scaled and offset to fit the mesh in [-1, 1] if quantized
+attribute vec2 in_Normal; // octahedral-encoded, see decodeNormal()
+
+// instance attributes -- distinct value used for each copy of the model
+attribute mat4 in_InstanceModelView;
+attribute mat3 in_InstanceNormalMatrix;
+attribute vec3 in_InstanceAmbientColor;
+attribute vec3 in_InstanceDiffuseColor;
+
+varying vec3 ex_Normal;
+varying vec4 ex_EyeSpacePosition;
+varying vec3 ex_AmbientColor;
+varying vec3 ex_DiffuseColor;
+
+// Undoes the octahedral encoding of normals (see MeshBuffers).
+vec3 decodeNormal(vec2 e)
+{
+	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+	if (n.z < 0.0)
+		n.xy = (1.0 - abs(e.yx)) * vec2(e.x >= 0.0 ? 1.0 : -1.0, e.y >= 0.0 ? 1.0 : -1.0);
+	return n;
+}
+
+void main(void)
+{
+	ex_Normal = normalize(in_InstanceNormalMatrix * decodeNormal(in_Normal));
+	ex_AmbientColor = in_InstanceAmbientColor;
+	ex_DiffuseColor = in_InstanceDiffuseColor;
+
+	ex_EyeSpacePosition = in_InstanceModelView * vec4(un_PositionOffset + un_PositionScale * in_Vertex, 1.0);
+	gl_Position = un_Projection * ex_EyeSpacePosition;
+}
@@ -4,6 +4,8 @@
 uniform mat4 un_Projection;
 uniform mat4 un_ModelView;
 uniform mat3 un_NormalMatrix;
+uniform vec3 un_PositionScale;
+uniform vec3 un_PositionOffset;
 
 uniform vec3 un_AmbientColor;
 uniform vec3 un_DiffuseColor;
@@ -15,11 +17,11 @@ uniform vec3 un_LightIntensities[16];
 uniform vec3 un_LightAmbientIntensity;
 
 // vertex attributes -- distinct value used for each vertex
-attribute vec3 in_Vertex;
-attribute vec3 in_Normal;
+attribute vec3 in_Vertex; // position, scaled and offset to fit the mesh in [-1, 1] if quantized
+attribute vec2 in_Normal; // octahedral-encoded, see MeshBuffers
 
 void main(void)
 {
-	gl_Position = un_Projection * un_ModelView * vec4(in_Vertex, 1.0);
+	gl_Position = un_Projection * un_ModelView * vec4(un_PositionOffset + un_PositionScale * in_Vertex, 1.0);
 }
 
@@ -0,0 +1,9 @@
+#version 120
+
+varying vec3 ex_DiffuseColor;
+
+void main(void)
+{
+	// apply diffuse color
+	gl_FragColor = vec4(ex_DiffuseColor, 1.0);
+}
@@ -0,0 +1,26 @@
+#version 120
+
+// Instanced variant of flatcolor.vs, see diffuse_instanced.vs.
+
+// uniforms -- same value is used for every vertex in model
+uniform mat4 un_Projection;
+uniform vec3 un_PositionScale;
+uniform vec3 un_PositionOffset;
+
+// vertex attributes -- distinct value used for each vertex
+attribute vec3 in_Vertex; // position, scaled and offset to fit the mesh in [-1, 1] if quantized
+attribute vec2 in_Normal; // octahedral-encoded, see MeshBuffers
+
+// instance attributes -- distinct value used for each copy of the model
+attribute mat4 in_InstanceModelView;
+attribute mat3 in_InstanceNormalMatrix;
+attribute vec3 in_InstanceAmbientColor;
+attribute vec3 in_InstanceDiffuseColor;
+
+varying vec3 ex_DiffuseColor;
+
+void main(void)
+{
+	ex_DiffuseColor = in_InstanceDiffuseColor;
+	gl_Position = un_Projection * in_InstanceModelView * vec4(un_PositionOffset + un_PositionScale * in_Vertex, 1.0);
+}
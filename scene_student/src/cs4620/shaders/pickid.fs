@@ -0,0 +1,10 @@
+#version 120
+
+// the id of the object being drawn, one byte per channel, lowest byte in red
+// (see SceneProgram.setObjectId())
+uniform vec4 un_ObjectId;
+
+void main(void)
+{
+	gl_FragColor = un_ObjectId;
+}
@@ -0,0 +1,18 @@
+#version 120
+
+// Draws object ids for PickingController, see pickid.fs.
+
+// uniforms -- same value is used for every vertex in model
+uniform mat4 un_Projection;
+uniform mat4 un_ModelView;
+uniform vec3 un_PositionScale;
+uniform vec3 un_PositionOffset;
+
+// vertex attributes -- distinct value used for each vertex
+attribute vec3 in_Vertex; // position, scaled and offset to fit the mesh in [-1, 1] if quantized
+attribute vec2 in_Normal; // octahedral-encoded, see MeshBuffers
+
+void main(void)
+{
+	gl_Position = un_Projection * un_ModelView * vec4(un_PositionOffset + un_PositionScale * in_Vertex, 1.0);
+}
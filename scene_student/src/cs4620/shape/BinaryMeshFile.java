@@ -0,0 +1,320 @@
+package cs4620.shape;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.jogamp.common.nio.Buffers;
+
+/*
+ * A compiled, binary version of the text .msh format that can be memory-mapped
+ * and uploaded to GL without parsing. All values are little-endian and 4 bytes
+ * wide, so every block is 4-byte aligned:
+ *
+ *   offset  contents
+ *        0  magic "MSHB"
+ *        4  int   format version (VERSION)
+ *        8  int   number of vertices n
+ *       12  int   number of triangles t
+ *       16  int   reserved, 0
+ *       20  int   CRC32 of everything after the header
+ *       24  float vertex positions [3n]
+ *           float vertex normals   [3n]
+ *           int   triangle indices [3t]
+ *           int   wireframe (line) indices [6t]
+ *
+ * Normals and wireframe indices are computed, and the mesh is welded and
+ * reordered for the vertex cache (see MeshOptimizer), when the file is
+ * compiled, so loading only maps the file: nothing is parsed or converted.
+ * The one pass over the data on the CPU is the checksum, which map() checks
+ * to catch truncated or corrupt files; -Dcs4620.meshcrc=off skips it, for
+ * trusted files whose pages should reach GL untouched. Compiled files sit
+ * next to their source with the extension EXTENSION (teapot.msh ->
+ * teapot.mshb) and can be produced by running this class:
+ *
+ *   java cs4620.shape.BinaryMeshFile data/meshes/*.msh
+ */
+
+public class BinaryMeshFile {
+
+	public static final String EXTENSION = ".mshb";
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 0x4248534d; // "MSHB" read as a little-endian int
+	private static final int HEADER_SIZE = 24;
+	private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+	// whether map() verifies checksums; -Dcs4620.meshcrc=off skips them
+	static final boolean VERIFY_CHECKSUMS = !"off".equals(System.getProperty("cs4620.meshcrc"));
+
+	private final int numVertices;
+	private final int numTriangles;
+
+	private final FloatBuffer vertices;
+	private final FloatBuffer normals;
+	private final IntBuffer triangles;
+	private final IntBuffer wireframe;
+
+	private BinaryMeshFile(int numVertices, int numTriangles, FloatBuffer vertices,
+			FloatBuffer normals, IntBuffer triangles, IntBuffer wireframe)
+	{
+		this.numVertices = numVertices;
+		this.numTriangles = numTriangles;
+		this.vertices = vertices;
+		this.normals = normals;
+		this.triangles = triangles;
+		this.wireframe = wireframe;
+	}
+
+	public int getNumVertices()
+	{
+		return numVertices;
+	}
+
+	public int getNumTriangles()
+	{
+		return numTriangles;
+	}
+
+	/**
+	 * Vertex positions, 3 floats per vertex. A fresh view each call, so the
+	 * caller is free to move its position.
+	 */
+	public FloatBuffer getVertices()
+	{
+		return vertices.duplicate();
+	}
+
+	public FloatBuffer getNormals()
+	{
+		return normals.duplicate();
+	}
+
+	public IntBuffer getTriangles()
+	{
+		return triangles.duplicate();
+	}
+
+	public IntBuffer getWireframe()
+	{
+		return wireframe.duplicate();
+	}
+
+	/**
+	 * Copies the mesh into plain arrays.
+	 */
+	public MeshData toMeshData()
+	{
+		MeshData data = new MeshData(new float[3 * numVertices], new float[3 * numVertices],
+				new int[3 * numTriangles], new int[6 * numTriangles]);
+		getVertices().get(data.vertices);
+		getNormals().get(data.normals);
+		getTriangles().get(data.triangles);
+		getWireframe().get(data.wireframe);
+		return data;
+	}
+
+	/**
+	 * Returns the compiled file to load in place of meshFile, or null if the
+	 * text file should be parsed. A compiled file is used if it was given
+	 * directly, or if it sits next to the .msh file and is not older than it.
+	 */
+	public static File findCompiledFile(File meshFile)
+	{
+		if (meshFile.getName().endsWith(EXTENSION))
+			return meshFile;
+
+		File compiled = getCompiledFile(meshFile);
+		if (compiled.isFile() && compiled.lastModified() >= meshFile.lastModified())
+			return compiled;
+		return null;
+	}
+
+	/**
+	 * The path of the compiled version of the given text mesh file.
+	 */
+	public static File getCompiledFile(File meshFile)
+	{
+		String name = meshFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0)
+			name = name.substring(0, dot);
+		return new File(meshFile.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Memory-maps a compiled mesh file. The returned buffers are views into the
+	 * mapping; no per-element copy is made on little-endian machines.
+	 */
+	public static BinaryMeshFile map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer data;
+		try
+		{
+			// the mapping stays valid after the channel is closed
+			FileChannel channel = raf.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a compiled mesh file");
+		int version = data.getInt(4);
+		if (version != VERSION)
+			throw new IOException(file + " has mesh format version " + version + ", expected " + VERSION);
+		int numVertices = data.getInt(8);
+		int numTriangles = data.getInt(12);
+		int checksum = data.getInt(20);
+
+		long payloadSize = payloadSize(numVertices, numTriangles);
+		if (numVertices < 0 || numTriangles < 0 || HEADER_SIZE + payloadSize != data.limit())
+			throw new IOException(file + " is truncated or has a corrupt header");
+		if (VERIFY_CHECKSUMS && computeChecksum(data, HEADER_SIZE, data.limit()) != checksum)
+			throw new IOException(file + " failed its checksum");
+
+		int offset = HEADER_SIZE;
+		FloatBuffer vertices = floatBlock(data, offset, 3 * numVertices);
+		offset += 4 * 3 * numVertices;
+		FloatBuffer normals = floatBlock(data, offset, 3 * numVertices);
+		offset += 4 * 3 * numVertices;
+		IntBuffer triangles = intBlock(data, offset, 3 * numTriangles);
+		offset += 4 * 3 * numTriangles;
+		IntBuffer wireframe = intBlock(data, offset, 6 * numTriangles);
+
+		return new BinaryMeshFile(numVertices, numTriangles, vertices, normals, triangles, wireframe);
+	}
+
+	private static FloatBuffer floatBlock(ByteBuffer data, int offset, int count)
+	{
+		ByteBuffer block = slice(data, offset, 4 * count);
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			return block.asFloatBuffer();
+
+		// GL reads buffers in native order, so big-endian hosts need a swapped copy
+		FloatBuffer swapped = Buffers.newDirectFloatBuffer(count);
+		swapped.put(block.asFloatBuffer());
+		swapped.rewind();
+		return swapped;
+	}
+
+	private static IntBuffer intBlock(ByteBuffer data, int offset, int count)
+	{
+		ByteBuffer block = slice(data, offset, 4 * count);
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			return block.asIntBuffer();
+
+		IntBuffer swapped = Buffers.newDirectIntBuffer(count);
+		swapped.put(block.asIntBuffer());
+		swapped.rewind();
+		return swapped;
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int offset, int length)
+	{
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long payloadSize(int numVertices, int numTriangles)
+	{
+		return 4L * (3L * numVertices + 3L * numVertices + 3L * numTriangles + 6L * numTriangles);
+	}
+
+	private static int computeChecksum(ByteBuffer data, int start, int end)
+	{
+		CRC32 crc = new CRC32();
+		byte [] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+		ByteBuffer view = data.duplicate();
+		view.position(start);
+		view.limit(end);
+		while (view.hasRemaining())
+		{
+			int length = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Converts a text .msh file to the compiled format, and returns the
+	 * optimizer that prepared it, for its statistics.
+	 */
+	public static MeshOptimizer compile(File meshFile, File outFile) throws Exception
+	{
+		MeshOptimizer optimizer = new MeshOptimizer(CustomTriangleMesh.readTextFile(meshFile));
+		MeshData mesh = optimizer.getResult();
+		// the format holds the lines of every triangle, in triangle order
+		mesh.wireframe = CustomTriangleMesh.deriveWireframeIndices(mesh.triangles);
+		int numVertices = mesh.vertices.length / 3;
+		int numTriangles = mesh.triangles.length / 3;
+
+		long payloadSize = payloadSize(numVertices, numTriangles);
+		if (HEADER_SIZE + payloadSize > Integer.MAX_VALUE)
+			throw new IOException(meshFile + " is too large for the compiled mesh format");
+
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + (int) payloadSize);
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		out.position(HEADER_SIZE);
+		out.asFloatBuffer().put(mesh.vertices).put(mesh.normals);
+		out.position(out.position() + 4 * (mesh.vertices.length + mesh.normals.length));
+		out.asIntBuffer().put(mesh.triangles).put(mesh.wireframe);
+
+		out.putInt(0, MAGIC);
+		out.putInt(4, VERSION);
+		out.putInt(8, numVertices);
+		out.putInt(12, numTriangles);
+		out.putInt(16, 0);
+		out.putInt(20, computeChecksum(out, HEADER_SIZE, out.capacity()));
+		out.clear();
+
+		FileOutputStream stream = new FileOutputStream(outFile);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+		finally
+		{
+			stream.close();
+		}
+		return optimizer;
+	}
+
+	/**
+	 * Compiles every .msh file given on the command line next to its source.
+	 */
+	public static void main(String [] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: BinaryMeshFile file.msh [file.msh ...]");
+			System.exit(1);
+		}
+		for (String arg : args)
+		{
+			File meshFile = new File(arg);
+			File outFile = getCompiledFile(meshFile);
+			long start = System.nanoTime();
+			MeshOptimizer optimizer = compile(meshFile, outFile);
+			System.out.println(meshFile + " -> " + outFile + " ("
+					+ (System.nanoTime() - start) / 1000000 + " ms): " + optimizer);
+		}
+	}
+}
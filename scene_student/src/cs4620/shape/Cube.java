@@ -3,7 +3,6 @@ package cs4620.shape;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
 import javax.vecmath.Point3f;
 import javax.vecmath.Point3i;
 import javax.vecmath.Vector3f;
@@ -105,17 +104,20 @@ public class Cube extends TriangleMesh {
 		}
 	}
 	
-	public Cube(GL2 gl)
+	public Cube()
 	{
-		super(gl);
+		super();
 	}
 
 	@Override
-	public void buildMesh(GL2 gl, float tolerance) {
-		setVertices(gl, cubeVertices);
-		setNormals(gl, cubeNormals);
-		setTriangleIndices(gl, cubeTriangles);
-		setWireframeIndices(gl, cubeLines);
+	protected String getGeometryKey(float tolerance) {
+		// the cube is exact, whatever the tolerance
+		return MeshCache.keyFor(Cube.class);
+	}
+
+	@Override
+	protected MeshData tessellate(float tolerance) {
+		return new MeshData(cubeVertices, cubeNormals, cubeTriangles, cubeLines);
 	}
 
 	@Override
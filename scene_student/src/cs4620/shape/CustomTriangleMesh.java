@@ -2,16 +2,66 @@ package cs4620.shape;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 
-import javax.media.opengl.GL2;
 import javax.vecmath.Vector3f;
 
 public class CustomTriangleMesh extends TriangleMesh
 {
-	public CustomTriangleMesh(GL2 gl, File meshFile) throws Exception
+	private final File meshFile;
+	
+	/**
+	 * A mesh read from a file. The file is not read until the mesh is built,
+	 * so meshes can be made cheaply on any thread (e.g. while a scene is
+	 * loaded in the background) and read on a worker thread by MeshRebuilder. If
+	 * meshFile is a compiled binary mesh, or a text .msh file with an
+	 * up-to-date compiled sibling (see BinaryMeshFile), the binary file is
+	 * memory-mapped; otherwise the text file is parsed. Meshes loaded from the
+	 * same file share their geometry, so the file is only read by the first
+	 * of them to be built.
+	 */
+	public CustomTriangleMesh(File meshFile) throws Exception
+	{
+		super();
+		if (!meshFile.isFile())
+			throw new FileNotFoundException(meshFile.getPath());
+		this.meshFile = meshFile;
+	}
+	
+	@Override
+	protected void buildGeometry(MeshCache.Entry entry, float tolerance)
+	{
+		// a mapped file's blocks go straight to the GL buffers when first
+		// drawn, without the copy tessellate() makes; compiled files were
+		// already optimized by BinaryMeshFile.compile()
+		File compiledFile = BinaryMeshFile.findCompiledFile(meshFile);
+		if (compiledFile == null)
+			super.buildGeometry(entry, tolerance);
+		else
+			entry.setMappedData(mapFile(compiledFile));
+	}
+	
+	private static BinaryMeshFile mapFile(File compiledFile)
+	{
+		try
+		{
+			return BinaryMeshFile.map(compiledFile);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("cannot read " + compiledFile, e);
+		}
+	}
+	
+	/**
+	 * Parses a text .msh file: vertex and triangle counts followed by
+	 * "vertices", "normals", "texcoords" and "triangles" sections with one
+	 * number per line. Normals are computed if the file has none.
+	 */
+	static MeshData readTextFile(File meshFile) throws Exception
 	{
-		super(gl);
 		BufferedReader fr = new BufferedReader(new FileReader(meshFile));
 		try
 		{
@@ -64,10 +114,7 @@ public class CustomTriangleMesh extends TriangleMesh
 			if (!normalsRead)
 				computeNormals(nPolys, vertices, normals, triangles);	
 			
-			setVertices(gl, vertices);
-			setNormals(gl, normals);
-			setTriangleIndices(gl, triangles);
-			deriveWireframeIndices(gl, triangles);
+			return new MeshData(vertices, normals, triangles, deriveWireframeIndices(triangles));
 		}
 		finally
 		{
@@ -75,7 +122,7 @@ public class CustomTriangleMesh extends TriangleMesh
 		}		
 	}
 	
-	protected void deriveWireframeIndices(GL2 gl, int [] triangleIndices)
+	static int [] deriveWireframeIndices(int [] triangleIndices)
 	{
 		// derive wireframe indices from triangle indices
 		// a, b, c --> a, b, b, c, c, a
@@ -94,12 +141,27 @@ public class CustomTriangleMesh extends TriangleMesh
 			wireframeIndices[wireStart + 5] = triangleIndices[triStart + 0];
 		}
 		
-		setWireframeIndices(gl, wireframeIndices);
+		return wireframeIndices;
+	}
+
+	@Override
+	protected String getGeometryKey(float tolerance) {
+		return MeshCache.keyFor(meshFile);
 	}
 
 	@Override
-	public void buildMesh(GL2 gl, float tolerance) {
-		// NOP
+	protected MeshData tessellate(float tolerance) {
+		File compiledFile = BinaryMeshFile.findCompiledFile(meshFile);
+		if (compiledFile != null)
+			return mapFile(compiledFile).toMeshData();
+		try
+		{
+			return readTextFile(meshFile);
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("cannot read " + meshFile, e);
+		}
 	}
 
 	@Override
@@ -108,7 +170,7 @@ public class CustomTriangleMesh extends TriangleMesh
 	}
 
 
-	private void computeNormals(int nPolys, float [] vertices, float [] normals, int [] triangles) {
+	private static void computeNormals(int nPolys, float [] vertices, float [] normals, int [] triangles) {
 		// compute normals
 
 		for(int i=0;i<normals.length;i++)
@@ -3,24 +3,34 @@ package cs4620.shape;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
-
 public class Cylinder extends TriangleMesh
 {
-	public Cylinder(GL2 gl)
+	public Cylinder()
+	{
+		super();
+	}
+	
+	private static int getNumSides(float tolerance)
+	{
+		return (int) Math.floor(2.0*Math.PI / (tolerance/2.0));
+	}
+	
+	@Override
+	protected String getGeometryKey(float tolerance)
 	{
-		super(gl);
+		// many tolerances round to the same number of sides
+		return MeshCache.keyForResolution(Cylinder.class, getNumSides(tolerance));
 	}
 	
 	@Override
-	public void buildMesh(GL2 gl, float tolerance)
+	protected MeshData tessellate(float tolerance)
 	{
 		// TODO (Scene P2): Implement mesh generation for Cylinder. Your code should
 		// fill arrays of vertex positions/normals and vertex indices for triangles/lines
 		// and put this information in the GL buffers using the
 		//   set*()
 		// methods from TriangleMesh.
-		int num = (int) Math.floor(2.0*Math.PI / (tolerance/2.0));
+		int num = getNumSides(tolerance);
 		double dtheta = 2 * Math.PI / num;
 		double theta = 0;
 		float[] x = new float[num];
@@ -186,10 +196,7 @@ public class Cylinder extends TriangleMesh
 			lines[12*num+8+i*2+1] = 4*num+3 + (i+1)%(num+1);
 		}
 		
-		setVertices(gl, vertices);
-		setNormals(gl, normals);
-		setTriangleIndices(gl, triangles);
-		setWireframeIndices(gl, lines);
+		return new MeshData(vertices, normals, triangles, lines);
 	}
 	@Override
 	public Object getYamlObjectRepresentation()
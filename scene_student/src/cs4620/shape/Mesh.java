@@ -1,59 +1,133 @@
 package cs4620.shape;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Map;
 
 import javax.media.opengl.GL2;
 
+import cs4620.framework.BoundingBox;
+
 public abstract class Mesh {
-	private static ArrayList<Mesh> meshes = new ArrayList<Mesh>();
-	private int id;
+	// ids start above the values a cleared id buffer reads as (see
+	// SceneProgram.setObjectId())
+	private static final int FIRST_ID = 1024;
+	private static int nextId = FIRST_ID;
+	// ids of disposed meshes, handed out again oldest first, so that a late
+	// answer to a query by id (such as a delayed pick) rarely finds a new mesh
+	private static final ArrayDeque<Integer> freeIds = new ArrayDeque<Integer>();
+
+	private final int id;
+	private boolean disposed = false;
+
+	// bumped whenever the bounds of any mesh may have changed
+	private static int boundsVersion = 0;
 
 	public Mesh()
 	{
-		id = meshes.size() + 1024;
-		meshes.add(this);
-	}
-	
-	public Mesh(GL2 gl)
-	{
-		id = meshes.size() + 1024;
-		meshes.add(this);
+		id = allocateId();
 	}
 
+	/**
+	 * A number identifying this mesh among all meshes that are not disposed.
+	 * The id of a disposed mesh is given to a later mesh.
+	 */
 	public int getId() {
 		return id;
 	}
 
+	private static synchronized int allocateId()
+	{
+		Integer id = freeIds.poll();
+		return id != null ? id : nextId++;
+	}
+
+	private static synchronized void releaseId(int id)
+	{
+		freeIds.add(id);
+	}
+
 	public abstract void draw(GL2 gl);
 	
 	public abstract void drawWireframe(GL2 gl);
 
-	public abstract void buildMesh(GL2 gl, float tolerance);
+	/**
+	 * Makes the geometry for the given tolerance. Needs no GL, so it may be
+	 * called on any thread; GL resources are made when the mesh is drawn.
+	 */
+	public abstract void buildMesh(float tolerance);
+
+	/**
+	 * Bounds of the mesh in its own frame, or null if they are not known
+	 * (e.g. the mesh has not been built yet), in which case the mesh must be
+	 * assumed to be anywhere. The box is owned by the mesh.
+	 */
+	public BoundingBox getBoundingBox()
+	{
+		return null;
+	}
+
+	/**
+	 * Changes whenever getBoundingBox() may return something different for
+	 * some mesh, so that cached bounds built from meshes can be checked.
+	 */
+	public static int getBoundsVersion()
+	{
+		return boundsVersion;
+	}
+
+	protected static void boundsChanged()
+	{
+		boundsVersion++;
+	}
+
+	/**
+	 * Called when the mesh is no longer used, so that resources it shares with
+	 * other meshes can be released. The mesh must not be drawn afterwards.
+	 * Subclasses releasing more resources must call this as well.
+	 */
+	public void dispose()
+	{
+		if (!disposed)
+		{
+			disposed = true;
+			releaseId(id);
+		}
+	}
+
+	public boolean isDisposed()
+	{
+		return disposed;
+	}
 
 	public abstract Object getYamlObjectRepresentation();
 
-	public static Mesh fromYamlObject(GL2 gl, Object yamlObject)
+	public static Mesh fromYamlObject(Object yamlObject)
 	{
-		if(gl == null)
-			throw new RuntimeException("parsing XML before Mesh has received gl");
 		if (!(yamlObject instanceof Map))
 			throw new RuntimeException("yamlObject not a Map");
 		Map<?, ?> meshMap = (Map<?, ?>)yamlObject;
 
-		if (meshMap.get("type").equals("Sphere"))
-			return new Sphere(gl);
-		else if (meshMap.get("type").equals("Cube"))
-			return new Cube(gl);
-		else if (meshMap.get("type").equals("Cylinder"))
-			return new Cylinder(gl);
-		else if (meshMap.get("type").equals("Torus"))
-			return new Torus(gl);
-		else if (meshMap.get("type").equals("Teapot"))
+		return fromType((String)meshMap.get("type"));
+	}
+
+	/**
+	 * Makes a mesh of the type named by the "type" field of a saved mesh.
+	 */
+	public static Mesh fromType(String type)
+	{
+		if ("Sphere".equals(type))
+			return new Sphere();
+		else if ("Cube".equals(type))
+			return new Cube();
+		else if ("Cylinder".equals(type))
+			return new Cylinder();
+		else if ("Torus".equals(type))
+			return new Torus();
+		else if ("Teapot".equals(type))
 		{
 			Teapot teapot = null;
 			try {
-				teapot = new Teapot(gl);
+				teapot = new Teapot();
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.exit(1);
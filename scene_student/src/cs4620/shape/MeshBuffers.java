@@ -0,0 +1,250 @@
+package cs4620.shape;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import javax.media.opengl.GL2;
+
+import cs4620.framework.IndexBuffer;
+import cs4620.framework.Program;
+import cs4620.framework.StagingBufferPool;
+import cs4620.framework.VertexArray;
+import cs4620.framework.VertexBuffer;
+import cs4620.framework.VertexLayout;
+import cs4620.scene.SceneProgram;
+
+/*
+ * The GL side of a shared geometry: buffers and vertex arrays, in the layout
+ * drawn by SceneProgram. The geometry itself (MeshCache.Entry) is plain CPU
+ * data that can be made and queried without a GL context; its buffers are
+ * only made, on the GL thread, the first time it is drawn (see
+ * MeshCache.Entry.bind()), and filled again whenever the geometry changes.
+ *
+ * Positions and normals are packed into one interleaved buffer. Normals are
+ * octahedral-encoded: the unit vector is projected onto the octahedron
+ * |x| + |y| + |z| = 1, whose lower half is folded over the upper, leaving
+ * two coordinates in [-1, 1] that are stored as normalized shorts.
+ * Positions are either kept as floats, or quantized to normalized shorts
+ * within the geometry's bounding box, which the shaders undo with the
+ * transformation applyTo() hands the program. That is 12 bytes a vertex,
+ * down from 24 for separate float positions and normals, at a precision of
+ * 1/65534 of the box's size; merged geometry spanning a whole subtree keeps
+ * float positions instead (see FrozenGeometry).
+ *
+ * Geometry that comes with triangle strips is drawn from them, with
+ * primitive restart, where GL supports it; -Dcs4620.strips=off draws the
+ * triangles instead.
+ */
+
+public class MeshBuffers {
+
+	// whether meshes store quantized positions; -Dcs4620.quantize=off keeps floats
+	static final boolean QUANTIZE_MESHES = !"off".equals(System.getProperty("cs4620.quantize"));
+	static final boolean USE_STRIPS = !"off".equals(System.getProperty("cs4620.strips"));
+
+	final boolean quantizePositions;
+
+	final VertexBuffer vertexBuffer;
+	final IndexBuffer triangleIndicesBuffer;
+	final IndexBuffer linesIndicesBuffer;
+
+	final VertexArray trianglesArray;
+	final VertexArray wireframeArray;
+
+	// maps stored positions to the mesh's frame: offset + scale * stored
+	private final float [] positionScale = new float[] { 1, 1, 1 };
+	private final float [] positionOffset = new float[] { 0, 0, 0 };
+
+	public MeshBuffers(GL2 gl, boolean quantizePositions)
+	{
+		this.quantizePositions = quantizePositions;
+
+		int placeHolder2[] = {};
+
+		vertexBuffer = new VertexBuffer(gl, getLayout(quantizePositions));
+
+		triangleIndicesBuffer = new IndexBuffer(gl, placeHolder2);
+		linesIndicesBuffer = new IndexBuffer(gl, placeHolder2);
+
+		trianglesArray = new VertexArray(gl, GL2.GL_TRIANGLES);
+		trianglesArray.setIndexBuffer(gl, triangleIndicesBuffer);
+		trianglesArray.setInterleavedBuffer(gl, vertexBuffer);
+
+		wireframeArray = new VertexArray(gl, GL2.GL_LINES);
+		wireframeArray.setIndexBuffer(gl, linesIndicesBuffer);
+		wireframeArray.setInterleavedBuffer(gl, vertexBuffer);
+	}
+
+	static VertexLayout getLayout(boolean quantizePositions)
+	{
+		return quantizePositions ? SceneProgram.QUANTIZED_POSITIONS_LAYOUT : SceneProgram.FLOAT_POSITIONS_LAYOUT;
+	}
+
+	/**
+	 * Roughly the bytes of GL memory that a geometry of the given size
+	 * takes up with the layout meshes use.
+	 */
+	static long getByteSize(int numVertices, int numIndices)
+	{
+		int indexSize = numVertices < 0xffff ? 2 : 4; // see IndexBuffer
+		return (long) numVertices * getLayout(QUANTIZE_MESHES).getStride() + (long) indexSize * numIndices;
+	}
+
+	/**
+	 * Replaces the contents of the buffers with the given geometry.
+	 */
+	public void upload(GL2 gl, MeshData data)
+	{
+		setVertices(gl, FloatBuffer.wrap(data.vertices), FloatBuffer.wrap(data.normals));
+		if (data.triangleStrips != null && USE_STRIPS && VertexArray.supportsPrimitiveRestart(gl))
+		{
+			setTriangleStrips(true);
+			triangleIndicesBuffer.smartSetData(gl, data.triangleStrips);
+		}
+		else
+		{
+			setTriangleStrips(false);
+			triangleIndicesBuffer.smartSetData(gl, data.triangles);
+		}
+		linesIndicesBuffer.smartSetData(gl, data.wireframe);
+	}
+
+	/**
+	 * Replaces the contents of the buffers with the blocks of a mapped mesh
+	 * file, without copying them to arrays first.
+	 */
+	void upload(GL2 gl, BinaryMeshFile mesh)
+	{
+		setVertices(gl, mesh.getVertices(), mesh.getNormals());
+		setTriangleStrips(false);
+		triangleIndicesBuffer.smartSetData(gl, mesh.getTriangles());
+		linesIndicesBuffer.smartSetData(gl, mesh.getWireframe());
+	}
+
+	private void setTriangleStrips(boolean strips)
+	{
+		trianglesArray.setGeometryType(strips ? GL2.GL_TRIANGLE_STRIP : GL2.GL_TRIANGLES);
+		trianglesArray.setPrimitiveRestart(strips);
+	}
+
+	/*
+	 * Packs the remaining positions and normals, 3 floats per vertex each,
+	 * into the vertex buffer.
+	 */
+	private void setVertices(GL2 gl, FloatBuffer vertices, FloatBuffer normals)
+	{
+		VertexLayout layout = vertexBuffer.getLayout();
+		int stride = layout.getStride();
+		int positionOffset = layout.getAttributeAt(SceneProgram.VERTEX_INDEX).getOffset();
+		int normalOffset = layout.getAttributeAt(SceneProgram.NORMAL_INDEX).getOffset();
+		int numVertices = vertices.remaining() / 3;
+		if (quantizePositions)
+			computePositionTransform(vertices, numVertices);
+
+		ByteBuffer staging = StagingBufferPool.acquire(numVertices * stride);
+		try
+		{
+			int p = vertices.position(), n = normals.position();
+			for (int v = 0; v < numVertices; v++)
+			{
+				int at = v * stride + positionOffset;
+				for (int c = 0; c < 3; c++)
+				{
+					float x = vertices.get(p++);
+					if (quantizePositions)
+						staging.putShort(at + 2 * c, quantize(x, c));
+					else
+						staging.putFloat(at + 4 * c, x);
+				}
+				putNormal(staging, v * stride + normalOffset, normals.get(n++), normals.get(n++), normals.get(n++));
+			}
+			vertexBuffer.smartSetData(gl, staging);
+		}
+		finally
+		{
+			StagingBufferPool.release(staging);
+		}
+	}
+
+	// fits the bounding box of the positions into [-1, 1] on every axis
+	private void computePositionTransform(FloatBuffer vertices, int numVertices)
+	{
+		for (int c = 0; c < 3; c++)
+		{
+			positionScale[c] = 1;
+			positionOffset[c] = 0;
+			if (numVertices == 0)
+				continue;
+
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			for (int i = vertices.position() + c; i < vertices.limit(); i += 3)
+			{
+				float x = vertices.get(i);
+				min = Math.min(min, x);
+				max = Math.max(max, x);
+			}
+			positionScale[c] = 0.5f * (max - min);
+			positionOffset[c] = 0.5f * (max + min);
+		}
+	}
+
+	private short quantize(float x, int axis)
+	{
+		float scale = positionScale[axis];
+		return VertexLayout.toNormalizedShort(scale > 0 ? (x - positionOffset[axis]) / scale : 0);
+	}
+
+	/*
+	 * Writes the octahedral encoding of the normal (x, y, z) as two shorts at
+	 * the given byte position. The shaders decode it with decodeNormal().
+	 */
+	static void putNormal(ByteBuffer out, int at, float x, float y, float z)
+	{
+		float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		float u = 0, v = 0;
+		if (length > 0)
+		{
+			u = x / length;
+			v = y / length;
+			if (z < 0)
+			{
+				float foldedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+				float foldedV = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+				u = foldedU;
+				v = foldedV;
+			}
+		}
+		out.putShort(at, VertexLayout.toNormalizedShort(u));
+		out.putShort(at + 2, VertexLayout.toNormalizedShort(v));
+	}
+
+	/**
+	 * Hands the program what its shaders need to read these buffers, the
+	 * transformation back from stored positions. Does nothing for programs
+	 * other than SceneProgram.
+	 */
+	public void applyTo(GL2 gl, Program program)
+	{
+		if (program instanceof SceneProgram)
+			((SceneProgram)program).setPositionTransform(gl, positionScale, positionOffset);
+	}
+
+	public VertexArray getTrianglesArray()
+	{
+		return trianglesArray;
+	}
+
+	public VertexArray getWireframeArray()
+	{
+		return wireframeArray;
+	}
+
+	public void delete(GL2 gl)
+	{
+		trianglesArray.delete(gl);
+		wireframeArray.delete(gl);
+		vertexBuffer.delete(gl);
+		triangleIndicesBuffer.delete(gl);
+		linesIndicesBuffer.delete(gl);
+	}
+}
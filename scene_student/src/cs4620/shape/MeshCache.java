@@ -0,0 +1,341 @@
+package cs4620.shape;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import javax.media.opengl.GL2;
+
+import cs4620.framework.BoundingBox;
+
+/*
+ * Shares the geometry of triangle meshes between all meshes that would
+ * hold identical geometry. Procedural meshes are keyed by their type and the
+ * tolerance they were tessellated with, meshes read from disk by their file,
+ * so a scene with 500 teapots uploads the teapot once.
+ *
+ * Entries are reference counted. When the last mesh releases an entry it is
+ * not freed right away: the most recently released built entries are kept,
+ * up to maxUnusedBytes of geometry, so that dragging the tolerance slider
+ * back and forth finds the earlier resolutions still uploaded. Acquiring
+ * such an entry simply revives it. Entries beyond the budget, least recently
+ * released first, are freed by deleteUnused(), which must happen on the GL
+ * thread.
+ *
+ * Entries hold plain CPU data, so meshes can be built and queried without a
+ * GL context; the GL buffers of an entry (MeshBuffers) are made and filled
+ * by bind() the first time it is drawn.
+ */
+
+public class MeshCache {
+
+	/*
+	 * One shared geometry. An entry starts out empty; the first mesh to
+	 * acquire it fills it in with setData() or setMappedData() and calls
+	 * setBuilt().
+	 */
+	public static class Entry
+	{
+		private final String key;
+		private int refCount;
+		private boolean built;
+		private long byteSize;
+		final BoundingBox bounds = new BoundingBox();
+
+		// the geometry: plain arrays, or a mapped file to copy them from
+		// when first needed
+		private MeshData data;
+		private BinaryMeshFile mappedData;
+		private TriangleBVH bvh;
+
+		// made by the first bind(), and filled again when stale
+		private MeshBuffers buffers;
+		private boolean buffersStale = true;
+
+		private Entry(String key)
+		{
+			this.key = key;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		public int getRefCount()
+		{
+			return refCount;
+		}
+
+		public boolean isBuilt()
+		{
+			return built;
+		}
+
+		public void setBuilt()
+		{
+			built = true;
+			Mesh.boundsChanged();
+		}
+
+		/**
+		 * Size of the geometry's GL buffers in bytes.
+		 */
+		public long getByteSize()
+		{
+			return byteSize;
+		}
+
+		/**
+		 * Replaces the geometry with the given arrays, which must not be
+		 * modified afterwards. Needs no GL; the buffers are filled on the
+		 * next bind().
+		 */
+		public synchronized void setData(MeshData data)
+		{
+			if (data.vertices.length % 3 != 0)
+				throw new Error("Vertex array's length is not a multiple of 3.");
+			if (data.normals.length % 3 != 0)
+				throw new Error("Normal array's length is not a multiple of 3");
+			if (data.triangles.length % 3 != 0)
+				throw new Error("Triangle array's length is not a multiple of 3.");
+			if (data.wireframe.length % 2 != 0)
+				throw new Error("Line array's length is not a multiple of 2.");
+
+			bounds.setFromVertices(data.vertices);
+			this.data = data;
+			this.mappedData = null;
+			this.bvh = null;
+			buffersStale = true;
+			int numTriangleIndices = data.triangleStrips != null && MeshBuffers.USE_STRIPS
+					? data.triangleStrips.length : data.triangles.length;
+			byteSize = MeshBuffers.getByteSize(data.getNumVertices(),
+					numTriangleIndices + data.wireframe.length);
+		}
+
+		/**
+		 * Replaces the geometry with a mapped mesh file, whose blocks are
+		 * packed straight into the buffers on the next bind(); arrays are
+		 * only copied out of it if the geometry is queried.
+		 */
+		public synchronized void setMappedData(BinaryMeshFile mesh)
+		{
+			bounds.setFromVertices(mesh.getVertices());
+			data = null;
+			mappedData = mesh;
+			bvh = null;
+			buffersStale = true;
+			byteSize = MeshBuffers.getByteSize(mesh.getNumVertices(), 9 * mesh.getNumTriangles());
+		}
+
+		/**
+		 * Returns the GL buffers of this geometry, making them and filling
+		 * them with the current geometry if that has not been done yet, or
+		 * null if the geometry is not built. Must be called on the GL thread.
+		 */
+		public synchronized MeshBuffers bind(GL2 gl)
+		{
+			if (!built)
+				return null;
+			if (buffers == null)
+				buffers = new MeshBuffers(gl, MeshBuffers.QUANTIZE_MESHES);
+			if (buffersStale)
+			{
+				if (data != null)
+					buffers.upload(gl, data);
+				else
+					buffers.upload(gl, mappedData);
+				buffersStale = false;
+			}
+			return buffers;
+		}
+
+		/**
+		 * Returns a CPU copy of this geometry, reading it from the mapped
+		 * file on first use, or null if the geometry is not built. The
+		 * arrays must not be modified.
+		 */
+		public synchronized MeshData getData()
+		{
+			if (!built)
+				return null;
+			if (data == null && mappedData != null)
+			{
+				data = mappedData.toMeshData();
+				mappedData = null;
+			}
+			return data;
+		}
+
+		/**
+		 * Returns the ray query hierarchy over this geometry, building it on
+		 * first use, or null if the geometry is not built.
+		 */
+		public synchronized TriangleBVH getBVH()
+		{
+			if (bvh == null && getData() != null)
+				bvh = new TriangleBVH(data);
+			return bvh;
+		}
+
+		private synchronized void delete(GL2 gl)
+		{
+			if (buffers != null)
+				buffers.delete(gl);
+			buffers = null;
+			buffersStale = true;
+		}
+	}
+
+	private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	// unreferenced entries, least recently released first
+	private static final LinkedHashSet<Entry> unused = new LinkedHashSet<Entry>();
+	private static long unusedBytes = 0;
+	private static long maxUnusedBytes = 16L * 1024 * 1024;
+
+	/**
+	 * Returns the entry for key with its reference count incremented,
+	 * creating an empty one if there is none.
+	 */
+	public static synchronized Entry acquire(String key)
+	{
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			entry = new Entry(key);
+			entries.put(key, entry);
+		}
+		else if (entry.refCount == 0)
+		{
+			unused.remove(entry);
+			unusedBytes -= entry.byteSize;
+		}
+
+		entry.refCount++;
+		return entry;
+	}
+
+	/**
+	 * Gives up one reference to entry. An entry nobody references stays
+	 * cached until deleteUnused() needs to make room.
+	 */
+	public static synchronized void release(Entry entry)
+	{
+		if (entry.refCount <= 0)
+			throw new IllegalStateException("mesh cache entry " + entry.key + " released too often");
+
+		entry.refCount--;
+		if (entry.refCount == 0)
+		{
+			unused.add(entry);
+			unusedBytes += entry.byteSize;
+		}
+	}
+
+	/**
+	 * Frees unreferenced entries, and their GL buffers, least recently
+	 * released first, until those left fit in maxUnusedBytes. Entries that were never
+	 * built are always freed. Cheap when there is nothing to do, so it can be
+	 * called every frame.
+	 */
+	public static synchronized void deleteUnused(GL2 gl)
+	{
+		if (unused.isEmpty())
+			return;
+
+		for (Iterator<Entry> it = unused.iterator(); it.hasNext();)
+		{
+			Entry entry = it.next();
+			if (entry.built && unusedBytes <= maxUnusedBytes)
+				continue;
+			it.remove();
+			unusedBytes -= entry.byteSize;
+			entries.remove(entry.key);
+			entry.delete(gl);
+		}
+	}
+
+	/**
+	 * Sets how many bytes of unreferenced geometry are kept for reuse. Zero
+	 * frees every unreferenced entry on the next deleteUnused().
+	 */
+	public static synchronized void setMaxUnusedBytes(long bytes)
+	{
+		maxUnusedBytes = bytes;
+	}
+
+	public static synchronized long getUnusedBytes()
+	{
+		return unusedBytes;
+	}
+
+	/**
+	 * Whether geometry for key exists and is ready to draw.
+	 */
+	public static synchronized boolean isBuilt(String key)
+	{
+		Entry entry = entries.get(key);
+		return entry != null && entry.built;
+	}
+
+	/**
+	 * Number of entries currently held, referenced or not.
+	 */
+	public static synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Key for procedural meshes whose geometry depends only on their class
+	 * and the tessellation tolerance.
+	 */
+	public static String keyFor(Class<?> meshClass, float tolerance)
+	{
+		return meshClass.getName() + "@" + tolerance;
+	}
+
+	/**
+	 * Key for procedural meshes whose geometry depends only on their class
+	 * and the resolution (e.g. number of divisions) the tolerance maps to.
+	 * Meshes should prefer this to keyFor(Class, float), since nearby
+	 * tolerances usually give the same resolution. Named apart from it so
+	 * that a single int cannot widen into a tolerance.
+	 */
+	public static String keyForResolution(Class<?> meshClass, int ... resolution)
+	{
+		StringBuilder key = new StringBuilder(meshClass.getName()).append('#');
+		for (int i = 0; i < resolution.length; i++)
+		{
+			if (i > 0)
+				key.append('x');
+			key.append(resolution[i]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Key for meshes that do not depend on the tolerance.
+	 */
+	public static String keyFor(Class<?> meshClass)
+	{
+		return meshClass.getName();
+	}
+
+	/**
+	 * Key for meshes loaded from a file.
+	 */
+	public static String keyFor(File meshFile)
+	{
+		try
+		{
+			return "file:" + meshFile.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			return "file:" + meshFile.getAbsolutePath();
+		}
+	}
+}
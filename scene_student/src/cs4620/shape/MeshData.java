@@ -0,0 +1,45 @@
+package cs4620.shape;
+
+/*
+ * The plain arrays that make up a triangle mesh: vertex positions and
+ * normals (3 floats per vertex), triangle indices (3 per triangle) and
+ * wireframe line indices (2 per line). Meshes made of grids can also give
+ * their triangles as strips, separated by IndexBuffer.RESTART_INDEX, which
+ * are drawn instead of the triangle indices where GL supports primitive
+ * restart; everything else uses the triangle indices. Produced without any GL calls by
+ * TriangleMesh.tessellate(), so it can be built on any thread, and kept by
+ * MeshCache.Entry.setData(), whose GL buffers are filled from it on the GL
+ * thread.
+ */
+
+public class MeshData {
+
+	public float [] vertices;
+	public float [] normals;
+	public int [] triangles;
+	public int [] wireframe;
+	public int [] triangleStrips; // may be null
+
+	public MeshData()
+	{
+		// fields are filled in by the caller
+	}
+
+	public MeshData(float [] vertices, float [] normals, int [] triangles, int [] wireframe)
+	{
+		this.vertices = vertices;
+		this.normals = normals;
+		this.triangles = triangles;
+		this.wireframe = wireframe;
+	}
+
+	public int getNumVertices()
+	{
+		return vertices.length / 3;
+	}
+
+	public int getNumTriangles()
+	{
+		return triangles.length / 3;
+	}
+}
@@ -0,0 +1,445 @@
+package cs4620.shape;
+
+import java.util.Arrays;
+
+import cs4620.framework.IndexBuffer;
+
+/*
+ * Prepares a mesh's geometry for the GPU's vertex pipeline, in three steps:
+ *
+ *   1. Welding. Vertices with identical positions and normals (e.g. the
+ *      many copies of a sphere's poles) are merged, found with a hash table
+ *      keyed by position. Triangles and lines that become degenerate are
+ *      dropped.
+ *   2. Triangle order. The triangles are reordered so that most of their
+ *      vertices are still in the post-transform vertex cache from a recent
+ *      triangle, and need not be shaded again. This is Forsyth's "Linear-
+ *      Speed Vertex Cache Optimisation": vertices are scored by their
+ *      position in a simulated LRU cache and by how many triangles still
+ *      use them, and the next triangle is the best scored one among those
+ *      touching the cache. Meshes whose own order already does better in
+ *      the simulation below keep it.
+ *   3. Vertex order. Vertices are renumbered in the order the triangles
+ *      first use them, so that fetching them walks memory forwards, and
+ *      vertices no longer used are dropped.
+ *
+ * The quality of the triangle order is measured as the ACMR (average cache
+ * miss ratio): vertices shaded per triangle by a FIFO cache of
+ * SIMULATED_CACHE_SIZE vertices, 3 for no reuse at all and about 0.5 at
+ * best for regular grids. The optimizer reports it before and after, for
+ * the indices that are drawn (triangle strips where the mesh has them), and
+ * keeps totals over all meshes optimized so far, see getReport();
+ * -Dcs4620.meshstats=on prints them on exit.
+ *
+ * Triangle strips are welded and renumbered but keep their order: they
+ * take about one index per triangle, a third of what a list takes, which
+ * is worth more than the better cache use of a reordered list. Meshes drawn
+ * from strips only get the reordering where strips are off (see
+ * MeshBuffers).
+ *
+ * Needs no GL, so it runs where geometry is made: once per shared geometry,
+ * in TriangleMesh.buildGeometry(), on MeshRebuilder's workers or the GL
+ * thread, and when compiling binary mesh files,
+ * which are then loaded optimized.
+ */
+
+public class MeshOptimizer {
+
+	public static final int SIMULATED_CACHE_SIZE = 16;
+
+	// the cache Forsyth's scores are tuned for, and the scoring constants
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	private static final int MAX_SCORED_VALENCE = 64;
+
+	private static final float [] cacheScores = new float[CACHE_SIZE];
+	private static final float [] valenceScores = new float[MAX_SCORED_VALENCE];
+	static
+	{
+		for (int i = 0; i < CACHE_SIZE; i++)
+		{
+			if (i < 3)
+				cacheScores[i] = LAST_TRIANGLE_SCORE;
+			else
+				cacheScores[i] = (float) Math.pow(1 - (i - 3) / (float)(CACHE_SIZE - 3), CACHE_DECAY_POWER);
+		}
+		for (int v = 1; v < MAX_SCORED_VALENCE; v++)
+			valenceScores[v] = VALENCE_BOOST_SCALE * (float) Math.pow(v, -VALENCE_BOOST_POWER);
+	}
+
+	// totals over every optimize(), see getReport()
+	private static long totalTriangles = 0;
+	private static long totalMissesBefore = 0;
+	private static long totalMissesAfter = 0;
+	private static long totalWelded = 0;
+
+	static
+	{
+		if ("on".equals(System.getProperty("cs4620.meshstats")))
+		{
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					System.out.println(getReport());
+				}
+			});
+		}
+	}
+
+	private final MeshData result;
+	private final int numVerticesBefore;
+	private final int numTrianglesBefore;
+	private final float acmrBefore;
+	private final float acmrAfter;
+	private final long nanos;
+
+	/**
+	 * Optimizes the given geometry, which is not modified. The result is
+	 * available from getResult().
+	 */
+	public MeshOptimizer(MeshData data)
+	{
+		long start = System.nanoTime();
+		numVerticesBefore = data.getNumVertices();
+		numTrianglesBefore = data.getNumTriangles();
+		int missesBefore = countCacheMisses(getDrawnIndices(data));
+		acmrBefore = numTrianglesBefore == 0 ? 0 : missesBefore / (float) numTrianglesBefore;
+
+		int [] welded = new int[numVerticesBefore];
+		int numWelded = weld(data, welded);
+		int [] triangles = removeDegenerate(remap(data.triangles, welded), 3);
+		int [] wireframe = removeDegenerate(remap(data.wireframe, welded), 2);
+		int [] strips = data.triangleStrips == null ? null : remap(data.triangleStrips, welded);
+
+		// Forsyth's scores are tuned for an LRU cache; keep the order the
+		// mesh came in if it already suits the simulated one better
+		int [] reordered = reorderTriangles(triangles, numWelded);
+		if (countCacheMisses(reordered) < countCacheMisses(triangles))
+			triangles = reordered;
+
+		// number the vertices by first use, triangles first
+		int [] order = new int[numWelded];
+		Arrays.fill(order, -1);
+		int numUsed = 0;
+		numUsed = numberByFirstUse(triangles, order, numUsed);
+		if (strips != null)
+			numUsed = numberByFirstUse(strips, order, numUsed);
+		numUsed = numberByFirstUse(wireframe, order, numUsed);
+
+		result = new MeshData(new float[3 * numUsed], new float[3 * numUsed],
+				remap(triangles, order), remap(wireframe, order));
+		if (strips != null)
+			result.triangleStrips = remap(strips, order);
+		for (int v = 0; v < numVerticesBefore; v++)
+		{
+			if (welded[v] < 0 || order[welded[v]] < 0)
+				continue;
+			int to = 3 * order[welded[v]];
+			System.arraycopy(data.vertices, 3 * v, result.vertices, to, 3);
+			System.arraycopy(data.normals, 3 * v, result.normals, to, 3);
+		}
+
+		int missesAfter = countCacheMisses(getDrawnIndices(result));
+		acmrAfter = result.getNumTriangles() == 0 ? 0 : missesAfter / (float) result.getNumTriangles();
+		nanos = System.nanoTime() - start;
+
+		synchronized (MeshOptimizer.class)
+		{
+			totalTriangles += numTrianglesBefore;
+			totalMissesBefore += missesBefore;
+			totalMissesAfter += missesAfter;
+			totalWelded += numVerticesBefore - numWelded;
+		}
+	}
+
+	/**
+	 * Shorthand for new MeshOptimizer(data).getResult().
+	 */
+	public static MeshData optimize(MeshData data)
+	{
+		return new MeshOptimizer(data).getResult();
+	}
+
+	/*
+	 * Maps every vertex to the first vertex with the same position and
+	 * normal, numbered in order of first appearance. Returns the number of
+	 * distinct vertices.
+	 */
+	private static int weld(MeshData data, int [] welded)
+	{
+		int n = data.getNumVertices();
+		int capacity = Integer.highestOneBit(Math.max(1, 2 * n - 1)) << 1;
+		int [] table = new int[capacity]; // original vertex + 1, 0 if empty
+		int [] first = new int[n];        // the kept vertex of each distinct one
+		float [] p = data.vertices, nrm = data.normals;
+		int numDistinct = 0;
+
+		for (int v = 0; v < n; v++)
+		{
+			int slot = hash(p[3*v], p[3*v+1], p[3*v+2]) & (capacity - 1);
+			while (true)
+			{
+				int other = table[slot] - 1;
+				if (other < 0)
+				{
+					table[slot] = v + 1;
+					first[numDistinct] = v;
+					welded[v] = numDistinct++;
+					break;
+				}
+				if (sameVertex(p, nrm, v, other))
+				{
+					welded[v] = welded[other];
+					break;
+				}
+				slot = (slot + 1) & (capacity - 1);
+			}
+		}
+		return numDistinct;
+	}
+
+	private static int hash(float x, float y, float z)
+	{
+		// adding 0 turns -0 into 0, which compares equal
+		int h = Float.floatToIntBits(x + 0.0f);
+		h = 31 * h + Float.floatToIntBits(y + 0.0f);
+		h = 31 * h + Float.floatToIntBits(z + 0.0f);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private static boolean sameVertex(float [] p, float [] n, int a, int b)
+	{
+		for (int c = 0; c < 3; c++)
+			if (p[3*a+c] != p[3*b+c] || n[3*a+c] != n[3*b+c])
+				return false;
+		return true;
+	}
+
+	// maps indices through map, keeping RESTART_INDEX
+	private static int [] remap(int [] indices, int [] map)
+	{
+		int [] result = new int[indices.length];
+		for (int i = 0; i < indices.length; i++)
+			result[i] = indices[i] == IndexBuffer.RESTART_INDEX ? IndexBuffer.RESTART_INDEX : map[indices[i]];
+		return result;
+	}
+
+	// drops the primitives of the given size that repeat a vertex
+	private static int [] removeDegenerate(int [] indices, int size)
+	{
+		int kept = 0;
+		int [] result = new int[indices.length];
+		for (int i = 0; i + size <= indices.length; i += size)
+		{
+			boolean degenerate = false;
+			for (int a = 0; a < size; a++)
+				for (int b = a + 1; b < size; b++)
+					degenerate |= indices[i+a] == indices[i+b];
+			if (degenerate)
+				continue;
+			System.arraycopy(indices, i, result, kept, size);
+			kept += size;
+		}
+		return kept == result.length ? result : Arrays.copyOf(result, kept);
+	}
+
+	private static int numberByFirstUse(int [] indices, int [] order, int numUsed)
+	{
+		for (int i = 0; i < indices.length; i++)
+		{
+			int v = indices[i];
+			if (v != IndexBuffer.RESTART_INDEX && order[v] < 0)
+				order[v] = numUsed++;
+		}
+		return numUsed;
+	}
+
+	/*
+	 * Forsyth's algorithm. Returns the triangles in their new order.
+	 */
+	private static int [] reorderTriangles(int [] triangles, int numVertices)
+	{
+		int numTriangles = triangles.length / 3;
+
+		// triangles of each vertex, in one array
+		int [] valence = new int[numVertices];
+		for (int i = 0; i < triangles.length; i++)
+			valence[triangles[i]]++;
+		int [] adjacencyStart = new int[numVertices + 1];
+		for (int v = 0; v < numVertices; v++)
+			adjacencyStart[v+1] = adjacencyStart[v] + valence[v];
+		int [] adjacency = new int[triangles.length];
+		int [] fill = Arrays.copyOf(adjacencyStart, numVertices);
+		for (int i = 0; i < triangles.length; i++)
+			adjacency[fill[triangles[i]]++] = i / 3;
+
+		int [] cachePosition = new int[numVertices];
+		Arrays.fill(cachePosition, -1);
+		float [] vertexScore = new float[numVertices];
+		for (int v = 0; v < numVertices; v++)
+			vertexScore[v] = score(-1, valence[v]);
+		boolean [] emitted = new boolean[numTriangles];
+
+		int [] cache = new int[CACHE_SIZE + 3];
+		int [] newCache = new int[CACHE_SIZE + 3];
+		int cacheLength = 0;
+
+		int [] result = new int[triangles.length];
+		int cursor = 0; // every triangle before it has been emitted
+		int best = -1;
+		for (int t = 0; t < numTriangles; t++)
+		{
+			if (best < 0)
+			{
+				// nothing in the cache is worth anything, start afresh
+				while (emitted[cursor])
+					cursor++;
+				best = cursor;
+			}
+
+			emitted[best] = true;
+			System.arraycopy(triangles, 3 * best, result, 3 * t, 3);
+
+			// the triangle's vertices move to the front of the cache
+			int newLength = 0;
+			for (int c = 0; c < 3; c++)
+			{
+				int v = triangles[3 * best + c];
+				newCache[newLength++] = v;
+				valence[v]--;
+			}
+			for (int i = 0; i < cacheLength; i++)
+			{
+				int v = cache[i];
+				if (v != newCache[0] && v != newCache[1] && v != newCache[2])
+					newCache[newLength++] = v;
+			}
+			int [] swap = cache; cache = newCache; newCache = swap;
+			cacheLength = Math.min(newLength, CACHE_SIZE);
+
+			// rescore the vertices that were in the cache, including the
+			// ones that just fell out
+			for (int i = 0; i < newLength; i++)
+			{
+				int v = cache[i];
+				cachePosition[v] = i < CACHE_SIZE ? i : -1;
+				vertexScore[v] = score(cachePosition[v], valence[v]);
+			}
+
+			// the best triangle touching the cache comes next
+			best = -1;
+			float bestScore = 0;
+			for (int i = 0; i < cacheLength; i++)
+			{
+				int v = cache[i];
+				for (int a = adjacencyStart[v]; a < adjacencyStart[v+1]; a++)
+				{
+					int candidate = adjacency[a];
+					if (emitted[candidate])
+						continue;
+					float s = vertexScore[triangles[3 * candidate]]
+							+ vertexScore[triangles[3 * candidate + 1]]
+							+ vertexScore[triangles[3 * candidate + 2]];
+					if (s > bestScore)
+					{
+						bestScore = s;
+						best = candidate;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static float score(int cachePosition, int valence)
+	{
+		if (valence <= 0)
+			return -1;
+		float score = cachePosition < 0 ? 0 : cacheScores[cachePosition];
+		return score + valenceScores[Math.min(valence, MAX_SCORED_VALENCE - 1)];
+	}
+
+	// the indices MeshBuffers draws the triangles from
+	private static int [] getDrawnIndices(MeshData data)
+	{
+		return data.triangleStrips != null ? data.triangleStrips : data.triangles;
+	}
+
+	/**
+	 * Vertices a FIFO cache of SIMULATED_CACHE_SIZE entries would shade to
+	 * draw the given triangle list, or strips, in order.
+	 */
+	public static int countCacheMisses(int [] indices)
+	{
+		int [] fifo = new int[SIMULATED_CACHE_SIZE];
+		Arrays.fill(fifo, -1);
+		int next = 0, misses = 0;
+		for (int i = 0; i < indices.length; i++)
+		{
+			int v = indices[i];
+			if (v == IndexBuffer.RESTART_INDEX)
+				continue;
+			boolean hit = false;
+			for (int c = 0; c < SIMULATED_CACHE_SIZE && !hit; c++)
+				hit = fifo[c] == v;
+			if (!hit)
+			{
+				fifo[next] = v;
+				next = (next + 1) % SIMULATED_CACHE_SIZE;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	public MeshData getResult()
+	{
+		return result;
+	}
+
+	public float getAcmrBefore()
+	{
+		return acmrBefore;
+	}
+
+	public float getAcmrAfter()
+	{
+		return acmrAfter;
+	}
+
+	public int getNumVerticesBefore()
+	{
+		return numVerticesBefore;
+	}
+
+	public int getNumVerticesAfter()
+	{
+		return result.getNumVertices();
+	}
+
+	@Override
+	public String toString()
+	{
+		return numVerticesBefore + " -> " + result.getNumVertices() + " vertices, "
+				+ numTrianglesBefore + " -> " + result.getNumTriangles() + " triangles, ACMR "
+				+ String.format("%.3f -> %.3f", acmrBefore, acmrAfter) + " (" + nanos / 1000000 + " ms)";
+	}
+
+	/**
+	 * The ACMR over all meshes optimized so far, before and after, and the
+	 * number of vertices welded away.
+	 */
+	public static synchronized String getReport()
+	{
+		if (totalTriangles == 0)
+			return "no meshes optimized";
+		return String.format("ACMR %.3f -> %.3f over %d triangles, %d vertices welded",
+				totalMissesBefore / (float) totalTriangles, totalMissesAfter / (float) totalTriangles,
+				totalTriangles, totalWelded);
+	}
+}
@@ -0,0 +1,259 @@
+package cs4620.shape;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLRunnable;
+
+import cs4620.framework.GLInvoker;
+
+/*
+ * Rebuilds meshes for a new tolerance without stalling the GL thread.
+ *
+ * rebuild() is called on the GL thread. Meshes whose geometry for the new
+ * tolerance already exists in the MeshCache are switched over at once. For
+ * every other geometry key, one mesh is tessellated and optimized for the
+ * vertex cache on a pool of worker threads (TriangleMesh.buildGeometry()
+ * does no GL), straight into the geometry's MeshCache entry, which stays
+ * unbuilt, so nothing draws it yet. Finished results queue up until
+ * uploadFinished(), which the owner calls on the GL thread once a frame,
+ * uploads as many as fit in the upload budget; only then are the meshes
+ * waiting for a result switched over, so until then they keep drawing their
+ * old geometry. Spreading the uploads over frames keeps
+ * the view responsive while a large scene fills in. Workers wake the GL
+ * thread through GLInvoker.invoke() so that a frame follows a finished
+ * result.
+ *
+ * If rebuild() is called again before earlier work finishes, meshes end up
+ * with the geometry of the latest call; results of older calls are still
+ * uploaded and cached, but not used.
+ */
+
+public class MeshRebuilder {
+
+	private final GLInvoker invoker;
+	private final ExecutorService executor;
+
+	// Both maps are only touched on the GL thread.
+	// geometry key each mesh is waiting for
+	private final HashMap<TriangleMesh, String> wantedKeys = new HashMap<TriangleMesh, String>();
+	// tessellations in flight, by geometry key
+	private final HashMap<String, Job> jobs = new HashMap<String, Job>();
+	// tessellations since the rebuilder was last idle, for progress reports
+	private int numJobsStarted = 0;
+
+	// tessellated on a worker, waiting for uploadFinished()
+	private final ConcurrentLinkedQueue<Job> finished = new ConcurrentLinkedQueue<Job>();
+	private long uploadBudgetNanos = 4000000L;
+
+	// set while a wake-up is queued with the invoker, so there is at most one
+	private final AtomicBoolean wakeQueued = new AtomicBoolean(false);
+	private final GLRunnable wakeUp = new GLRunnable() {
+		public boolean run(GLAutoDrawable drawable) {
+			// the frame this belongs to does the uploading
+			wakeQueued.set(false);
+			return true;
+		}
+	};
+
+	public MeshRebuilder(GLInvoker invoker)
+	{
+		this(invoker, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	public MeshRebuilder(GLInvoker invoker, int numThreads)
+	{
+		this.invoker = invoker;
+		this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mesh-rebuilder-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * One tessellation: runs on a worker thread, then finishes on the GL thread.
+	 */
+	private class Job implements Runnable
+	{
+		final String key;
+		final TriangleMesh mesh;
+		final float tolerance;
+		final MeshCache.Entry entry; // referenced by the job until it finishes
+
+		RuntimeException error;
+		volatile boolean cancelled = false;
+
+		Job(String key, TriangleMesh mesh, float tolerance, MeshCache.Entry entry)
+		{
+			this.key = key;
+			this.mesh = mesh;
+			this.tolerance = tolerance;
+			this.entry = entry;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if (!cancelled && !entry.isBuilt())
+					mesh.buildGeometry(entry, tolerance);
+			}
+			catch (RuntimeException e)
+			{
+				error = e;
+			}
+			finished.add(this);
+			if (wakeQueued.compareAndSet(false, true))
+				invoker.invoke(false, wakeUp);
+		}
+	}
+
+	/**
+	 * Brings the given meshes to the given tolerance. Must be called on the
+	 * GL thread. Meshes that are not TriangleMeshes are built right away.
+	 */
+	public void rebuild(GL2 gl, List<Mesh> meshes, float tolerance)
+	{
+		for (int i = 0; i < meshes.size(); i++)
+		{
+			Mesh mesh = meshes.get(i);
+			if (!(mesh instanceof TriangleMesh))
+			{
+				mesh.buildMesh(tolerance);
+				continue;
+			}
+
+			TriangleMesh triangleMesh = (TriangleMesh)mesh;
+			String key = triangleMesh.getGeometryKey(tolerance);
+			if (MeshCache.isBuilt(key))
+			{
+				// already there, just switch
+				wantedKeys.remove(triangleMesh);
+				triangleMesh.acquireGeometry(key);
+				continue;
+			}
+
+			wantedKeys.put(triangleMesh, key);
+			Job pending = jobs.get(key);
+			if (pending == null || pending.cancelled)
+			{
+				Job job = new Job(key, triangleMesh, tolerance, MeshCache.acquire(key));
+				jobs.put(key, job);
+				numJobsStarted++;
+				executor.execute(job);
+			}
+		}
+	}
+
+	/**
+	 * Number of tessellations that have not been uploaded yet.
+	 */
+	public int getNumPendingJobs()
+	{
+		return jobs.size();
+	}
+
+	/**
+	 * Number of tessellations started since there were last none pending,
+	 * so that getNumPendingJobs() of them tells how far a rebuild has got.
+	 */
+	public int getNumJobsStarted()
+	{
+		return numJobsStarted;
+	}
+
+	/**
+	 * Sets how long uploadFinished() may spend uploading in one call.
+	 */
+	public void setUploadBudget(long nanos)
+	{
+		uploadBudgetNanos = nanos;
+	}
+
+	/**
+	 * Uploads finished tessellations, oldest first, and switches the meshes
+	 * waiting for them over, until the upload budget is spent; the rest wait
+	 * for the next call. At least one is uploaded per call, so every result
+	 * gets there. Must be called on the GL thread, once a frame. Returns
+	 * the number of results handled.
+	 */
+	public int uploadFinished(GL2 gl)
+	{
+		long start = System.nanoTime();
+		int count = 0;
+		Job job;
+		while ((count == 0 || System.nanoTime() - start < uploadBudgetNanos)
+				&& (job = finished.poll()) != null)
+		{
+			finish(gl, job);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Drops the work of every rebuild so far: tessellations that have not
+	 * started are skipped and no finished result is uploaded, so meshes keep
+	 * whatever geometry they have until the next rebuild(). Must be called
+	 * on the GL thread.
+	 */
+	public void cancel()
+	{
+		for (Job job : jobs.values())
+			job.cancelled = true;
+		wantedKeys.clear();
+	}
+
+	private void finish(GL2 gl, Job job)
+	{
+		// a cancelled job may have been replaced by a later rebuild()
+		if (jobs.get(job.key) == job)
+			jobs.remove(job.key);
+		if (jobs.isEmpty())
+			numJobsStarted = 0;
+
+		if (job.cancelled)
+		{
+			MeshCache.release(job.entry);
+			return;
+		}
+
+		if (job.error != null)
+		{
+			System.err.println("WARNING: could not tessellate " + job.key);
+			job.error.printStackTrace();
+		}
+		else if (!job.entry.isBuilt())
+		{
+			job.entry.setBuilt();
+			// upload now, within the budget, rather than at the first draw
+			job.entry.bind(gl);
+		}
+
+		for (Iterator<Map.Entry<TriangleMesh, String>> it = wantedKeys.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<TriangleMesh, String> wanted = it.next();
+			if (!wanted.getValue().equals(job.key))
+				continue;
+			it.remove();
+			if (job.entry.isBuilt() && !wanted.getKey().isDisposed())
+				wanted.getKey().acquireGeometry(job.key);
+		}
+
+		MeshCache.release(job.entry);
+	}
+}
@@ -3,24 +3,40 @@ package cs4620.shape;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
+import cs4620.framework.IndexBuffer;
 
 public class Sphere extends TriangleMesh {
 
-	public Sphere(GL2 gl) {
-		super(gl);
+	public Sphere() {
+		super();
+	}
+
+	private static int getLatitudes(float tolerance)
+	{
+		return (int)Math.ceil(Math.PI / (tolerance/2.0));
+	}
+
+	private static int getLongitudes(float tolerance)
+	{
+		return (int)Math.ceil(2.0*Math.PI / (tolerance/2.0));
 	}
 
 	@Override
-	public void buildMesh(GL2 gl, float tolerance)
+	protected String getGeometryKey(float tolerance) {
+		// many tolerances round to the same grid
+		return MeshCache.keyForResolution(Sphere.class, getLatitudes(tolerance), getLongitudes(tolerance));
+	}
+
+	@Override
+	protected MeshData tessellate(float tolerance)
 	{
 		// TODO (Scene P2): Implement mesh generation for Sphere. Your code should
 		// fill arrays of vertex positions/normals and vertex indices for triangles/lines
 		// and put this information in the GL buffers using the
 		//   set*()
 		// methods from TriangleMesh.
-		int latitudes = (int)Math.ceil(Math.PI / (tolerance/2.0));
-		int longitudes = (int)Math.ceil(2.0*Math.PI / (tolerance/2.0));
+		int latitudes = getLatitudes(tolerance);
+		int longitudes = getLongitudes(tolerance);
 		
 		// Note that n intervals mean n+1 lines
 		int vertexCount = (latitudes+1) * (longitudes+1);
@@ -69,6 +85,21 @@ public class Sphere extends TriangleMesh {
 				tNum += 6;
 			}
 		}
+		// The same triangles as one strip per band of latitude, whose
+		// vertices alternate between its two rows
+		int[] strips = new int[latitudes * (2 * longitudes + 3) - 1];
+		int sNum = 0;
+		for (int i = 0; i < latitudes; i++)
+		{
+			int nextI = (i + 1) % latitudes;
+			if (i > 0)
+				strips[sNum++] = IndexBuffer.RESTART_INDEX;
+			for (int j = 0; j <= longitudes; j++)
+			{
+				strips[sNum++] = i*longitudes + j % longitudes;
+				strips[sNum++] = nextI*longitudes + j % longitudes;
+			}
+		}
 		// Set lines
 		int lineCount = 2 * latitudes * longitudes;
 		int[] lines = new int[lineCount*2];
@@ -90,10 +121,9 @@ public class Sphere extends TriangleMesh {
 			}
 		}
 		// Put into buffer
-		setVertices(gl, vertices);
-		setNormals(gl, normals);
-		setTriangleIndices(gl, triangles);
-		setWireframeIndices(gl, lines);
+		MeshData data = new MeshData(vertices, normals, triangles, lines);
+		data.triangleStrips = strips;
+		return data;
 	}
 
 	@Override
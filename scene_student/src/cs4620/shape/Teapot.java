@@ -4,8 +4,6 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
-
 import com.jogamp.opengl.util.gl2.GLUT;
 
 // Wrap up the GLUT teapot object in our Mesh class
@@ -21,13 +19,8 @@ public class Teapot extends CustomTriangleMesh {
 		this.scale = scale;
 	}
 
-	public Teapot(GL2 gl) throws Exception {
-		super(gl, new File("data/meshes/teapot.msh"));
-	}
-
-	@Override
-	public void buildMesh(GL2 gl, float tolerance) {
-		// GLUT is in control of that
+	public Teapot() throws Exception {
+		super(new File("data/meshes/teapot.msh"));
 	}
 
 	public Object getYamlObjectRepresentation() {
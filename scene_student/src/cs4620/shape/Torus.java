@@ -3,16 +3,16 @@ package cs4620.shape;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.media.opengl.GL2;
+import cs4620.framework.IndexBuffer;
 
 public class Torus extends TriangleMesh
 {
 	private static float DEFAULT_MAJOR_RADIUS = 0.75f;
 	private static float DEFAULT_MINOR_RADIUS = 0.25f;
 
-	public Torus(GL2 gl)
+	public Torus()
 	{
-		super(gl);
+		super();
 	}
 
     private void torusVertex(
@@ -38,10 +38,26 @@ public class Torus extends TriangleMesh
         normals[3*pos+2] = sinPhi;
     }
 
+	private static int getBigDiv(float tolerance)
+	{
+		return (int)Math.ceil(4*Math.PI*0.75 / tolerance);
+	}
+
+	private static int getSmallDiv(float tolerance)
+	{
+		return (int) Math.ceil(4*Math.PI*0.25 / tolerance);
+	}
+
+	@Override
+	protected String getGeometryKey(float tolerance) {
+		// many tolerances round to the same number of divisions
+		return MeshCache.keyForResolution(Torus.class, getBigDiv(tolerance), getSmallDiv(tolerance));
+	}
+
 	@Override
-	public void buildMesh(GL2 gl, float tolerance) {
-		int bigDiv = (int)Math.ceil(4*Math.PI*0.75 / tolerance);
-		int smallDiv = (int) Math.ceil(4*Math.PI*0.25 / tolerance);
+	protected MeshData tessellate(float tolerance) {
+		int bigDiv = getBigDiv(tolerance);
+		int smallDiv = getSmallDiv(tolerance);
 
 		int vertexCount = bigDiv * smallDiv;
 		float[] vertices = new float[3*vertexCount];
@@ -61,13 +77,29 @@ public class Torus extends TriangleMesh
 			{
 				int j1 = (j0+1) % smallDiv;
 
+				// split along the diagonal the strips below use
 				triangles[6*(i0*smallDiv+j0)  ] = i0*smallDiv+j0;
 				triangles[6*(i0*smallDiv+j0)+1] = i1*smallDiv+j0;
-				triangles[6*(i0*smallDiv+j0)+2] = i1*smallDiv+j1;
+				triangles[6*(i0*smallDiv+j0)+2] = i0*smallDiv+j1;
+
+				triangles[6*(i0*smallDiv+j0)+3] = i0*smallDiv+j1;
+				triangles[6*(i0*smallDiv+j0)+4] = i1*smallDiv+j0;
+				triangles[6*(i0*smallDiv+j0)+5] = i1*smallDiv+j1;
+			}
+		}
 
-				triangles[6*(i0*smallDiv+j0)+3] = i0*smallDiv+j0;
-				triangles[6*(i0*smallDiv+j0)+4] = i1*smallDiv+j1;
-				triangles[6*(i0*smallDiv+j0)+5] = i0*smallDiv+j1;
+		// the same triangles as one strip around the tube per step of bigDiv
+		int[] strips = new int[bigDiv * (2 * smallDiv + 3) - 1];
+		int s = 0;
+		for(int i0=0;i0<bigDiv;i0++)
+		{
+			int i1 = (i0+1) % bigDiv;
+			if(i0 > 0)
+				strips[s++] = IndexBuffer.RESTART_INDEX;
+			for(int j0=0;j0<=smallDiv;j0++)
+			{
+				strips[s++] = i0*smallDiv + j0 % smallDiv;
+				strips[s++] = i1*smallDiv + j0 % smallDiv;
 			}
 		}
 		
@@ -87,10 +119,9 @@ public class Torus extends TriangleMesh
 			}
 		}
 
-		setVertices(gl, vertices);
-		setNormals(gl, normals);
-		setTriangleIndices(gl, triangles);
-		setWireframeIndices(gl, lines);
+		MeshData data = new MeshData(vertices, normals, triangles, lines);
+		data.triangleStrips = strips;
+		return data;
 	}
 
 	@Override
@@ -0,0 +1,106 @@
+package cs4620.shape;
+
+import cs4620.framework.BVH;
+
+/*
+ * Ray queries against the triangles of one mesh, in the mesh's own frame.
+ * Built once per shared geometry (see MeshCache.Entry.getBVH()), so every
+ * mesh instance drawn from the same buffers uses the same hierarchy.
+ */
+
+public class TriangleBVH implements BVH.Intersector {
+
+	private final float [] vertices;
+	private final int [] triangles;
+	private final BVH bvh;
+
+	// ray of the query in progress, and its result
+	private float ox, oy, oz, dx, dy, dz;
+	private int hitTriangle;
+
+	public TriangleBVH(MeshData data)
+	{
+		this.vertices = data.vertices;
+		this.triangles = data.triangles;
+
+		int numTriangles = data.getNumTriangles();
+		float [] bounds = new float[6 * numTriangles];
+		for (int t = 0; t < numTriangles; t++)
+		{
+			for (int a = 0; a < 3; a++)
+			{
+				bounds[6*t+a] = Float.POSITIVE_INFINITY;
+				bounds[6*t+3+a] = Float.NEGATIVE_INFINITY;
+			}
+			for (int k = 0; k < 3; k++)
+			{
+				int v = 3 * triangles[3*t+k];
+				for (int a = 0; a < 3; a++)
+				{
+					bounds[6*t+a] = Math.min(bounds[6*t+a], vertices[v+a]);
+					bounds[6*t+3+a] = Math.max(bounds[6*t+3+a], vertices[v+a]);
+				}
+			}
+		}
+		bvh = new BVH(bounds, numTriangles);
+	}
+
+	/**
+	 * Casts the ray origin + t * direction, 0 <= t < tMax, against the mesh.
+	 * Returns the t of the closest hit, or tMax if there is none; the
+	 * triangle hit is then given by getHitTriangle(). Not safe to call from
+	 * several threads at once.
+	 */
+	public float raycast(float ox, float oy, float oz, float dx, float dy, float dz, float tMax)
+	{
+		this.ox = ox; this.oy = oy; this.oz = oz;
+		this.dx = dx; this.dy = dy; this.dz = dz;
+		hitTriangle = -1;
+		return bvh.raycast(ox, oy, oz, dx, dy, dz, tMax, this);
+	}
+
+	/**
+	 * Index of the triangle hit by the last raycast(), or -1.
+	 */
+	public int getHitTriangle()
+	{
+		return hitTriangle;
+	}
+
+	/**
+	 * Moller-Trumbore intersection with triangle t; both sides count.
+	 */
+	public float intersect(int t, float tMax)
+	{
+		int i0 = 3 * triangles[3*t], i1 = 3 * triangles[3*t+1], i2 = 3 * triangles[3*t+2];
+		float e1x = vertices[i1] - vertices[i0], e1y = vertices[i1+1] - vertices[i0+1], e1z = vertices[i1+2] - vertices[i0+2];
+		float e2x = vertices[i2] - vertices[i0], e2y = vertices[i2+1] - vertices[i0+1], e2z = vertices[i2+2] - vertices[i0+2];
+
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return tMax;
+		float invDet = 1.0f / det;
+
+		float sx = ox - vertices[i0], sy = oy - vertices[i0+1], sz = oz - vertices[i0+2];
+		float u = (sx * px + sy * py + sz * pz) * invDet;
+		if (u < 0 || u > 1)
+			return tMax;
+
+		float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (v < 0 || u + v > 1)
+			return tMax;
+
+		float hit = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		if (hit < 0 || hit >= tMax)
+			return tMax;
+		hitTriangle = t;
+		return hit;
+	}
+
+	public int getNumNodes()
+	{
+		return bvh.getNumNodes();
+	}
+}
@@ -2,113 +2,168 @@ package cs4620.shape;
 
 import javax.media.opengl.GL2;
 
-import cs4620.framework.IndexBuffer;
+import cs4620.framework.BoundingBox;
+import cs4620.framework.Program;
 import cs4620.framework.VertexArray;
-import cs4620.framework.VertexBuffer;
-import cs4620.scene.SceneProgram;
 
 public abstract class TriangleMesh extends Mesh {
 	
-	// GL resources
-	protected VertexArray trianglesArray;
-	protected VertexArray wireframeArray;
-	
-	protected VertexBuffer verticesBuffer;
-	protected VertexBuffer normalsBuffer;
-	protected IndexBuffer triangleIndicesBuffer;
-	protected IndexBuffer linesIndicesBuffer;
+	// Geometry, shared with every mesh that holds the same geometry (see MeshCache).
+	// Null until the mesh is first built.
+	protected MeshCache.Entry geometry;
 
-	public TriangleMesh(GL2 gl)
+	public TriangleMesh()
 	{
-		super(gl);
-		
-		// TODO (Scene P1): Create buffers for vertices and assign them to vertex arrays for
-		// triangle and wireframe drawing. Set the buffers to be empty initially (give them 
-		// length-zero arrays); when subclasses of TriangleMesh build their meshes, they
-		// will update the buffers' contents using the setter methods below.
-		// 
-		// Assume that these vertex arrays will be drawn by the SceneProgram shader program.
-		
-		float placeHolder[] = {};
-		int placeHolder2[] = {};
-		
-		verticesBuffer = new VertexBuffer(gl, placeHolder, 3); //3 stands for 3D
-		normalsBuffer = new VertexBuffer(gl, placeHolder, 3);
-		
-		triangleIndicesBuffer = new IndexBuffer(gl, placeHolder2);
-		linesIndicesBuffer = new IndexBuffer(gl, placeHolder2);
-		
-		trianglesArray = new VertexArray(gl, GL2.GL_TRIANGLES);
-		trianglesArray.setIndexBuffer(gl, triangleIndicesBuffer);
-		trianglesArray.setAttributeBuffer(gl, SceneProgram.VERTEX_INDEX, verticesBuffer);
-		trianglesArray.setAttributeBuffer(gl, SceneProgram.NORMAL_INDEX, normalsBuffer);
-		
-		wireframeArray = new VertexArray(gl, GL2.GL_LINES);
-		wireframeArray.setIndexBuffer(gl, linesIndicesBuffer);
-		wireframeArray.setAttributeBuffer(gl, SceneProgram.VERTEX_INDEX, verticesBuffer);
-		wireframeArray.setAttributeBuffer(gl, SceneProgram.NORMAL_INDEX, normalsBuffer);
-		
+		super();
 	}
 	
-	protected void setVertices(GL2 gl, float [] vertices)
+	/**
+	 * Computes the geometry for the given tolerance. Must not touch GL or
+	 * change the mesh, so that meshes can be tessellated on worker threads
+	 * (see MeshRebuilder).
+	 */
+	protected abstract MeshData tessellate(float tolerance);
+	
+	/**
+	 * Fills in entry, the shared geometry for the given tolerance: by default
+	 * with the tessellation, welded and reordered for the vertex cache (see
+	 * MeshOptimizer). Only called while nobody has built the geometry for
+	 * getGeometryKey(tolerance). Like tessellate(), needs no GL, so it can
+	 * run on worker threads.
+	 */
+	protected void buildGeometry(MeshCache.Entry entry, float tolerance)
 	{
-		if (verticesBuffer == null) return; 
-		
-		if (vertices.length % 3 != 0)
-			throw new Error("Vertex array's length is not a multiple of 3.");
-		
-		verticesBuffer.smartSetData(gl, vertices);
+		entry.setData(MeshOptimizer.optimize(tessellate(tolerance)));
 	}
 	
-	protected void setNormals(GL2 gl, float [] normals)
+	/**
+	 * Identifies the geometry this mesh has at the given tolerance. Meshes
+	 * with equal keys share their geometry. By default the geometry
+	 * depends on the mesh type and the tolerance.
+	 */
+	protected String getGeometryKey(float tolerance)
 	{
-		if (normalsBuffer == null) return;
-		
-		if (normals.length % 3 != 0)
-			throw new Error("Normal array's length is not a multiple of 3");
-		
-		normalsBuffer.smartSetData(gl, normals);
+		return MeshCache.keyFor(getClass(), tolerance);
 	}
 	
-	protected void setTriangleIndices(GL2 gl, int [] triangleIndices)
+	@Override
+	public void buildMesh(float tolerance)
 	{
-		if (triangleIndicesBuffer == null) return;
-		
-		if (triangleIndices.length % 3 != 0)
-	        throw new Error("Triangle array's length is not a multiple of 3.");
-		
-		triangleIndicesBuffer.smartSetData(gl, triangleIndices);
+		if (acquireGeometry(getGeometryKey(tolerance)))
+		{
+			buildGeometry(geometry, tolerance);
+			geometry.setBuilt();
+		}
 	}
 	
-	protected void setWireframeIndices(GL2 gl, int [] wireframeIndices)
+	/**
+	 * Switches this mesh to the shared geometry stored under key, releasing
+	 * the geometry it used before. Returns true if nobody has built that
+	 * geometry yet, in which case the caller must fill it in and call
+	 * geometry.setBuilt().
+	 */
+	protected boolean acquireGeometry(String key)
 	{
-		if (linesIndicesBuffer == null) return;
+		if (geometry != null && geometry.getKey().equals(key))
+			return !geometry.isBuilt();
 		
-		if (wireframeIndices.length % 2 != 0)
-	        throw new Error("Line array's length is not a multiple of 2.");
-		
-		linesIndicesBuffer.smartSetData(gl, wireframeIndices);
+		MeshCache.Entry entry = MeshCache.acquire(key);
+		releaseGeometry();
+		geometry = entry;
+		boundsChanged();
+		return !geometry.isBuilt();
 	}
-
+	
+	protected void releaseGeometry()
+	{
+		if (geometry != null)
+		{
+			MeshCache.release(geometry);
+			geometry = null;
+		}
+	}
+	
+	@Override
+	public void dispose()
+	{
+		releaseGeometry();
+		super.dispose();
+	}
+	
 	public final void draw(GL2 gl)
 	{
 		// TODO (Scene P1): Draw the triangle mesh.
-		trianglesArray.draw(gl);
+		MeshBuffers buffers = getBuffers(gl);
+		if (buffers != null)
+		{
+			buffers.applyTo(gl, Program.getCurrent());
+			buffers.getTrianglesArray().draw(gl);
+		}
 	}
 	
 	public final void drawWireframe(GL2 gl)
 	{
 		// TODO (Scene P1): Draw the wireframe mesh.
-		wireframeArray.draw(gl);
+		MeshBuffers buffers = getBuffers(gl);
+		if (buffers != null)
+		{
+			buffers.applyTo(gl, Program.getCurrent());
+			buffers.getWireframeArray().draw(gl);
+		}
+	}
+	
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		return geometry != null && geometry.isBuilt() ? geometry.bounds : null;
+	}
+	
+	/**
+	 * The ray query hierarchy over this mesh's triangles, in its own frame,
+	 * or null if the mesh is not built.
+	 */
+	public TriangleBVH getBVH()
+	{
+		return geometry == null ? null : geometry.getBVH();
+	}
+	
+	/**
+	 * The geometry of this mesh as plain arrays, in its own frame, or null
+	 * if the mesh is not built or its arrays are not kept.
+	 */
+	public MeshData getMeshData()
+	{
+		return geometry == null ? null : geometry.getData();
+	}
+	
+	/**
+	 * The shared geometry this mesh uses, or null if it was never built.
+	 * Meshes with the same geometry return the same entry.
+	 */
+	public MeshCache.Entry getGeometry()
+	{
+		return geometry;
+	}
+	
+	/**
+	 * The GL buffers of this mesh's geometry, made or filled on first use,
+	 * or null if the mesh is not built. Must be called on the GL thread.
+	 */
+	public MeshBuffers getBuffers(GL2 gl)
+	{
+		MeshCache.Entry entry = geometry;
+		return entry == null ? null : entry.bind(gl);
 	}
 	
-	public VertexArray getTrianglesArray()
+	public VertexArray getTrianglesArray(GL2 gl)
 	{
-		return trianglesArray;
+		MeshBuffers buffers = getBuffers(gl);
+		return buffers == null ? null : buffers.getTrianglesArray();
 	}
 	
-	public VertexArray getWireframeArray()
+	public VertexArray getWireframeArray(GL2 gl)
 	{
-		return wireframeArray;
+		MeshBuffers buffers = getBuffers(gl);
+		return buffers == null ? null : buffers.getWireframeArray();
 	}
 }
@@ -10,11 +10,15 @@ import javax.swing.event.ChangeListener;
 
 import layout.TableLayout;
 import cs4620.material.PhongMaterial;
+import cs4620.scene.MeshNode;
+import cs4620.scene.Scene;
 
 public class GLPhongMaterialSettingPanel extends JPanel implements ChangeListener
 {
 	private static final long	serialVersionUID	= 1L;
 
+	private Scene scene = null;
+	private MeshNode meshNode = null;
 	private PhongMaterial material = null;
 
 	private JSpinner aR, aG, aB;
@@ -116,27 +120,49 @@ public class GLPhongMaterialSettingPanel extends JPanel implements ChangeListene
 	{
 		if (changeMaterialValues && material != null)
 		{
-			material.ambient[0] = ((Double)aR.getValue()).floatValue();
-			material.ambient[1] = ((Double)aG.getValue()).floatValue();
-			material.ambient[2] = ((Double)aB.getValue()).floatValue();
-
-			material.diffuse[0] = ((Double)dR.getValue()).floatValue();
-			material.diffuse[1] = ((Double)dG.getValue()).floatValue();
-			material.diffuse[2] = ((Double)dB.getValue()).floatValue();
-
-			material.specular[0] = ((Double)sR.getValue()).floatValue();
-			material.specular[1] = ((Double)sG.getValue()).floatValue();
-			material.specular[2] = ((Double)sB.getValue()).floatValue();
-
-			material.shininess = ((Double)alpha.getValue()).floatValue();
+			scene.beginEdit();
+			try
+			{
+				material.ambient[0] = ((Double)aR.getValue()).floatValue();
+				material.ambient[1] = ((Double)aG.getValue()).floatValue();
+				material.ambient[2] = ((Double)aB.getValue()).floatValue();
+
+				material.diffuse[0] = ((Double)dR.getValue()).floatValue();
+				material.diffuse[1] = ((Double)dG.getValue()).floatValue();
+				material.diffuse[2] = ((Double)dB.getValue()).floatValue();
+
+				material.specular[0] = ((Double)sR.getValue()).floatValue();
+				material.specular[1] = ((Double)sG.getValue()).floatValue();
+				material.specular[2] = ((Double)sB.getValue()).floatValue();
+
+				material.shininess = ((Double)alpha.getValue()).floatValue();
+				meshNode.materialChanged();
+			}
+			finally
+			{
+				scene.endEdit();
+			}
 		}
 	}
 
-	public void setMaterial(PhongMaterial material)
+	/**
+	 * Sets the scene the edited nodes belong to, see Scene.beginEdit().
+	 */
+	public void setScene(Scene scene)
+	{
+		this.scene = scene;
+	}
+
+	/**
+	 * Shows the material of meshNode, which must be a PhongMaterial, for
+	 * editing.
+	 */
+	public void setMeshNode(MeshNode meshNode)
 	{
 		changeMaterialValues = false;
 
-		this.material = material;
+		this.meshNode = meshNode;
+		this.material = (PhongMaterial)meshNode.getMaterial();
 
 		aR.setValue(new Double(this.material.ambient[0]));
 		aG.setValue(new Double(this.material.ambient[1]));
@@ -11,11 +11,13 @@ import javax.vecmath.Vector3f;
 
 import layout.TableLayout;
 import cs4620.scene.LightNode;
+import cs4620.scene.Scene;
 
 public class LightSettingPanel extends JPanel implements ChangeListener
 {
 	private static final long	serialVersionUID	= 1L;
 
+	Scene scene = null;
 	LightNode lightNode = null;
 	boolean changeLightNode = false;
 
@@ -98,12 +100,29 @@ public class LightSettingPanel extends JPanel implements ChangeListener
 			LightNode.ambient[1] = ((Double)aG.getValue()).floatValue();
 			LightNode.ambient[2] = ((Double)aB.getValue()).floatValue();
 
-			lightNode.intensity[0] = ((Double)dR.getValue()).floatValue();
-			lightNode.intensity[1] = ((Double)dG.getValue()).floatValue();
-			lightNode.intensity[2] = ((Double)dB.getValue()).floatValue();
+			scene.beginEdit();
+			try
+			{
+				lightNode.setIntensity(
+						((Double)dR.getValue()).floatValue(),
+						((Double)dG.getValue()).floatValue(),
+						((Double)dB.getValue()).floatValue());
+			}
+			finally
+			{
+				scene.endEdit();
+			}
 		}
 	}
 
+	/**
+	 * Sets the scene the edited lights belong to, see Scene.beginEdit().
+	 */
+	public void setScene(Scene scene)
+	{
+		this.scene = scene;
+	}
+
 	public void setLightNode(LightNode lightNode)
 	{
 		changeLightNode = false;
@@ -0,0 +1,64 @@
+package cs4620.ui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.Action;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+
+/**
+ * A strip showing how far a long task, such as loading a scene, has got,
+ * with a button to cancel it. Hidden while there is nothing to show.
+ */
+public class LoadProgressPanel extends JPanel
+{
+	private static final long serialVersionUID = 2205638411752094437L;
+
+	private static final int NUM_STEPS = 1000;
+
+	/** The GUI components */
+	private JLabel label;
+	private JProgressBar progressBar;
+
+	public LoadProgressPanel(Action cancelAction) {
+		super();
+
+		this.setLayout(new BorderLayout(6, 0));
+		this.setBorder(BorderFactory.createEmptyBorder(3, 3, 3, 3));
+
+		label = new JLabel();
+		this.add(label, BorderLayout.WEST);
+
+		progressBar = new JProgressBar(0, NUM_STEPS);
+		this.add(progressBar, BorderLayout.CENTER);
+
+		this.add(new JButton(cancelAction), BorderLayout.EAST);
+
+		setVisible(false);
+	}
+
+	/**
+	 * Shows the panel with the given text and fraction done, from 0 to 1.
+	 */
+	public void showProgress(String text, float fraction) {
+		if (!text.equals(label.getText()))
+			label.setText(text);
+		progressBar.setValue(Math.round(Math.max(0, Math.min(1, fraction)) * NUM_STEPS));
+		if (!isVisible())
+		{
+			setVisible(true);
+			getParent().validate();
+		}
+	}
+
+	public void hideProgress() {
+		if (isVisible())
+		{
+			setVisible(false);
+			getParent().validate();
+		}
+	}
+}
@@ -11,6 +11,8 @@ import cs4620.framework.OrthographicCamera;
 import cs4620.framework.OrthographicCameraController;
 import cs4620.framework.PerspectiveCamera;
 import cs4620.framework.PerspectiveCameraController;
+import cs4620.framework.PickingController;
+import cs4620.framework.PickingEventListener;
 import cs4620.framework.ViewController;
 
 /**
@@ -26,6 +28,7 @@ public class OneFourViewPanel extends MultiViewPanel {
 	ViewController frontController;
 	ViewController rightController;
 	ViewController perspectiveController;
+	PickingController [] pickingControllers;
 	
 	ViewController horizontalBar;
 	ViewController verticalBar;
@@ -55,11 +58,15 @@ public class OneFourViewPanel extends MultiViewPanel {
 				new Point3f(5,5,5), new Point3f(0,0,0), new Vector3f(0,1,0),
 				0.1f, 100, cameraFOV);
 		
-		// init controllers
-		topController = new OrthographicCameraController(topCamera, drawer);
-		frontController = new OrthographicCameraController(frontCamera, drawer);
-		rightController = new OrthographicCameraController(rightCamera, drawer);
-		perspectiveController = new PerspectiveCameraController(perspectiveCamera, drawer);
+		// init controllers, each reporting what is under the mouse
+		topController = new PickingController(new OrthographicCameraController(topCamera, drawer));
+		frontController = new PickingController(new OrthographicCameraController(frontCamera, drawer));
+		rightController = new PickingController(new OrthographicCameraController(rightCamera, drawer));
+		perspectiveController = new PickingController(new PerspectiveCameraController(perspectiveCamera, drawer));
+		pickingControllers = new PickingController[] {
+			(PickingController)topController, (PickingController)frontController,
+			(PickingController)rightController, (PickingController)perspectiveController
+		};
 		
 		horizontalBar = new ViewController();
 		verticalBar = new ViewController();
@@ -102,6 +109,40 @@ public class OneFourViewPanel extends MultiViewPanel {
 		}
 	}
 	
+	public void addPickingEventListener(PickingEventListener listener)
+	{
+		for (int i = 0; i < pickingControllers.length; i++)
+			pickingControllers[i].addPickingEventListener(listener);
+	}
+	
+	public void removePickingEventListener(PickingEventListener listener)
+	{
+		for (int i = 0; i < pickingControllers.length; i++)
+			pickingControllers[i].removePickingEventListener(listener);
+	}
+	
+	public void addPrioritizedObjectId(int id)
+	{
+		for (int i = 0; i < pickingControllers.length; i++)
+			pickingControllers[i].addPrioritizedObjectId(id);
+	}
+	
+	public void removePrioritizedObjectId(int id)
+	{
+		for (int i = 0; i < pickingControllers.length; i++)
+			pickingControllers[i].removePrioritizedObjectId(id);
+	}
+	
+	/**
+	 * Whether objects are picked as the mouse moves over them, rather than
+	 * only when clicked.
+	 */
+	public void setHoverPicking(boolean hoverPicking)
+	{
+		for (int i = 0; i < pickingControllers.length; i++)
+			pickingControllers[i].setHoverPicking(hoverPicking);
+	}
+	
 	@Override
 	public void reshapeViews()
 	{
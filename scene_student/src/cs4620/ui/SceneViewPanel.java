@@ -12,6 +12,7 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 
 import layout.TableLayout;
+import cs4620.framework.GLInvoker;
 import cs4620.framework.GLSceneDrawer;
 import cs4620.framework.GLViewPanelWithCameraControl;
 import cs4620.framework.PerspectiveCameraController;
@@ -22,7 +23,7 @@ import cs4620.framework.PickingEventListener;
  * enable/disable wireframe rendering and lights.
  */
 
-public class SceneViewPanel extends JPanel implements ActionListener
+public class SceneViewPanel extends JPanel implements ActionListener, GLInvoker
 {
 	private static final long serialVersionUID = 1L;
 
@@ -35,6 +36,7 @@ public class SceneViewPanel extends JPanel implements ActionListener
 
 	JCheckBox wireframeCheckBox;
 	JCheckBox lightingCheckBox;
+	JCheckBox hoverPickingCheckBox;
 
 	GLSceneDrawer drawer;
 
@@ -92,6 +94,11 @@ public class SceneViewPanel extends JPanel implements ActionListener
 		lightingCheckBox = new JCheckBox("Lighting");
 		lightingCheckBox.setSelected(true);
 		displayModePanel.add(lightingCheckBox);
+
+		hoverPickingCheckBox = new JCheckBox("Select on hover");
+		hoverPickingCheckBox.setSelected(true);
+		hoverPickingCheckBox.addActionListener(this);
+		displayModePanel.add(hoverPickingCheckBox);
 	}
 
 	public void actionPerformed(ActionEvent e) {
@@ -104,6 +111,10 @@ public class SceneViewPanel extends JPanel implements ActionListener
 		{
 			glPanel.setShowFour(true);
 		}
+		else if (e.getSource() == hoverPickingCheckBox)
+		{
+			glPanel.setHoverPicking(hoverPickingCheckBox.isSelected());
+		}
 	}
 
 	public boolean isWireframeMode()
@@ -126,37 +137,24 @@ public class SceneViewPanel extends JPanel implements ActionListener
 		glPanel.stopAnimation();
 	}
 
-	// FWDO picking
 	public void addPickingEventListener(PickingEventListener listener)
 	{
-		/*
-		fourViewPanel.addPickingEventListener(listener);
-		oneViewPanel.addPickingEventListener(listener);
-		*/
+		glPanel.addPickingEventListener(listener);
 	}
 
 	public void removePickingEventListener(PickingEventListener listener)
 	{
-		/*
-		fourViewPanel.removePickingEventListener(listener);
-		oneViewPanel.removePickingEventListener(listener);
-		*/
+		glPanel.removePickingEventListener(listener);
 	}
 
 	public void addPrioritizedObjectId(int id)
 	{
-		/*
-		fourViewPanel.addPrioritizedObjectId(id);
-		oneViewPanel.addPrioritizedObjectId(id);
-		*/
+		glPanel.addPrioritizedObjectId(id);
 	}
 
 	public void removePrioritizedObjectId(int id)
 	{
-		/*
-		fourViewPanel.removePrioritizedObjectId(id);
-		oneViewPanel.removePrioritizedObjectId(id);
-		*/
+		glPanel.removePrioritizedObjectId(id);
 	}
 	
 	public boolean invoke(boolean wait, GLRunnable runnable)
@@ -77,6 +77,16 @@ public class ToleranceSliderPanel extends JPanel implements ChangeListener
 		return tolerance;
 	}
 
+	/**
+	 * Moves the slider to the tick nearest the given tolerance.
+	 */
+	public void setTolerance(float tolerance) {
+		float value = log ? (float) Math.log10(tolerance) : tolerance;
+		value = (value - minValue) / (maxValue - minValue);
+		value = Math.max(0, Math.min(1, value));
+		slider.setValue(Math.round(value * numTicks));
+	}
+
 	public JSlider getSlider() {
 		return slider;
 	}
@@ -11,12 +11,14 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import layout.TableLayout;
+import cs4620.scene.Scene;
 import cs4620.scene.SceneNode;
 
 public class TransformSettingPanel extends JPanel implements ChangeListener
 {
 	private static final long	serialVersionUID	= 1L;
 
+	private Scene scene = null;
 	private SceneNode sceneNode = null;
 
 	boolean changeTransformationNode = true;
@@ -110,20 +112,40 @@ public class TransformSettingPanel extends JPanel implements ChangeListener
 	{
 		if (changeTransformationNode && sceneNode != null)
 		{
-			sceneNode.translation.x = ((Double)tX.getValue()).floatValue();
-			sceneNode.translation.y = ((Double)tY.getValue()).floatValue();
-			sceneNode.translation.z = ((Double)tZ.getValue()).floatValue();
-
-			sceneNode.rotation.x = ((Double)rX.getValue()).floatValue();
-			sceneNode.rotation.y = ((Double)rY.getValue()).floatValue();
-			sceneNode.rotation.z = ((Double)rZ.getValue()).floatValue();
-
-			sceneNode.scaling.x = ((Double)sX.getValue()).floatValue();
-			sceneNode.scaling.y = ((Double)sY.getValue()).floatValue();
-			sceneNode.scaling.z = ((Double)sZ.getValue()).floatValue();
+			// one batch, so the three parts are never rendered half updated
+			scene.beginEdit();
+			try
+			{
+				sceneNode.setTranslation(
+						((Double)tX.getValue()).floatValue(),
+						((Double)tY.getValue()).floatValue(),
+						((Double)tZ.getValue()).floatValue());
+
+				sceneNode.setRotation(
+						((Double)rX.getValue()).floatValue(),
+						((Double)rY.getValue()).floatValue(),
+						((Double)rZ.getValue()).floatValue());
+
+				sceneNode.setScaling(
+						((Double)sX.getValue()).floatValue(),
+						((Double)sY.getValue()).floatValue(),
+						((Double)sZ.getValue()).floatValue());
+			}
+			finally
+			{
+				scene.endEdit();
+			}
 		}
 	}
 
+	/**
+	 * Sets the scene the edited nodes belong to, see Scene.beginEdit().
+	 */
+	public void setScene(Scene scene)
+	{
+		this.scene = scene;
+	}
+
 	public void setTransformationNode(SceneNode sceneNode)
 	{
 		changeTransformationNode = false;
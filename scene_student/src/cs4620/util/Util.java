@@ -6,15 +6,26 @@ import javax.vecmath.Vector3f;
 
 public class Util
 {
+	/**
+	 * SnakeYAML already parsed numbers into Doubles or Integers; only
+	 * anything else is parsed again.
+	 */
+	public static float getFloatFromYamlObject(Object yamlObject)
+	{
+		if (yamlObject instanceof Number)
+			return ((Number)yamlObject).floatValue();
+		return Float.valueOf(yamlObject.toString());
+	}
+
 	public static Vector3f getVector3ffromYamlObject(Object yamlObject)
 	{
 		if (!(yamlObject instanceof List))
 			throw new RuntimeException("yamlObject not a List");
 		List<?> yamlList = (List<?>)yamlObject;
 		return new Vector3f(
-				Float.valueOf(yamlList.get(0).toString()),
-				Float.valueOf(yamlList.get(1).toString()),
-				Float.valueOf(yamlList.get(2).toString()));
+				getFloatFromYamlObject(yamlList.get(0)),
+				getFloatFromYamlObject(yamlList.get(1)),
+				getFloatFromYamlObject(yamlList.get(2)));
 	}
 
 	public static void assign4ElementArrayFromYamlObject(float[] output, Object yamlObject)
@@ -23,9 +34,9 @@ public class Util
 			throw new RuntimeException("yamlObject not a List");
 		List<?> yamlList = (List<?>)yamlObject;
 
-		output[0] = Float.valueOf(yamlList.get(0).toString());
-		output[1] = Float.valueOf(yamlList.get(1).toString());
-		output[2] = Float.valueOf(yamlList.get(2).toString());
-		output[3] = Float.valueOf(yamlList.get(3).toString());
+		output[0] = getFloatFromYamlObject(yamlList.get(0));
+		output[1] = getFloatFromYamlObject(yamlList.get(1));
+		output[2] = getFloatFromYamlObject(yamlList.get(2));
+		output[3] = getFloatFromYamlObject(yamlList.get(3));
 	}
 }
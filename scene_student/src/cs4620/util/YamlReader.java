@@ -0,0 +1,571 @@
+package cs4620.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/*
+ * A pull parser for the part of YAML that scene files use: block mappings
+ * and sequences, flow mappings and sequences ({type: Sphere}, [0.0, 1.0]),
+ * and plain or quoted scalars. There are no anchors, tags, multi-line
+ * strings or multiple documents.
+ *
+ * Each call of next() reads just far enough to return the next event, so a
+ * file is never held in memory as a whole and no object tree is built.
+ * Scalars are kept as characters in a reused buffer; getFloat() parses them
+ * in place, and getText() makes a String only when one is needed.
+ */
+
+public class YamlReader {
+
+	public static final int END_DOCUMENT = 0;
+	public static final int START_MAPPING = 1;
+	public static final int END_MAPPING = 2;
+	public static final int START_SEQUENCE = 3;
+	public static final int END_SEQUENCE = 4;
+	public static final int KEY = 5;
+	public static final int SCALAR = 6;
+
+	private static final int BLOCK_MAPPING = 0;
+	private static final int BLOCK_SEQUENCE = 1;
+	private static final int FLOW_MAPPING = 2;
+	private static final int FLOW_SEQUENCE = 3;
+
+	// mantissas with more digits may not be exact in a double
+	private static final int MAX_FAST_DIGITS = 15;
+	private static final double [] POWERS_OF_TEN = new double[23];
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+	}
+
+	private final Reader in;
+	private final char [] buffer = new char[64 * 1024];
+	private int position = 0;
+	private int limit = 0;
+	private int line = 1;
+	private int column = 0;
+
+	// the last KEY or SCALAR
+	private char [] token = new char[64];
+	private int tokenLength;
+	private boolean tokenNull;
+
+	// the collections that are open, innermost last
+	private int [] kinds = new int[16];
+	private int [] indents = new int[16];
+	private int depth = 0;
+
+	private boolean started = false;
+	// a KEY was returned and its value is next
+	private boolean expectValue = false;
+	// a KEY to return after the START_MAPPING of a mapping whose first key
+	// shares a line with a sequence entry's "- "
+	private boolean keyPending = false;
+
+	public YamlReader(Reader in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next event: the start or end of a mapping or sequence, a key
+	 * of a mapping (followed by its value), a scalar, or the end of the
+	 * document.
+	 */
+	public int next() throws IOException
+	{
+		if (keyPending)
+		{
+			keyPending = false;
+			return KEY;
+		}
+		if (!started)
+		{
+			started = true;
+			skipToContent();
+			if (peek(0) == -1)
+				return END_DOCUMENT;
+			return readInlineValue();
+		}
+		if (depth == 0)
+			return END_DOCUMENT;
+
+		int kind = kinds[depth - 1];
+		if (kind == FLOW_MAPPING || kind == FLOW_SEQUENCE)
+			return nextInFlow(kind);
+		if (expectValue)
+		{
+			expectValue = false;
+			skipSpaces();
+			if (!isLineEnd(peek(0)))
+				return readInlineValue();
+			return readBlockValue(indents[depth - 1], kind == BLOCK_MAPPING);
+		}
+		return nextInBlock(kind);
+	}
+
+	private int nextInBlock(int kind) throws IOException
+	{
+		skipToContent();
+		int c = peek(0);
+		int indent = column;
+		int top = indents[depth - 1];
+		if (c == -1 || indent < top || (kind == BLOCK_SEQUENCE && indent == top && !isEntry()))
+		{
+			depth--;
+			return kind == BLOCK_SEQUENCE ? END_SEQUENCE : END_MAPPING;
+		}
+		if (indent != top)
+			throw error("unexpected indentation");
+
+		if (kind == BLOCK_SEQUENCE)
+		{
+			if (!isEntry())
+				throw error("'-' expected");
+			advance();
+			skipSpaces();
+			if (!isLineEnd(peek(0)))
+				return readInlineValue();
+			return readBlockValue(top, false);
+		}
+
+		readScalar(false);
+		if (peek(0) != ':')
+			throw error("':' expected");
+		advance();
+		expectValue = true;
+		return KEY;
+	}
+
+	/**
+	 * Reads a value that starts on the next line: a nested mapping or
+	 * sequence, or nothing. A sequence may have the same indentation as the
+	 * key it belongs to.
+	 */
+	private int readBlockValue(int parentIndent, boolean sequenceMayAlign) throws IOException
+	{
+		skipToContent();
+		int indent = column;
+		if (peek(0) != -1 && isEntry() && (indent > parentIndent || (sequenceMayAlign && indent == parentIndent)))
+			return push(BLOCK_SEQUENCE, indent, START_SEQUENCE);
+		if (peek(0) != -1 && indent > parentIndent)
+			return push(BLOCK_MAPPING, indent, START_MAPPING);
+		tokenLength = 0;
+		tokenNull = true;
+		return SCALAR;
+	}
+
+	/**
+	 * Reads a value that starts on the current line.
+	 */
+	private int readInlineValue() throws IOException
+	{
+		int c = peek(0);
+		if (c == '[')
+		{
+			advance();
+			return push(FLOW_SEQUENCE, column, START_SEQUENCE);
+		}
+		if (c == '{')
+		{
+			advance();
+			return push(FLOW_MAPPING, column, START_MAPPING);
+		}
+
+		int start = column;
+		readScalar(false);
+		if (peek(0) == ':' && isBlank(peek(1)))
+		{
+			// the first key of a block mapping
+			advance();
+			keyPending = true;
+			expectValue = true;
+			return push(BLOCK_MAPPING, start, START_MAPPING);
+		}
+		if (!isLineEnd(peek(0)))
+			throw error("unexpected character '" + (char)peek(0) + "'");
+		return SCALAR;
+	}
+
+	private int nextInFlow(int kind) throws IOException
+	{
+		skipToContent();
+		if (peek(0) == ',')
+		{
+			advance();
+			skipToContent();
+		}
+		int c = peek(0);
+		if (c == -1)
+			throw error("unterminated flow collection");
+		if (c == ']' || c == '}')
+		{
+			if (c != (kind == FLOW_SEQUENCE ? ']' : '}'))
+				throw error("mismatched '" + (char)c + "'");
+			advance();
+			depth--;
+			expectValue = false;
+			return kind == FLOW_SEQUENCE ? END_SEQUENCE : END_MAPPING;
+		}
+
+		if (kind == FLOW_MAPPING && !expectValue)
+		{
+			readScalar(true);
+			skipToContent();
+			if (peek(0) != ':')
+				throw error("':' expected");
+			advance();
+			expectValue = true;
+			return KEY;
+		}
+
+		expectValue = false;
+		if (c == '[')
+		{
+			advance();
+			return push(FLOW_SEQUENCE, column, START_SEQUENCE);
+		}
+		if (c == '{')
+		{
+			advance();
+			return push(FLOW_MAPPING, column, START_MAPPING);
+		}
+		readScalar(true);
+		return SCALAR;
+	}
+
+	private int push(int kind, int indent, int event)
+	{
+		if (depth == kinds.length)
+		{
+			kinds = Arrays.copyOf(kinds, 2 * depth);
+			indents = Arrays.copyOf(indents, 2 * depth);
+		}
+		kinds[depth] = kind;
+		indents[depth] = indent;
+		depth++;
+		return event;
+	}
+
+	/**
+	 * Reads a plain or quoted scalar into the token buffer. A plain scalar
+	 * ends at the end of the line, a comment or a ':' followed by a blank,
+	 * and in a flow collection also at ',', ']', '}' or any ':'.
+	 */
+	private void readScalar(boolean inFlow) throws IOException
+	{
+		tokenLength = 0;
+		tokenNull = false;
+		int c = peek(0);
+		if (c == '\'' || c == '"')
+		{
+			readQuoted((char)c);
+			skipSpaces();
+			return;
+		}
+
+		while (true)
+		{
+			c = peek(0);
+			if (c == -1 || c == '\n' || c == '\r')
+				break;
+			if (c == ':' && (inFlow || isBlank(peek(1))))
+				break;
+			if (inFlow && (c == ',' || c == ']' || c == '}'))
+				break;
+			if (c == '#' && tokenLength > 0 && token[tokenLength - 1] == ' ')
+				break;
+			append((char)c);
+			advance();
+		}
+		while (tokenLength > 0 && (token[tokenLength - 1] == ' ' || token[tokenLength - 1] == '\t'))
+			tokenLength--;
+		if (tokenLength == 0 || isText("~") || isText("null"))
+			tokenNull = true;
+	}
+
+	private void readQuoted(char quote) throws IOException
+	{
+		advance();
+		while (true)
+		{
+			int c = peek(0);
+			if (c == -1)
+				throw error("unterminated string");
+			advance();
+			if (c == quote)
+			{
+				// '' stands for ' in single quotes
+				if (quote == '\'' && peek(0) == '\'')
+					advance();
+				else
+					return;
+			}
+			else if (c == '\\' && quote == '"')
+			{
+				c = peek(0);
+				advance();
+				switch (c)
+				{
+				case 'n': c = '\n'; break;
+				case 't': c = '\t'; break;
+				case 'r': c = '\r'; break;
+				case '0': c = 0; break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++)
+					{
+						code = 16 * code + Character.digit(peek(0), 16);
+						advance();
+					}
+					c = code;
+					break;
+				case -1: throw error("unterminated string");
+				default: break; // \" \\ \/ and the rest stand for themselves
+				}
+			}
+			else if (c == '\n' || c == '\r')
+			{
+				// a line break folds into a space
+				if (c == '\r' && peek(0) == '\n')
+					advance();
+				skipSpaces();
+				c = ' ';
+			}
+			append((char)c);
+		}
+	}
+
+	private void append(char c)
+	{
+		if (tokenLength == token.length)
+			token = Arrays.copyOf(token, 2 * tokenLength);
+		token[tokenLength++] = c;
+	}
+
+	/**
+	 * Whether the last key or scalar is s, without making a String of it.
+	 */
+	public boolean isText(String s)
+	{
+		if (s.length() != tokenLength)
+			return false;
+		for (int i = 0; i < tokenLength; i++)
+			if (token[i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * The last key or scalar, or null if the scalar was empty or null.
+	 */
+	public String getText()
+	{
+		return tokenNull ? null : new String(token, 0, tokenLength);
+	}
+
+	public boolean isNull()
+	{
+		return tokenNull;
+	}
+
+	/**
+	 * The last scalar as a number. Plain decimals, which is what scene files
+	 * hold, are parsed straight from the characters; anything else goes
+	 * through Float.parseFloat().
+	 */
+	public float getFloat()
+	{
+		char [] t = token;
+		int n = tokenLength;
+		int i = 0;
+		boolean negative = false;
+		if (i < n && (t[i] == '-' || t[i] == '+'))
+			negative = t[i++] == '-';
+
+		long mantissa = 0;
+		int numDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		for (; i < n && t[i] >= '0' && t[i] <= '9'; i++)
+		{
+			mantissa = 10 * mantissa + (t[i] - '0');
+			if (mantissa != 0)
+				numDigits++;
+			anyDigits = true;
+		}
+		if (i < n && t[i] == '.')
+		{
+			for (i++; i < n && t[i] >= '0' && t[i] <= '9'; i++)
+			{
+				mantissa = 10 * mantissa + (t[i] - '0');
+				if (mantissa != 0)
+					numDigits++;
+				exponent--;
+				anyDigits = true;
+			}
+		}
+		if (anyDigits && i < n && (t[i] == 'e' || t[i] == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < n && (t[i] == '-' || t[i] == '+'))
+				negativeExponent = t[i++] == '-';
+			int e = 0;
+			boolean anyExponentDigits = false;
+			for (; i < n && t[i] >= '0' && t[i] <= '9' && e < 1000; i++)
+			{
+				e = 10 * e + (t[i] - '0');
+				anyExponentDigits = true;
+			}
+			if (!anyExponentDigits)
+				anyDigits = false;
+			exponent += negativeExponent ? -e : e;
+		}
+
+		if (anyDigits && i == n && numDigits <= MAX_FAST_DIGITS
+				&& exponent < POWERS_OF_TEN.length && -exponent < POWERS_OF_TEN.length)
+		{
+			// one correctly rounded operation on exact operands
+			double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			return (float)(negative ? -value : value);
+		}
+
+		if (isText(".inf") || isText(".Inf") || isText("+.inf"))
+			return Float.POSITIVE_INFINITY;
+		if (isText("-.inf") || isText("-.Inf"))
+			return Float.NEGATIVE_INFINITY;
+		if (isText(".nan") || isText(".NaN"))
+			return Float.NaN;
+		try
+		{
+			return Float.parseFloat(new String(t, 0, n));
+		}
+		catch (NumberFormatException e)
+		{
+			throw error("number expected, found '" + new String(t, 0, n) + "'");
+		}
+	}
+
+	/**
+	 * Reads a sequence of at least out.length numbers into out; further
+	 * numbers are ignored.
+	 */
+	public void readFloats(float [] out) throws IOException
+	{
+		if (next() != START_SEQUENCE)
+			throw error("sequence of " + out.length + " numbers expected");
+		int count = 0;
+		int event;
+		while ((event = next()) == SCALAR)
+		{
+			if (count < out.length)
+				out[count] = getFloat();
+			count++;
+		}
+		if (event != END_SEQUENCE || count < out.length)
+			throw error("sequence of " + out.length + " numbers expected");
+	}
+
+	/**
+	 * Skips the value of the KEY just returned, however deeply nested.
+	 */
+	public void skipValue() throws IOException
+	{
+		int event = next();
+		if (event != START_MAPPING && event != START_SEQUENCE)
+			return;
+		int nesting = 1;
+		while (nesting > 0)
+		{
+			event = next();
+			if (event == START_MAPPING || event == START_SEQUENCE)
+				nesting++;
+			else if (event == END_MAPPING || event == END_SEQUENCE)
+				nesting--;
+			else if (event == END_DOCUMENT)
+				throw error("unexpected end of document");
+		}
+	}
+
+	public RuntimeException error(String message)
+	{
+		return new RuntimeException(message + " at line " + line);
+	}
+
+	private boolean isEntry() throws IOException
+	{
+		return peek(0) == '-' && isBlank(peek(1));
+	}
+
+	private static boolean isBlank(int c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == -1;
+	}
+
+	private static boolean isLineEnd(int c)
+	{
+		return c == '\n' || c == '\r' || c == '#' || c == -1;
+	}
+
+	private void skipSpaces() throws IOException
+	{
+		while (peek(0) == ' ' || peek(0) == '\t')
+			advance();
+	}
+
+	/**
+	 * Skips blank lines and comments up to the next content, leaving column
+	 * at its indentation.
+	 */
+	private void skipToContent() throws IOException
+	{
+		while (true)
+		{
+			int c = peek(0);
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+				advance();
+			else if (c == '#')
+			{
+				while (peek(0) != '\n' && peek(0) != -1)
+					advance();
+			}
+			else
+				return;
+		}
+	}
+
+	private int peek(int offset) throws IOException
+	{
+		if (position + offset >= limit)
+		{
+			// keep the unread characters, then fill up the buffer
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+			while (limit <= offset)
+			{
+				int count = in.read(buffer, limit, buffer.length - limit);
+				if (count < 0)
+					return -1;
+				limit += count;
+			}
+		}
+		return buffer[position + offset];
+	}
+
+	private void advance() throws IOException
+	{
+		if (peek(0) == '\n')
+		{
+			line++;
+			column = 0;
+		}
+		else
+			column++;
+		position++;
+	}
+}